@@ -7,13 +7,19 @@ import java.io.*;
 import javax.inject.*;
 import java.net.URI;
 import java.util.concurrent.Callable;
+import java.util.zip.GZIPOutputStream;
 
 import akka.actor.ActorSystem;
 import akka.stream.Materializer;
+import akka.stream.javadsl.Source;
+import akka.stream.javadsl.StreamConverters;
+import akka.util.ByteString;
 import com.fasterxml.jackson.databind.node.NullNode;
 import com.fasterxml.jackson.databind.node.TextNode;
 import ncats.stitcher.Props;
 import ncats.stitcher.tools.CompoundStitcher;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Node;
 import play.*;
 import play.db.ebean.Transactional;
 import play.mvc.*;
@@ -48,6 +54,8 @@ public class Api extends Controller {
     @Inject JsonCodec jsonCodec;
     
     ObjectMapper mapper = new ObjectMapper ();
+    // see ix.export-dispatcher in application.conf
+    static final String EXPORT_DISPATCHER = "ix.export-dispatcher";
     
     public Api () {
     }
@@ -306,6 +314,84 @@ public class Api extends Controller {
         return result;
     }
 
+    /*
+     * keyset page; next is the cursor of the following page
+     */
+    ObjectNode toJson (int t, Entity... entities) {
+        ObjectNode result = toJson (0, t, entities);
+        result.remove("skip");
+        if (entities.length == t && t > 0)
+            result.put("next", cursor (entities[t-1].getId()));
+        return result;
+    }
+
+    /*
+     * opaque continuation token for keyset paging
+     */
+    static String cursor (long id) {
+        return Base64.getUrlEncoder().withoutPadding()
+            .encodeToString(Long.toString(id).getBytes());
+    }
+
+    static Long cursor (String token) {
+        try {
+            return Long.parseLong
+                (new String (Base64.getUrlDecoder().decode(token)));
+        }
+        catch (IllegalArgumentException ex) {
+            return null;
+        }
+    }
+
+    /*
+     * every node with the labels as one json document per line,
+     * written in the background with bounded memory; ?gzip=true
+     * compresses on the fly
+     */
+    Result ndjson (Label... labels) {
+        return ndjson (jsonCodec::encode, labels);
+    }
+    
+    Result ndjson (Exporter.Encoder encoder, Label... labels) {
+        Exporter exporter = new Exporter (es.getEntityFactory().getGraphDb())
+            .setEncoder(encoder);
+        boolean gzip = "true".equalsIgnoreCase
+            (request().getQueryString("gzip"));
+        Source<ByteString, ?> source = StreamConverters.asOutputStream()
+            .mapMaterializedValue(out -> {
+                    actorSystem.dispatchers().lookup(EXPORT_DISPATCHER)
+                        .execute(() -> {
+                            try (OutputStream os = gzip
+                                 ? new GZIPOutputStream (out, 1<<16)
+                                 : new BufferedOutputStream (out, 1<<16)) {
+                                try {
+                                    exporter.export(os, labels);
+                                }
+                                catch (RuntimeException ex) {
+                                    Logger.error("ndjson export failed", ex);
+                                    // the status is long gone, so this
+                                    // is how the client learns of it
+                                    ObjectNode err = mapper.createObjectNode();
+                                    err.put("error", String.valueOf(ex));
+                                    os.write((err+"\n").getBytes("utf8"));
+                                }
+                            }
+                            catch (IOException ex) {
+                                // most likely the client went away
+                                Logger.warn("ndjson export aborted: "
+                                            +ex.getMessage());
+                            }
+                            catch (Throwable ex) {
+                                Logger.error("ndjson export failed", ex);
+                            }
+                        });
+                    return out;
+                });
+        
+        Result result = ok().chunked(source).as("application/x-ndjson");
+        return gzip ? result.withHeader(CONTENT_ENCODING, "gzip") : result;
+    }
+
     Entity getStitchEntity (Integer ver, String id) {
         Entity e = null;
         try {
@@ -990,26 +1076,18 @@ public class Api extends Controller {
             }
         }
 
+        if ("ndjson".equals(request().getQueryString("format"))) {
+            return ndjson ((gen, n) -> mapper.writeTree (gen, curation (n)),
+                           labels.stream().map(l -> Label.label(l))
+                           .toArray(Label[]::new));
+        }
+
         entities = es.getEntityFactory()
                     .entities(s, t, labels.toArray(new String[0]));
 
         ArrayNode entries = mapper.createArrayNode();
-        for (Entity e : entities) {
-            ObjectNode entry = mapper.createObjectNode();
-            entry.put("id", e.getId());
-            entry.put("source", e.datasource().getKey());
-            entry.put("datasource", e.datasource().getName());
-            Map<String, Object> payload = e.payload();
-            if (e.payload().containsKey("_CURATION")) {
-                Object curation = e.payload().get("_CURATION");
-                ArrayNode an = mapper.createArrayNode();
-                if (curation.getClass().isArray())
-                    for (int i=0; i<Array.getLength(curation); i++)
-                        an.add(Array.get(curation, i).toString());
-                entry.put("_CURATION", an);
-            }
-            entries.add(entry);
-        }
+        for (Entity e : entities)
+            entries.add(curation (e));
 
         ObjectNode result = mapper.createObjectNode();
         result.put("skip", skip);
@@ -1021,6 +1099,48 @@ public class Api extends Controller {
         return ok(result);
     }
 
+    /*
+     * for the ndjson export; a node that can't be encoded gets an
+     * error line instead of aborting the rest of the stream
+     */
+    ObjectNode curation (Node n) {
+        String error;
+        if (n.hasLabel(AuxNodeType.ENTITY)) {
+            try {
+                return curation (Entity._getEntity(n));
+            }
+            catch (RuntimeException ex) {
+                Logger.error("Can't encode node "+n.getId(), ex);
+                error = String.valueOf(ex);
+            }
+        }
+        else {
+            error = "Not an entity";
+        }
+        ObjectNode entry = mapper.createObjectNode();
+        entry.put("id", n.getId());
+        entry.put("error", error);
+        return entry;
+    }
+
+    ObjectNode curation (Entity e) {
+        ObjectNode entry = mapper.createObjectNode();
+        entry.put("id", e.getId());
+        DataSource ds = e.datasource();
+        entry.put("source", ds != null ? ds.getKey() : null);
+        entry.put("datasource", ds != null ? ds.getName() : null);
+        Map<String, Object> payload = e.payload();
+        if (payload.containsKey("_CURATION")) {
+            Object curation = payload.get("_CURATION");
+            ArrayNode an = mapper.createArrayNode();
+            if (curation.getClass().isArray())
+                for (int i=0; i<Array.getLength(curation); i++)
+                    an.add(Array.get(curation, i).toString());
+            entry.put("_CURATION", an);
+        }
+        return entry;
+    }
+
     public Result updateLatestStitch (String id) {
         return updateLatestStitch (id, false);
     }
@@ -1062,43 +1182,101 @@ public class Api extends Controller {
                         int pos = p.indexOf('/');
                         if (pos > 0) {
                             key = p.substring(0, pos);
-                            value = "'"+p.substring(pos+1)+"'";
+                            value = p.substring(pos+1);
                         }
                     }
                 }
             }
         }
 
-        Entity[] entities;
-        int s, t;
-        if (key != null) {
-            entities = es.getEntityFactory().filter
-                (key, value, labels.toArray(new String[0]));
-            s = 0;
-            t = entities.length;
+        int s = skip != null ? skip : 0;
+        // a value filter used to return every match
+        int t = top != null ? Math.min(top,1000) : key != null ? 1000 : 5;
+
+        String page = request().getQueryString("page");
+        if (page != null) {
+            try {
+                skip = (Integer.parseInt(page)-1)*t;
+                s = Math.max(0, skip);
+            }
+            catch (NumberFormatException ex) {
+                Logger.error("Bogus page number: "+page, ex);
+            }
         }
-        else {
-            s = skip != null ? skip : 0;
-            t = top != null ? Math.min(top,1000) : 5;
 
-            String page = request().getQueryString("page");
-            if (page != null) {
-                try {
-                    skip = (Integer.parseInt(page)-1)*t;
-                    s = Math.max(0, skip);
-                }
-                catch (NumberFormatException ex) {
-                    Logger.error("Bogus page number: "+page, ex);
-                }
+        boolean ndjson = "ndjson".equals(request().getQueryString("format"));
+        String token = request().getQueryString("cursor");
+        if (key != null && (ndjson || token != null))
+            return badRequest ("format=ndjson and cursor can't be used with "
+                               +"a value filter; use skip/top or page!");
+        
+        Entity[] entities;
+        // label filters can stream or keyset page straight from the graph
+        if (key != null || (labels.size() > 1 && !ndjson && token == null)) {
+            // served from the version's lucene index
+            try {
+                Indexer indexer = es.getEntityFactory()
+                    .getGraphDb().getIndexer(ver);
+                if (!indexer.isReady())
+                    return filterStitches (key, value, labels, s, t);
+                
+                Map<String, Object> values = new HashMap<>();
+                if (key != null)
+                    values.put(key, value);
+                Indexer.SearchResult result =
+                    indexer.filter(values, labels, s, t);
+                entities = es.getEntityFactory().entities(result.ids);
+
+                ObjectNode json = toJson (s, t, entities);
+                json.put("total", result.total);
+                json.put("facets", mapper.valueToTree(result.facets));
+                return ok (json);
             }
-            
-            entities = es.getEntityFactory()
-                .entities(s, t, labels.toArray(new String[0]));
+            catch (IOException ex) {
+                Logger.error("Can't filter stitches", ex);
+                return internalServerError
+                    ("Can't filter stitches: "+ex.getMessage());
+            }
+        }
+
+        String[] stitches = labels.toArray(new String[0]);
+        if (ndjson) {
+            return ndjson (Arrays.stream(stitches).map(l -> Label.label(l))
+                           .toArray(Label[]::new));
+        }
+
+        if (token != null) {
+            Long after = cursor (token);
+            if (after == null)
+                return badRequest ("Bogus cursor: "+token);
+            return ok (toJson (t, es.getEntityFactory()
+                               .entitiesAfter(after, t, stitches)));
         }
         
+        entities = es.getEntityFactory().entities(s, t, stitches);
+        
         return ok (toJson (s, t, entities));
     }
     
+    /*
+     * straight from the graph while the version's index is (re)built
+     */
+    Result filterStitches (String key, String value, List<String> labels,
+                           int s, int t) {
+        String[] stitches = labels.toArray(new String[0]);
+        if (key == null)
+            return ok (toJson (s, t, es.getEntityFactory()
+                               .entities(s, t, stitches)));
+
+        Entity[] entities = es.getEntityFactory()
+            .filter(key, "'"+value+"'", stitches);
+        ObjectNode json = toJson
+            (s, t, Arrays.copyOfRange(entities, Math.min(s, entities.length),
+                                      Math.min(s+t, entities.length)));
+        json.put("total", entities.length);
+        return ok (json);
+    }
+    
     public Result entities (String label, Integer skip, Integer top) {
         String uri = routes.Api.entities(label, skip, top).url();
         Logger.debug(uri);
@@ -1126,8 +1304,19 @@ public class Api extends Controller {
             // not id..
         }
         
+        if ("ndjson".equals(request().getQueryString("format")))
+            return ndjson (EntityService.label(label));
+        
         int s = skip != null ? skip : 0;
         int t = top != null ? Math.min(top,1000) : 10;
+
+        String token = request().getQueryString("cursor");
+        if (token != null) {
+            Long after = cursor (token);
+            if (after == null)
+                return badRequest ("Bogus cursor: "+token);
+            return ok (toJson (t, es.entitiesAfter(label, after, t)));
+        }
         
         return ok (toJson (s, t, es.entities(label, s, t)));
     }
@@ -1,12 +1,14 @@
 package serializer;
 
 import java.util.*;
+import java.io.IOException;
 import java.lang.reflect.Array;
 
 import javax.inject.Inject;
 import play.Logger;
 import play.libs.Json;
 
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
@@ -41,6 +43,10 @@ public class DefaultJsonCodec implements JsonCodec, Props {
         }
     }
 
+    public void encode (JsonGenerator gen, Node _node) throws IOException {
+        mapper.writeTree(gen, toJson (_node));
+    }
+
     public JsonNode encodeSimple (CNode node) {
         return toJsonSimple (node._node());
     }
@@ -1,9 +1,15 @@
 package serializer;
 
+import java.io.IOException;
+
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.JsonNode;
+import org.neo4j.graphdb.Node;
 import ncats.stitcher.CNode;
 
 public interface JsonCodec {
     JsonNode encode (CNode node);
     JsonNode encodeSimple (CNode node);
+    // streaming variant of encode; caller holds the transaction
+    void encode (JsonGenerator gen, Node node) throws IOException;
 }
@@ -12,6 +12,7 @@ import play.cache.CacheApi;
 import play.inject.ApplicationLifecycle;
 import play.libs.F;
 
+import org.neo4j.graphdb.Label;
 import ncats.stitcher.*;
 
 @Singleton
@@ -100,20 +101,24 @@ public class EntityService {
     }
     
     public Entity[] entities (String label, int skip, int top) {
-        AuxNodeType type;
-        if (label == null) {
-            type = AuxNodeType.ENTITY;
+        return getEntityFactory().entities(skip, top, label (label));
+    }
+
+    public Entity[] entitiesAfter (String label, long after, int top) {
+        return getEntityFactory().entitiesAfter(after, top, label (label));
+    }
+
+    public static Label label (String label) {
+        if (label == null)
+            return AuxNodeType.ENTITY;
+        
+        try {
+            return AuxNodeType.valueOf(label.toUpperCase());
         }
-        else {
-            try {
-                type = AuxNodeType.valueOf(label.toUpperCase());
-            }
-            catch (Exception ex) {
-                //ex.printStackTrace();
-                //Logger.error("Unknown entity label \""+label+"\"!");
-                return getEntityFactory().entities(skip, top, label);
-            }
+        catch (Exception ex) {
+            //ex.printStackTrace();
+            //Logger.error("Unknown entity label \""+label+"\"!");
+            return Label.label(label);
         }
-        return getEntityFactory().entities(skip, top, type);
     }
 }
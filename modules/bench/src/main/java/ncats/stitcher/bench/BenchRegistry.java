@@ -0,0 +1,59 @@
+package ncats.stitcher.bench;
+
+import java.util.*;
+
+import org.neo4j.graphdb.Transaction;
+
+import ncats.stitcher.*;
+import static ncats.stitcher.StitchKey.*;
+
+/**
+ * Registry over a temporary graph with a small fixed set of stitch
+ * keys; records come from record() so that values overlap enough to
+ * produce large components.
+ */
+public class BenchRegistry extends EntityRegistry {
+    public BenchRegistry (String name) throws Exception {
+        super (GraphDb.createTempDb(name));
+        setDataSource (getDataSourceFactory().register(name));
+    }
+
+    @Override
+    protected void init () {
+        super.init();
+        setIdField ("id");
+        setNameField ("name");
+        add (N_Name, "name");
+        add (N_Name, "synonyms");
+        add (I_CAS, "cas");
+        add (I_UNII, "unii");
+    }
+
+    /*
+     * _register in its own transaction
+     */
+    public Entity registerRecord (Map<String, Object> map) {
+        try (Transaction tx = gdb.beginTx()) {
+            Entity ent = _register (map);
+            tx.success();
+            return ent;
+        }
+    }
+
+    /*
+     * names and codes are drawn from pools of the given size
+     */
+    public static Map<String, Object> record (Random rand, int id,
+                                              int pool) {
+        Map<String, Object> map = new HashMap<>();
+        map.put("id", "BENCH"+id);
+        map.put("name", "compound "+rand.nextInt(pool));
+        map.put("synonyms", new String[]{
+                "synonym "+rand.nextInt(pool),
+                "synonym "+rand.nextInt(pool)
+            });
+        map.put("cas", rand.nextInt(pool)+"-00-"+rand.nextInt(10));
+        map.put("unii", "UNII"+rand.nextInt(4*pool));
+        return map;
+    }
+}
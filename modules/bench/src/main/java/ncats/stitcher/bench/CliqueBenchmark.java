@@ -0,0 +1,53 @@
+package ncats.stitcher.bench;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import ncats.stitcher.Clique;
+import ncats.stitcher.CliqueVisitor;
+import static ncats.stitcher.StitchKey.*;
+
+/**
+ * Clique enumeration over a synthetic hairball: entities drawing
+ * their names and codes from a small pool so that every key yields a
+ * dense, heavily overlapping graph.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class CliqueBenchmark {
+    @Param({"50", "200"})
+    public int size;
+
+    BenchRegistry registry;
+    long[] nodes;
+
+    @Setup
+    public void setup () throws Exception {
+        registry = new BenchRegistry ("_bench");
+        Random rand = new Random (1);
+        nodes = new long[size];
+        for (int i = 0; i < size; ++i)
+            nodes[i] = registry.registerRecord
+                (BenchRegistry.record(rand, i, size/8)).getId();
+    }
+
+    @TearDown
+    public void teardown () {
+        registry.shutdown();
+    }
+
+    @Benchmark
+    public int enumerate () {
+        final int[] count = {0};
+        registry.cliques(nodes, new CliqueVisitor () {
+                public boolean clique (Clique clique) {
+                    ++count[0];
+                    return true;
+                }
+            }, N_Name, I_CAS, I_UNII);
+        return count[0];
+    }
+}
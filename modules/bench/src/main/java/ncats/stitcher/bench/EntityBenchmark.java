@@ -0,0 +1,54 @@
+package ncats.stitcher.bench;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Transaction;
+
+import ncats.stitcher.Entity;
+
+/**
+ * Wrapping nodes as entities, which is what component iteration,
+ * clique enumeration and the api do for every node they touch. Run
+ * with -prof gc to see the allocation rate per wrapper.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class EntityBenchmark {
+    @Param({"1000"})
+    public int size;
+
+    BenchRegistry registry;
+    GraphDatabaseService gdb;
+    long[] nodes;
+
+    @Setup
+    public void setup () throws Exception {
+        registry = new BenchRegistry ("_bench");
+        gdb = registry.getGraphDb().graphDb();
+        Random rand = new Random (1);
+        nodes = new long[size];
+        for (int i = 0; i < size; ++i)
+            nodes[i] = registry.registerRecord
+                (BenchRegistry.record(rand, i, size)).getId();
+    }
+
+    @TearDown
+    public void teardown () {
+        registry.shutdown();
+    }
+
+    @Benchmark
+    public long wrap () {
+        long sum = 0l;
+        try (Transaction tx = gdb.beginTx()) {
+            for (long id : nodes)
+                sum += Entity._getEntity(gdb.getNodeById(id)).created();
+            tx.success();
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,55 @@
+package ncats.stitcher.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import ncats.stitcher.LineTokenizer;
+
+/**
+ * LineTokenizer throughput over a tab delimited file with a few
+ * quoted fields; reports lines per second.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class LineTokenizerBenchmark {
+    static final int LINES = 10000;
+
+    byte[] data;
+
+    @Setup
+    public void setup () {
+        Random rand = new Random (1);
+        StringBuilder sb = new StringBuilder ();
+        sb.append("id\tname\tsynonyms\tcas\tunii\tsmiles\tclass\tnote\n");
+        for (int i = 0; i < LINES; ++i) {
+            sb.append("ID"+i+"\t");
+            sb.append("compound "+rand.nextInt(1000)+"\t");
+            sb.append("\"syn a|syn b\tc|syn "+i+"\"\t");
+            sb.append(rand.nextInt(100000)+"-"+rand.nextInt(100)+"-"
+                      +rand.nextInt(10)+"\t");
+            sb.append(Long.toString(rand.nextLong() & 0xffffffffffl, 36)
+                      .toUpperCase()+"\t");
+            sb.append("CC(=O)OC1=CC=CC=C1C(O)=O\t");
+            sb.append("class "+rand.nextInt(20)+"\t");
+            sb.append("\n");
+        }
+        data = sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINES+1)
+    public int tokenize () throws IOException {
+        LineTokenizer tokenizer = new LineTokenizer ('\t');
+        tokenizer.setInputStream(new ByteArrayInputStream (data));
+        int tokens = 0;
+        while (tokenizer.hasNext())
+            tokens += tokenizer.next().length;
+        return tokens;
+    }
+}
@@ -0,0 +1,43 @@
+package ncats.stitcher.bench;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import ncats.stitcher.Entity;
+
+/**
+ * EntityRegistry._register of one record per transaction against a
+ * fresh temporary graph for each iteration. The value pool controls
+ * how many existing entities each new record stitches to.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RegistryBenchmark {
+    @Param({"100", "10000"})
+    public int pool;
+
+    BenchRegistry registry;
+    Random rand;
+    int id;
+
+    @Setup(Level.Iteration)
+    public void setup () throws Exception {
+        registry = new BenchRegistry ("_bench");
+        rand = new Random (1);
+        id = 0;
+    }
+
+    @TearDown(Level.Iteration)
+    public void teardown () {
+        registry.shutdown();
+    }
+
+    @Benchmark
+    public Entity register () {
+        return registry.registerRecord
+            (BenchRegistry.record(rand, ++id, pool));
+    }
+}
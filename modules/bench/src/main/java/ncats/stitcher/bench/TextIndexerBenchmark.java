@@ -0,0 +1,49 @@
+package ncats.stitcher.bench;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.neo4j.graphdb.Transaction;
+
+import ncats.stitcher.EntityFactory;
+import ncats.stitcher.TextIndexer;
+
+/**
+ * TextIndexer.search over the payloads of registered entities.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class TextIndexerBenchmark {
+    static final int RECORDS = 5000;
+
+    @Param({"compound", "\"synonym 42\"", "UNII1*"})
+    public String query;
+
+    BenchRegistry registry;
+    TextIndexer indexer;
+
+    @Setup
+    public void setup () throws Exception {
+        registry = new BenchRegistry ("_bench");
+        Random rand = new Random (1);
+        for (int i = 0; i < RECORDS; ++i)
+            registry.registerRecord(BenchRegistry.record(rand, i, 1000));
+        indexer = registry.getGraphDb()
+            .getTextIndexer(EntityFactory.TEXT_INDEXER);
+    }
+
+    @TearDown
+    public void teardown () {
+        registry.shutdown();
+    }
+
+    @Benchmark
+    public int search () throws Exception {
+        // matches are resolved to nodes so this needs a transaction
+        try (Transaction tx = registry.getGraphDb().graphDb().beginTx()) {
+            return indexer.search(query, 0, 10).total;
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package ncats.stitcher.bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import ncats.stitcher.graph.UnionFind;
+
+/**
+ * UnionFind.union over random edges and components() over the
+ * resulting forest.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class UnionFindBenchmark {
+    @Param({"10000", "1000000"})
+    public int edges;
+
+    long[] p, q;
+    UnionFind uf;
+
+    @Setup
+    public void setup () {
+        Random rand = new Random (1);
+        p = new long[edges];
+        q = new long[edges];
+        for (int i = 0; i < edges; ++i) {
+            // sparse node ids, as neo4j hands them out
+            p[i] = rand.nextInt(2*edges) * 7l;
+            q[i] = rand.nextInt(2*edges) * 7l;
+        }
+        uf = union ();
+    }
+
+    @Benchmark
+    public UnionFind union () {
+        UnionFind uf = new UnionFind ();
+        for (int i = 0; i < p.length; ++i)
+            uf.union(p[i], q[i]);
+        return uf;
+    }
+
+    @Benchmark
+    public long[][] components () {
+        return uf.components();
+    }
+}
@@ -0,0 +1,43 @@
+package ncats.stitcher.bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import ncats.stitcher.Util;
+
+/**
+ * Util.merge and Util.delta on the kind of string arrays stitch
+ * values are made of (names, codes).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class UtilBenchmark {
+    @Param({"4", "64"})
+    public int size;
+
+    String[] old, val;
+
+    @Setup
+    public void setup () {
+        Random rand = new Random (1);
+        old = new String[size];
+        val = new String[size];
+        for (int i = 0; i < size; ++i) {
+            old[i] = "NAME-"+rand.nextInt(2*size);
+            val[i] = "NAME-"+rand.nextInt(2*size);
+        }
+    }
+
+    @Benchmark
+    public Object merge () {
+        return Util.merge(old, val);
+    }
+
+    @Benchmark
+    public Object delta () {
+        return Util.delta(val, old);
+    }
+}
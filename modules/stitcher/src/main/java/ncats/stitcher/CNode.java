@@ -9,6 +9,7 @@ import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
 import org.neo4j.graphdb.Direction;
 import org.neo4j.graphdb.Relationship;
 import org.neo4j.graphdb.Label;
@@ -18,7 +19,6 @@ import org.neo4j.graphdb.index.RelationshipIndex;
 import org.neo4j.graphdb.index.IndexHits;
 import org.neo4j.graphdb.Transaction;
 import org.neo4j.graphdb.GraphDatabaseService;
-import org.neo4j.index.lucene.LuceneTimeline;
 import org.neo4j.index.lucene.TimelineIndex;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -45,7 +45,8 @@ public class CNode implements Props, Comparable<CNode> {
         "smiles"
     };
 
-    protected ObjectMapper mapper = new ObjectMapper ();
+    // thread-safe once configured, so one for all nodes
+    protected static final ObjectMapper mapper = new ObjectMapper ();
     protected final Node _node;
     protected GraphDatabaseService gdb;
     protected TimelineIndex<Node> timeline;
@@ -60,10 +61,13 @@ public class CNode implements Props, Comparable<CNode> {
                 ("Entity can't have null backing node!");
         
         gdb = node.getGraphDatabase();
-        dsf = new DataSourceFactory (GraphDb.getInstance(gdb));
-        
-        Index<Node> index = gdb.index().forNodes(NODE_TIMELINE);
-        timeline = new LuceneTimeline (gdb, index);
+        GraphDb graphDb = GraphDb.getInstance(gdb);
+        if (graphDb == null)
+            throw new IllegalArgumentException
+                ("Node "+node.getId()+" doesn't belong to any GraphDb!");
+        // these are shared, so wrapping a node costs next to nothing
+        dsf = graphDb.getDataSourceFactory();
+        timeline = graphDb.getTimeline();
         
         if (node.hasProperty(CREATED)) {
             Object data = node.getProperty(CREATED);
@@ -406,6 +410,9 @@ public class CNode implements Props, Comparable<CNode> {
                     }
                 });
 
+        RootCache cache = rootCache (gdb);
+        if (cache != null)
+            cache.deleted();
         if (newRoot.get() != 0l) {
             for (Node n : children)
                 n.setProperty(PARENT, newRoot.get());
@@ -417,14 +424,53 @@ public class CNode implements Props, Comparable<CNode> {
         node.delete();
     }
 
+    static RootCache rootCache (GraphDatabaseService g) {
+        GraphDb graphDb = GraphDb.getInstance(g);
+        return graphDb != null ? graphDb.getRootCache() : null;
+    }
+
     protected static Node getRoot (Node node) {
+        return getRoot (node, false);
+    }
+
+    /*
+     * with compress every node on the path is pointed straight at the
+     * root, so this must be within a write transaction
+     */
+    protected static Node getRoot (Node node, boolean compress) {
         GraphDatabaseService g = node.getGraphDatabase();
-        Long id = (Long)node.getProperty(PARENT);
-        while (id != node.getId()) {
-            node = g.getNodeById(id);
-            id = (Long)node.getProperty(PARENT);
+        RootCache cache = rootCache (g);
+
+        Node n = node;
+        if (cache != null) {
+            long anc = cache.get(node.getId());
+            if (anc >= 0l) {
+                try {
+                    n = g.getNodeById(anc);
+                }
+                catch (NotFoundException ex) {
+                    cache.clear();
+                }
+            }
         }
-        return node;
+
+        Long id = (Long)n.getProperty(PARENT);
+        while (id != n.getId()) {
+            n = g.getNodeById(id);
+            id = (Long)n.getProperty(PARENT);
+        }
+        Node root = n;
+
+        if (compress) {
+            for (n = node; (id = (Long)n.getProperty(PARENT)) != root.getId()
+                     && id != n.getId(); n = g.getNodeById(id))
+                n.setProperty(PARENT, root.getId());
+        }
+
+        if (cache != null)
+            cache.put(node.getId(), root.getId());
+
+        return root;
     }
 
     protected static boolean find (Node p, Node q) {
@@ -451,8 +497,11 @@ public class CNode implements Props, Comparable<CNode> {
     }
 
     protected static Node union (Node p, Node q) {
-        Node P = getRoot (p);
-        Node Q = getRoot (q);
+        RootCache cache = rootCache (p.getGraphDatabase());
+        if (cache != null)
+            cache.linked();
+        Node P = getRoot (p, true);
+        Node Q = getRoot (q, true);
 
         Node root = null;
         int rankp = (Integer)P.getProperty(RANK);
@@ -5,6 +5,7 @@ import java.util.*;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
 
 import java.util.logging.Logger;
 import java.util.logging.Level;
@@ -34,6 +35,12 @@ import org.apache.lucene.document.Field;
 import org.apache.lucene.document.StringField;
 import org.apache.lucene.document.Document;
 
+/**
+ * Persistent cache; new cache directories are backed by a
+ * MappedCache log unless the system property ncats.stitcher.cache is
+ * set to "lucene". Existing directories keep whichever store they were
+ * created with.
+ */
 public class CacheFactory
     extends AbstractCacheWriter implements CacheEntryFactory {
     
@@ -42,13 +49,17 @@ public class CacheFactory
 
     static final String KEY = "__key";
     static final String VALUE = "__value";
+    static final String STORE = "ncats.stitcher.cache";
 
     static final Map<File, CacheFactory> CACHES =
         new ConcurrentHashMap<File, CacheFactory>();
 
     protected final File dir;
     protected final Ehcache cache;
+    protected final MappedCache mapped;
     protected final AtomicLong refs = new AtomicLong (1l);
+    protected final LongAdder hits = new LongAdder ();
+    protected final LongAdder misses = new LongAdder ();
     protected IndexWriter indexWriter;
     protected DirectoryReader indexReader;
     protected IndexSearcher indexSearcher;
@@ -59,8 +70,14 @@ public class CacheFactory
             throw new IllegalArgumentException (dir+" is not a directory!");
         
         this.dir = dir;
-        String name = getCacheName ();
+        if (useMappedCache (dir)) {
+            mapped = new MappedCache (dir);
+            cache = null;
+            return;
+        }
+        mapped = null;
         
+        String name = getCacheName ();
         CacheManager manager = CacheManager.getInstance();
         /*
         CacheConfiguration config = new CacheConfiguration ();
@@ -76,6 +93,17 @@ public class CacheFactory
         cache.registerCacheWriter(this);        
     }
 
+    static boolean useMappedCache (File dir) {
+        if (MappedCache.exists(dir))
+            return true;
+
+        String[] files = dir.list();
+        if (files != null && files.length > 0)
+            return false; // existing lucene cache
+        
+        return !"lucene".equalsIgnoreCase(System.getProperty(STORE));
+    }
+
     protected String getCacheName () throws IOException {
         return dir.getCanonicalFile().toURI().toString();
     }
@@ -113,8 +141,24 @@ public class CacheFactory
     }
 
     public <T> T getOrElse (Object key, Callable<T> callable) {
+        if (mapped != null) {
+            T value = (T)get (key);
+            if (value == null) {
+                try {
+                    value = callable.call();
+                }
+                catch (Exception ex) {
+                    logger.log(Level.SEVERE, "Can't cache element", ex);
+                }
+                if (value != null)
+                    put (key, value);
+            }
+            return value;
+        }
+        
         Element elm = cache.get(key);
         if (elm == null || elm.getObjectValue() == null) {
+            misses.increment();
             try {
                 T value = callable.call();
                 if (value != null) {
@@ -125,23 +169,75 @@ public class CacheFactory
                 logger.log(Level.SEVERE, "Can't cache element", ex);
             }
         }
+        else {
+            hits.increment();
+        }
         return elm != null ? (T)elm.getObjectValue() : null;
     }
 
     public void put (Object key, Object value) {
-        cache.putWithWriter(new Element (key, value));
+        if (mapped != null) {
+            try {
+                mapped.put(key, value);
+            }
+            catch (Exception ex) {
+                logger.log(Level.SEVERE, "Can't write cache element: key="
+                           +key+" value="+value, ex);
+            }
+        }
+        else {
+            cache.putWithWriter(new Element (key, value));
+        }
     }
     
     public Object get (Object key) {
+        if (mapped != null) {
+            try {
+                return mapped.get(key);
+            }
+            catch (Exception ex) {
+                logger.log(Level.SEVERE, "Can't read cache element: key="
+                           +key, ex);
+                return null;
+            }
+        }
+        
         Element elm = cache.get(key);
-        return elm != null ? elm.getObjectValue() : null;
+        Object value = elm != null ? elm.getObjectValue() : null;
+        if (value != null)
+            hits.increment();
+        else
+            misses.increment();
+        return value;
     }
 
     public void remove (Object key) {
-        cache.removeWithWriter(key);
+        if (mapped != null) {
+            try {
+                mapped.remove(key);
+            }
+            catch (IOException ex) {
+                logger.log(Level.SEVERE, "Can't remove cache element: key="
+                           +key, ex);
+            }
+        }
+        else {
+            cache.removeWithWriter(key);
+        }
+    }
+
+    public long getHits () {
+        return mapped != null ? mapped.getHits() : hits.sum();
+    }
+    
+    public long getMisses () {
+        return mapped != null ? mapped.getMisses() : misses.sum();
     }
 
     public int size () {
+        if (mapped != null)
+            return mapped.size();
+        
         try {
             return indexWriter.numDocs();
         }
@@ -153,12 +249,27 @@ public class CacheFactory
 
     public void shutdown () {
         if (refs.decrementAndGet() <= 1l) {
-            CacheManager manager = cache.getCacheManager();
-            manager.removeCache(cache.getName());
+            if (mapped != null) {
+                close (mapped);
+            }
+            else {
+                CacheManager manager = cache.getCacheManager();
+                manager.removeCache(cache.getName());
+            }
             CACHES.remove(dir);
         }
     }
 
+    static void close (MappedCache mapped) {
+        try {
+            mapped.close();
+        }
+        catch (IOException ex) {
+            logger.log(Level.SEVERE, "Can't close cache "
+                       +mapped.getFile(), ex);
+        }
+    }
+
     static String getKey (Serializable key) throws IOException {
         return Util.sha1hex(Util.serialize(key));
     }
@@ -289,6 +400,10 @@ public class CacheFactory
                 // do shutdown work here
                 public void run () {
                     for (CacheFactory cf : CACHES.values()) {
+                        if (cf.mapped != null) {
+                            close (cf.mapped);
+                            continue;
+                        }
                         cf.cache.getCacheManager()
                             .removeCache(cf.cache.getName());
                         logger.info
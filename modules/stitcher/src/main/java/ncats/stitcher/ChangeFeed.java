@@ -0,0 +1,217 @@
+package ncats.stitcher;
+
+import java.io.*;
+import java.util.*;
+import java.util.logging.Logger;
+
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.event.PropertyEntry;
+import org.neo4j.graphdb.event.TransactionData;
+
+/**
+ * Roots of the components touched by committed transactions and not
+ * yet re-stitched. Any change to an entity node (creation, properties,
+ * stitch keys) marks its component as dirty; deletes show up through
+ * the children re-parented by CNode._delete. Changes are appended to a
+ * log as "+time\tids" and acknowledged as "-time\tids", and the log is
+ * compacted to the pending set at checkpoints (see compact).
+ *
+ * Recording is off unless enabled (setEnabled or the system property
+ * ncats.stitcher.changes=true), since on a full load every component is
+ * dirty anyway; the log isn't read until it's needed.
+ */
+public class ChangeFeed implements AutoCloseable {
+    static final Logger logger = Logger.getLogger(ChangeFeed.class.getName());
+
+    public static final String ENABLED = "ncats.stitcher.changes";
+
+    static final Set<String> KEYS = new HashSet<>();
+    static {
+        for (StitchKey key : StitchKey.values())
+            KEYS.add(key.name());
+    }
+
+    final File file;
+    final Map<Long, Long> pending = new HashMap<>(); // root -> last change
+    final ThreadLocal<boolean[]> muted =
+        ThreadLocal.withInitial(() -> new boolean[1]);
+    volatile boolean enabled = Boolean.getBoolean(ENABLED);
+    PrintStream ps; // null until the log is read
+
+    public ChangeFeed (File file) {
+        this.file = file;
+    }
+
+    /*
+     * read the log and open it for appending
+     */
+    synchronized void open () {
+        if (ps != null)
+            return;
+
+        try {
+            if (file.exists()) {
+                try (BufferedReader br = new BufferedReader
+                     (new FileReader (file))) {
+                    for (String line; (line = br.readLine()) != null; ) {
+                        try {
+                            replay (line);
+                        }
+                        catch (RuntimeException ex) { // partial line
+                            logger.warning(file+": bogus change \""
+                                           +line+"\"");
+                        }
+                    }
+                }
+            }
+            ps = new PrintStream (new FileOutputStream (file, true), false);
+        }
+        catch (IOException ex) {
+            throw new RuntimeException ("Can't open change log "+file, ex);
+        }
+
+        if (!pending.isEmpty())
+            logger.info(file+": "+pending.size()+" dirty component(s)");
+    }
+
+    /*
+     * rewrite the log as just the pending changes
+     */
+    public synchronized void compact () throws IOException {
+        open ();
+        File tmp = new File (file.getPath()+".tmp");
+        try (PrintStream out = new PrintStream (new FileOutputStream (tmp))) {
+            for (Map.Entry<Long, Long> me : pending.entrySet())
+                out.println("+"+me.getValue()+"\t"+me.getKey());
+        }
+        ps.close();
+        boolean renamed = tmp.renameTo(file);
+        ps = new PrintStream (new FileOutputStream (file, true), false);
+        if (!renamed)
+            throw new IOException ("Can't rename "+tmp+" to "+file);
+    }
+
+    void replay (String line) {
+        int pos = line.indexOf('\t');
+        long time = Long.parseLong(line.substring(1, pos));
+        for (String id : line.substring(pos+1).split(",")) {
+            Long root = Long.parseLong(id);
+            if (line.charAt(0) == '+')
+                pending.merge(root, time, Math::max);
+            else if (line.charAt(0) == '-')
+                pending.computeIfPresent
+                    (root, (k, t) -> t <= time ? null : t);
+            else
+                throw new IllegalArgumentException ("Bogus change: "+line);
+        }
+    }
+
+    /*
+     * called within the committing transaction; returns the roots of
+     * the touched components or null
+     */
+    long[] touched (TransactionData data) {
+        if (!enabled || muted.get()[0])
+            return null;
+
+        // each node once, however many of its properties changed
+        Set<Node> nodes = new HashSet<>();
+        for (Node n : data.createdNodes())
+            nodes.add(n);
+        for (PropertyEntry<Node> e : data.assignedNodeProperties())
+            nodes.add(e.entity());
+        for (PropertyEntry<Node> e : data.removedNodeProperties())
+            nodes.add(e.entity());
+        for (Relationship rel : data.createdRelationships()) {
+            if (KEYS.contains(rel.getType().name())) {
+                nodes.add(rel.getStartNode());
+                nodes.add(rel.getEndNode());
+            }
+        }
+        for (Relationship rel : data.deletedRelationships()) {
+            if (KEYS.contains(rel.getType().name())) {
+                nodes.add(rel.getStartNode());
+                nodes.add(rel.getEndNode());
+            }
+        }
+
+        Set<Long> roots = new HashSet<>();
+        for (Node n : nodes) {
+            if (!data.isDeleted(n) && n.hasLabel(AuxNodeType.ENTITY))
+                roots.add(CNode.getRoot(n).getId());
+        }
+
+        return roots.isEmpty() ? null
+            : Util.toPrimitive(roots.toArray(new Long[0]));
+    }
+
+    public synchronized void changed (long... roots) {
+        open ();
+        long time = System.currentTimeMillis();
+        for (long r : roots)
+            pending.merge(r, time, Math::max);
+        ps.println("+"+time+"\t"+join (roots));
+        ps.flush();
+    }
+
+    /*
+     * the component was re-stitched as of its change at time; later
+     * changes keep it dirty
+     */
+    public synchronized void acknowledge (long root, long time) {
+        open ();
+        Long t = pending.get(root);
+        if (t != null && t <= time) {
+            pending.remove(root);
+            ps.println("-"+time+"\t"+root);
+            ps.flush();
+        }
+    }
+
+    static String join (long[] ids) {
+        StringBuilder sb = new StringBuilder ();
+        for (int i = 0; i < ids.length; ++i) {
+            if (i > 0) sb.append(',');
+            sb.append(ids[i]);
+        }
+        return sb.toString();
+    }
+
+    /*
+     * root -> time of its last change
+     */
+    public synchronized Map<Long, Long> pending () {
+        open ();
+        return new HashMap<>(pending);
+    }
+    public synchronized int size () {
+        open ();
+        return pending.size();
+    }
+
+    /*
+     * record commits from now on; e.g., before re-registering a data
+     * source to be re-stitched with CompoundStitcher.restitchChanged
+     */
+    public void setEnabled (boolean enabled) {
+        if (enabled)
+            open ();
+        this.enabled = enabled;
+    }
+    public boolean isEnabled () { return enabled; }
+
+    /*
+     * changes committed by this thread while muted (e.g., writing
+     * stitches) aren't recorded
+     */
+    public void mute (boolean mute) {
+        muted.get()[0] = mute;
+    }
+
+    public File getFile () { return file; }
+    public synchronized void close () {
+        if (ps != null)
+            ps.close();
+    }
+}
@@ -0,0 +1,249 @@
+package ncats.stitcher;
+
+import java.util.*;
+import java.util.function.BiConsumer;
+import java.util.logging.Logger;
+
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.Transaction;
+
+/**
+ * Immutable in-memory copy of the stitches within a component. Members
+ * get dense int ids (their position in entities(), i.e., sorted by node
+ * id) and the edges of each stitch key are kept as CSR adjacency over
+ * those ids with interned values, so stats, values and stitches are
+ * answered without going back to the graph. Everything is loaded in one
+ * transaction and nothing changes afterwards, so a snapshot can be
+ * shared between threads. Value counts are over the members incident to
+ * an edge with that value rather than a lookup of the node index; the
+ * two only differ for members that carry a value without being stitched
+ * on it. nodes(key, value) still looks the value up in the node index
+ * just as ComponentImpl does.
+ */
+public class ComponentSnapshot extends EntityFactory.ComponentImpl
+    implements Props {
+    static final Logger logger =
+        Logger.getLogger(ComponentSnapshot.class.getName());
+
+    /*
+     * edges of a single stitch key; a relationship is stored at both of
+     * its ends and out marks the copy at its start node
+     */
+    static class Edges {
+        final int[] start;
+        int[] other = new int[16];
+        int[] value = new int[16];
+        final BitSet out = new BitSet ();
+        int size;
+
+        // value -> # relationships and # incident members
+        final Map<Integer, Integer> relCounts = new HashMap<>();
+        final Map<Integer, Integer> nodeCounts = new HashMap<>();
+
+        Edges (int nodes) {
+            start = new int[nodes+1];
+        }
+
+        void add (int j, int v, boolean outgoing) {
+            if (size == other.length) {
+                other = Arrays.copyOf(other, size*2);
+                value = Arrays.copyOf(value, size*2);
+            }
+            other[size] = j;
+            value[size] = v;
+            out.set(size, outgoing);
+            ++size;
+        }
+
+        void done (int nodes) {
+            start[nodes] = size;
+            other = Arrays.copyOf(other, size);
+            value = Arrays.copyOf(value, size);
+
+            int[] last = new int[0];
+            for (int i = 0; i < nodes; ++i) {
+                for (int e = start[i]; e < start[i+1]; ++e) {
+                    int v = value[e];
+                    if (v < 0)
+                        continue;
+                    if (out.get(e))
+                        relCounts.merge(v, 1, Integer::sum);
+                    if (v >= last.length) {
+                        int len = last.length;
+                        last = Arrays.copyOf(last, Math.max(v+1, 2*len));
+                        Arrays.fill(last, len, last.length, -1);
+                    }
+                    if (last[v] != i) {
+                        nodeCounts.merge(v, 1, Integer::sum);
+                        last[v] = i;
+                    }
+                }
+            }
+        }
+    }
+
+    /*
+     * stitch values can be arrays
+     */
+    static class Value {
+        final Object value;
+        Value (Object value) {
+            this.value = value;
+        }
+        public int hashCode () {
+            return Arrays.deepHashCode(new Object[]{value});
+        }
+        public boolean equals (Object obj) {
+            return obj instanceof Value
+                && Objects.deepEquals(value, ((Value)obj).value);
+        }
+    }
+
+    final long[] ids;
+    final Edges[] edges = new Edges[StitchKey.values().length];
+    final Object[] values;
+    final Map<Value, Integer> interned = new HashMap<>();
+
+    ComponentSnapshot (Node node) {
+        super (node);
+
+        ids = Util.toArray(nodes);
+        int n = ids.length;
+        for (StitchKey key : Entity.KEYS)
+            edges[key.ordinal()] = new Edges (n);
+
+        List<Object> values = new ArrayList<>();
+        try (Transaction tx = gdb.beginTx()) {
+            for (int i = 0; i < n; ++i) {
+                for (Edges e : edges)
+                    if (e != null) e.start[i] = e.size;
+
+                Node u = entities[i]._node();
+                for (Relationship rel
+                         : u.getRelationships(Direction.BOTH, Entity.KEYS)) {
+                    int j = Arrays.binarySearch
+                        (ids, rel.getOtherNodeId(u.getId()));
+                    if (j < 0)
+                        continue;
+
+                    int v = -1;
+                    Object value = rel.getProperty(VALUE, null);
+                    if (value != null) {
+                        Value k = new Value (value);
+                        Integer id = interned.get(k);
+                        if (id == null) {
+                            interned.put(k, id = values.size());
+                            values.add(value);
+                        }
+                        v = id;
+                    }
+
+                    StitchKey key = StitchKey.valueOf(rel.getType().name());
+                    edges[key.ordinal()].add
+                        (j, v, rel.getStartNodeId() == u.getId());
+                }
+            }
+            tx.success();
+        }
+
+        for (Edges e : edges)
+            if (e != null) e.done(n);
+        this.values = values.toArray();
+    }
+
+    Edges edges (StitchKey key) {
+        Edges e = edges[key.ordinal()];
+        return e != null ? e : new Edges (0);
+    }
+
+    Map<Object, Integer> counts (Map<Integer, Integer> counts) {
+        Map<Object, Integer> map = new HashMap<>();
+        for (Map.Entry<Integer, Integer> me : counts.entrySet())
+            map.put(values[me.getKey()], me.getValue());
+        return map;
+    }
+
+    @Override
+    public Map<Object, Integer> stats (StitchKey key) {
+        return counts (edges(key).relCounts);
+    }
+
+    @Override
+    public Map<Object, Integer> values (StitchKey key) {
+        return counts (edges(key).nodeCounts);
+    }
+
+    @Override
+    public void stitches (BiConsumer<Entity, Entity> consumer,
+                          StitchKey... keys) {
+        for (int i = 0; i < ids.length; ++i) {
+            for (StitchKey key : keys) {
+                Edges e = edges (key);
+                if (e.start.length == 1)
+                    continue;
+                Set<Integer> others = new HashSet<>();
+                for (int k = e.start[i]; k < e.start[i+1]; ++k) {
+                    int j = e.other[k];
+                    // only pairs with a member seen before
+                    if (j < i && others.add(j)) {
+                        if (e.out.get(k))
+                            consumer.accept(entities[i], entities[j]);
+                        else
+                            consumer.accept(entities[j], entities[i]);
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public void stitches (StitchVisitor visitor, StitchKey... keys) {
+        if (keys == null || keys.length == 0)
+            keys = Entity.KEYS;
+
+        for (int i = 0; i < ids.length; ++i) {
+            for (StitchKey key : keys) {
+                Edges e = edges (key);
+                if (e.start.length == 1)
+                    continue;
+                for (int k = e.start[i]; k < e.start[i+1]; ++k) {
+                    int j = e.other[k];
+                    if (j < i) {
+                        visitor.visit(entities[i], entities[j],
+                                      values (i, j, keys));
+                    }
+                }
+            }
+        }
+    }
+
+    /*
+     * all stitch values between members i and j
+     */
+    Map<StitchKey, Object> values (int i, int j, StitchKey... keys) {
+        Map<StitchKey, Object> values = new TreeMap<>();
+        for (StitchKey key : keys) {
+            Edges e = edges (key);
+            if (e.start.length == 1)
+                continue;
+            for (int k = e.start[i]; k < e.start[i+1]; ++k) {
+                if (e.other[k] == j && e.value[k] >= 0) {
+                    Object v = this.values[e.value[k]];
+                    Object val = values.get(key);
+                    values.put(key, val == null ? v : Util.merge(val, v));
+                }
+            }
+        }
+        return values;
+    }
+
+    public String toString () {
+        int size = 0;
+        for (Edges e : edges)
+            if (e != null) size += e.size;
+        return getClass().getName()+"{id="+id+",size="+ids.length
+            +",edges="+size+",values="+values.length+"}";
+    }
+}
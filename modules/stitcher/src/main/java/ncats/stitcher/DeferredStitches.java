@@ -0,0 +1,247 @@
+package ncats.stitcher;
+
+import java.util.*;
+import java.util.logging.Logger;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.index.Index;
+import org.neo4j.graphdb.index.IndexHits;
+import org.neo4j.graphdb.index.RelationshipIndex;
+
+import ncats.stitcher.graph.LongIntMap;
+
+/**
+ * Collects (stitch key, value) -> node ids during a load instead of
+ * stitching each value as it's registered. flush then creates the
+ * same edges Entity.stitch would have, one value group at a time: the
+ * value index is consulted once per group (for nodes from earlier
+ * loads) and the component/stats nodes are updated once per member
+ * rather than once per edge, which is what makes frequent values
+ * (common names, salts) so expensive otherwise. Transactions are
+ * committed every GROUPS_PER_TX groups or WRITES_PER_TX edges,
+ * whichever comes first, so a frequent value's group is split across as
+ * many transactions as its O(n^2) edges need.
+ */
+public class DeferredStitches implements Props {
+    static final Logger logger =
+        Logger.getLogger(DeferredStitches.class.getName());
+
+    static final int GROUPS_PER_TX = 256;
+    static final int WRITES_PER_TX = 10000;
+
+    /*
+     * the current transaction, committed and renewed as it fills up;
+     * nodes stay usable across the commits
+     */
+    static class Writer implements AutoCloseable {
+        final GraphDatabaseService gdb;
+        Transaction tx;
+        int groups, writes;
+
+        Writer (GraphDatabaseService gdb) {
+            this.gdb = gdb;
+            tx = gdb.beginTx();
+        }
+
+        void group () {
+            if (++groups >= GROUPS_PER_TX)
+                commit ();
+        }
+
+        void wrote () {
+            if (++writes >= WRITES_PER_TX)
+                commit ();
+        }
+
+        void commit () {
+            tx.success();
+            tx.close();
+            tx = gdb.beginTx();
+            groups = writes = 0;
+        }
+
+        void success () { tx.success(); }
+        public void close () { tx.close(); }
+    }
+
+    static class Group {
+        long[] nodes = new long[2];
+        int[] seqs = new int[2];
+        String[] names = new String[2];
+        int size;
+
+        void add (long node, int seq, String name) {
+            if (size > 0 && nodes[size-1] == node)
+                return; // same entity, same value
+
+            if (size == nodes.length) {
+                nodes = Arrays.copyOf(nodes, size*2);
+                seqs = Arrays.copyOf(seqs, size*2);
+                names = Arrays.copyOf(names, size*2);
+            }
+            nodes[size] = node;
+            seqs[size] = seq;
+            names[size] = name;
+            ++size;
+        }
+    }
+
+    final EnumMap<StitchKey, Map<Object, Group>> groups =
+        new EnumMap<>(StitchKey.class);
+    // node -> sequence at which its values for the key were removed
+    final EnumMap<StitchKey, LongIntMap> cleared =
+        new EnumMap<>(StitchKey.class);
+    int seq;
+
+    public DeferredStitches () {
+    }
+
+    public void add (Node node, StitchKey key, Object value,
+                     Map<String, Object> attrs) {
+        Map<Object, Group> values = groups.get(key);
+        if (values == null)
+            groups.put(key, values = new LinkedHashMap<>());
+
+        Group g = values.get(value);
+        if (g == null)
+            values.put(value, g = new Group ());
+
+        g.add(node.getId(), ++seq,
+              attrs != null ? (String)attrs.get(NAME) : null);
+    }
+
+    /*
+     * drop all values for key added so far for this node
+     */
+    public void remove (Node node, StitchKey key) {
+        LongIntMap nodes = cleared.get(key);
+        if (nodes == null)
+            cleared.put(key, nodes = new LongIntMap ());
+        nodes.put(node.getId(), ++seq);
+    }
+
+    public int size () { return seq; }
+    public boolean isEmpty () { return groups.isEmpty(); }
+
+    public void clear () {
+        groups.clear();
+        cleared.clear();
+        seq = 0;
+    }
+
+    /*
+     * create all pending stitches; returns the number of edges
+     */
+    public long flush (GraphDatabaseService gdb) {
+        long edges = 0l;
+        int ngroups = 0;
+        try (Writer w = new Writer (gdb)) {
+            for (Map.Entry<StitchKey, Map<Object, Group>> me
+                     : groups.entrySet()) {
+                StitchKey key = me.getKey();
+                LongIntMap removed = cleared.get(key);
+                for (Map.Entry<Object, Group> ve
+                         : me.getValue().entrySet()) {
+                    edges += stitch (w, key, ve.getKey(),
+                                     ve.getValue(), removed);
+                    ++ngroups;
+                    w.group();
+                }
+            }
+            w.success();
+        }
+
+        logger.info("$$$ "+edges+" edge(s) created for "+ngroups
+                    +" deferred stitch value(s)");
+        clear ();
+
+        return edges;
+    }
+
+    long stitch (Writer w, StitchKey key, Object value,
+                 Group g, LongIntMap removed) {
+        GraphDatabaseService gdb = w.gdb;
+        List<Node> nodes = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        LongIntMap members = new LongIntMap (g.size);
+        for (int i = 0; i < g.size; ++i) {
+            if (removed != null && removed.get(g.nodes[i]) > g.seqs[i])
+                continue;
+            if (members.containsKey(g.nodes[i]))
+                continue;
+            try {
+                nodes.add(gdb.getNodeById(g.nodes[i]));
+            }
+            catch (NotFoundException ex) {
+                continue; // its transaction was rolled back
+            }
+            members.put(g.nodes[i], names.size());
+            names.add(g.names[i]);
+        }
+
+        if (nodes.isEmpty())
+            return 0l;
+
+        Node first = nodes.get(0);
+        Index<Node> index = Entity._nodeIndex(first);
+        RelationshipIndex relindx = Entity._relationshipIndex(first);
+
+        // nodes with this value from earlier loads
+        List<Node> prior = new ArrayList<>();
+        try (IndexHits<Node> hits = index.get(key.name(), value)) {
+            for (Node n : hits)
+                if (!members.containsKey(n.getId()))
+                    prior.add(n);
+        }
+
+        long edges = 0l;
+        Map<String, Object> attrs = new TreeMap<>();
+        for (int i = 0; i < nodes.size(); ++i) {
+            Node node = nodes.get(i);
+            Object source = node.getProperty(SOURCE);
+            attrs.clear();
+            if (names.get(i) != null)
+                attrs.put(NAME, names.get(i));
+
+            // same edges (and direction) as registering one at a time
+            for (Node n : prior) {
+                Entity.link(relindx, node, source, n, key, value, attrs);
+                ++edges;
+                w.wrote();
+            }
+            for (int j = 0; j < i; ++j) {
+                Entity.link(relindx, node, source, nodes.get(j),
+                            key, value, attrs);
+                ++edges;
+                w.wrote();
+            }
+        }
+
+        // one merge per member is enough to join the components and
+        // the value only needs to be recorded once
+        Node root = prior.isEmpty() ? first : prior.get(0);
+        Node stats = null;
+        for (Node n : prior) {
+            if (!n.equals(root)) {
+                stats = Entity.merge(root, n);
+                w.wrote();
+            }
+        }
+        for (Node n : nodes) {
+            if (!n.equals(root)) {
+                stats = Entity.merge(root, n);
+                w.wrote();
+            }
+        }
+        if (stats != null)
+            Entity.updateStatsNode(stats, key, value, (int)edges);
+
+        if (edges > 0)
+            logger.info(key+":\""+value+"\" => "+(prior.size()+nodes.size()));
+
+        return edges;
+    }
+}
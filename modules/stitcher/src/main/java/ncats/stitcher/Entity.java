@@ -197,45 +197,83 @@ public class Entity extends CNode {
             }
         }
 
+        /*
+         * visits a triple (n, m) for every pair of entities in the
+         * start's component with an outgoing edge n -> m of keys (any
+         * key if none given); each triple carries every stitch between
+         * n and m. the component is walked from its root along member
+         * edges, so this is linear in the component's edges. members
+         * the walk can't reach (e.g., a bridging edge was deleted but
+         * the union-find still has them) leave it short of the root's
+         * rank, in which case they're found by their root as before,
+         * at the cost of a scan over all entities.
+         */
         public void _traverse (EntityVisitor visitor, StitchKey... keys) {
-            StringBuilder query = new StringBuilder 
-                ("match (n:"+AuxNodeType.ENTITY+")-[");
-            if (keys != null && keys.length > 0) {
-                query.append(":");
-                for (int i = 0; i < keys.length; ++i) {
-                    if (i > 0) query.append("|"); // OR'ed
-                    query.append("`"+keys[i]+"`");
-                }
-            }
-            query.append("]->(m:"+AuxNodeType.ENTITY+") return distinct n,m");
+            Set<String> types = new HashSet<>();
+            for (StitchKey k : keys != null && keys.length > 0 ? keys : KEYS)
+                types.add(k.name());
 
             Node root = getRoot (start._node);
-            try (Result result = gdb.execute(query.toString())) {
-                while (result.hasNext()) {
-                    Map<String, Object> row = result.next();
-                    Node n = (Node)row.get("n");
-                    Node m = (Node)row.get("m");
-                    if (root.equals(getRoot (n)) || root.equals(getRoot (m))) {
-                        Triple triple = new Triple (n, m);
-                        for (Relationship rel : n.getRelationships
-                                 (Direction.BOTH, KEYS)) {
-                            Node xn = rel.getOtherNode(n);
-                            if (xn.equals(m)) {
-                                StitchKey key = 
-                                    StitchKey.valueOf(rel.getType().name());
-                                triple.add(key, rel.getProperty(VALUE), 
-                                           rel.getStartNode().getId() 
-                                           != triple.source());
-                            }
-                        }
-
-                        if (!visitor.visit(this, triple))
+            visited.clear();
+            if (!walk (root, types, visitor))
+                return;
+
+            Integer rank = (Integer)root.getProperty(RANK, null);
+            if (rank == null || rank != visited.size()) {
+                try (ResourceIterator<Node> it =
+                     gdb.findNodes(AuxNodeType.ENTITY)) {
+                    while (it.hasNext()) {
+                        Node n = it.next();
+                        if (!visited.contains(n.getId())
+                            && root.equals(getRoot (n))
+                            && !walk (n, types, visitor))
                             return;
                     }
                 }
             }
         }
 
+        /*
+         * breadth-first from node over entities not yet visited;
+         * returns false if the visitor stopped
+         */
+        boolean walk (Node node, Set<String> types, EntityVisitor visitor) {
+            LinkedList<Node> queue = new LinkedList<>();
+            queue.add(node);
+            visited.add(node.getId());
+            while (!queue.isEmpty()) {
+                Node n = queue.poll();
+                Map<Node, Triple> neighbors = new LinkedHashMap<>();
+                Set<Node> out = new HashSet<>();
+                for (Relationship rel : n.getRelationships
+                         (Direction.BOTH, KEYS)) {
+                    Node xn = rel.getOtherNode(n);
+                    if (!xn.hasLabel(AuxNodeType.ENTITY))
+                        continue;
+                    
+                    Triple triple = neighbors.get(xn);
+                    if (triple == null)
+                        neighbors.put(xn, triple = new Triple (n, xn));
+                    String type = rel.getType().name();
+                    boolean outgoing = rel.getStartNode().equals(n);
+                    triple.add(StitchKey.valueOf(type),
+                               rel.getProperty(VALUE), !outgoing);
+                    if (outgoing && types.contains(type))
+                        out.add(xn);
+                    
+                    if (visited.add(xn.getId()))
+                        queue.add(xn);
+                }
+
+                for (Map.Entry<Node, Triple> me : neighbors.entrySet()) {
+                    if (out.contains(me.getKey())
+                        && !visitor.visit(this, me.getValue()))
+                        return false;
+                }
+            }
+            return true;
+        }
+
         public void traverse (EntityVisitor visitor, StitchKey... keys) {
             try (Transaction tx = gdb.beginTx()) {
                 _traverse (visitor, keys);
@@ -245,6 +283,7 @@ public class Entity extends CNode {
     }
     
     protected EnumSet<StitchKey> stitches = EnumSet.noneOf(StitchKey.class);
+    protected DeferredStitches deferred;
     
     public static Entity getEntity (Node node) {
         // TODO: caching..
@@ -259,6 +298,15 @@ public class Entity extends CNode {
         return new Entity (node);
     }
 
+    /*
+     * stitch values of this entity through deferred instead of
+     * creating the edges right away
+     */
+    public Entity _defer (DeferredStitches deferred) {
+        this.deferred = deferred;
+        return this;
+    }
+
     public static String nodeIndexName () {
         return Entity.class.getName()+NODE_INDEX;
     }
@@ -355,19 +403,7 @@ public class Entity extends CNode {
                 (AuxRelType.SUMMARY, Direction.INCOMING);
             
             if (rel != null) {
-                RelationshipIndex relidx = _relationshipIndex (root);
-                Node stats = rel.getOtherNode(root);
-
-                for (Relationship r : stats.getRelationships(keys)) {
-                    Object value = r.getProperty(VALUE, null);
-                    if (value != null) {
-                        StitchKey key = StitchKey.valueOf(r.getType().name());
-                        IndexHits<Relationship> hits = 
-                            relidx.get(key.name(), value);
-                        visitor.visit(key, value, hits.size());
-                        hits.close();
-                    }
-                }
+                statsValues (rel.getOtherNode(root), visitor, keys);
             }
             else {
                 logger.warning("Root node "+root.getId()
@@ -378,6 +414,33 @@ public class Entity extends CNode {
         }
     }
 
+    /*
+     * visit the values recorded on a stats node along with their
+     * stitch counts; stats from before COUNT was kept fall back to
+     * the relationship index. must be called within a transaction.
+     */
+    static void statsValues (Node stats, StitchValueVisitor visitor,
+                             StitchKey... keys) {
+        RelationshipIndex relidx = null;
+        for (Relationship r : stats.getRelationships(keys)) {
+            Object value = r.getProperty(VALUE, null);
+            if (value != null) {
+                StitchKey key = StitchKey.valueOf(r.getType().name());
+                Object count = r.getProperty(COUNT, null);
+                if (count == null) {
+                    if (relidx == null)
+                        relidx = stats.getGraphDatabase().index()
+                            .forRelationships(relationshipIndexName());
+                    IndexHits<Relationship> hits = 
+                        relidx.get(key.name(), value);
+                    count = hits.size();
+                    hits.close();
+                }
+                visitor.visit(key, value, ((Number)count).intValue());
+            }
+        }
+    }
+
     public Map<StitchKey, Object> _keys () {
         return _keys (null);
     }
@@ -929,6 +992,7 @@ public class Entity extends CNode {
         for (Relationship rel : _node.getRelationships
                  (Direction.BOTH, KEYS)) {
             StitchKey k = StitchKey.valueOf(rel.getType().name());
+            unstitched (rel);
             for (String index : gdb.index().relationshipIndexNames())
                 gdb.index().forRelationships(index).remove(rel);
             rel.delete();
@@ -938,6 +1002,7 @@ public class Entity extends CNode {
     
     public static void _delete (Relationship r) {
         GraphDatabaseService gdb = r.getStartNode().getGraphDatabase(); 
+        unstitched (r);
         for (String index : gdb.index().relationshipIndexNames())
             gdb.index().forRelationships(index).remove(r);
         r.delete();
@@ -1055,7 +1120,7 @@ public class Entity extends CNode {
             for (int i = 0; i < size; ++i) {
                 try {
                     Object v = Array.get(value, i);
-                    stitch (_node, key, v, attrs);
+                    _stitchValue (key, v, attrs);
                 }
                 catch (Exception ex) {
                     logger.log(Level.SEVERE,
@@ -1063,6 +1128,18 @@ public class Entity extends CNode {
                 }
             }
         }
+        else {
+            _stitchValue (key, value, attrs);
+        }
+    }
+
+    protected void _stitchValue (StitchKey key, Object value,
+                                 Map<String, Object> attrs) {
+        if (deferred != null) {
+            // index now so lookups still work; edges come at flush
+            deferred.add(_node, key, value, attrs);
+            _nodeIndex().add(_node, key.name(), value);
+        }
         else {
             stitch (_node, key, value, attrs);
         }
@@ -1070,8 +1147,12 @@ public class Entity extends CNode {
 
     protected void _unstitch (StitchKey key) {
         if (_node.hasProperty(key.name())) {    
+            if (deferred != null)
+                deferred.remove(_node, key);
+            
             for (Relationship rel :
                      _node.getRelationships(Direction.BOTH, key)) {
+                unstitched (rel);
                 for (String index : gdb.index().relationshipIndexNames())
                     gdb.index().forRelationships(index).remove(rel);
                 rel.delete();
@@ -1180,12 +1261,24 @@ public class Entity extends CNode {
                 IndexHits<Relationship> hits =
                     relidx.get(rel.getType().name(), value, to, to);
                 Relationship hit = hits.getSingle();
+                Object count = rel.getProperty(COUNT, null);
                 if (hit == null) {
                     // create relationship to self
                     hit = to.createRelationshipTo(to, rel.getType());
                     hit.setProperty(VALUE, value);
+                    if (count != null)
+                        hit.setProperty(COUNT, count);
                     relidx.add(hit, rel.getType().name(), value);
                 }
+                else if (count != null && hit.hasProperty(COUNT)) {
+                    hit.setProperty(COUNT, ((Number)count).intValue()
+                                    + ((Number)hit.getProperty(COUNT))
+                                    .intValue());
+                }
+                else {
+                    // one side predates COUNT, so the sum isn't known
+                    hit.removeProperty(COUNT);
+                }
                 relidx.remove(rel);
                 rel.delete();
                 hits.close();
@@ -1193,7 +1286,13 @@ public class Entity extends CNode {
         }
     }
 
-    static void updateStatsNode (Node stats, StitchKey key, Object value) {
+    /*
+     * record count new stitches with the value; each value has a
+     * relationship to self on the stats node that keeps the number of
+     * stitches with that value as COUNT
+     */
+    static void updateStatsNode (Node stats, StitchKey key,
+                                 Object value, int count) {
         RelationshipIndex relidx = _relationshipIndex (stats);
         IndexHits<Relationship> hits = relidx.get(key.name(), value, stats, stats);
         Relationship hit = hits.getSingle();
@@ -1201,8 +1300,37 @@ public class Entity extends CNode {
             // create relationship to self
             hit = stats.createRelationshipTo(stats, key);
             hit.setProperty(VALUE, value);
+            hit.setProperty(COUNT, count);
             relidx.add(hit, key.name(), value);
         }
+        else if (hit.hasProperty(COUNT)) {
+            hit.setProperty(COUNT, count
+                            + ((Number)hit.getProperty(COUNT)).intValue());
+        }
+        hits.close();
+    }
+
+    /*
+     * the stitch rel is about to be deleted; take it off the count of
+     * its value
+     */
+    static void unstitched (Relationship rel) {
+        Object value = rel.getProperty(VALUE, null);
+        Node node = rel.getStartNode();
+        if (value == null || !node.hasLabel(AuxNodeType.ENTITY))
+            return;
+
+        Node stats = getStatsNode (node);
+        if (stats != null) {
+            IndexHits<Relationship> hits = _relationshipIndex(stats)
+                .get(rel.getType().name(), value, stats, stats);
+            Relationship hit = hits.getSingle();
+            if (hit != null && hit.hasProperty(COUNT)) {
+                int count = ((Number)hit.getProperty(COUNT)).intValue();
+                hit.setProperty(COUNT, Math.max(0, count - 1));
+            }
+            hits.close();
+        }
     }
 
     protected void union (Node node, StitchKey key, Object value) {
@@ -1211,36 +1339,41 @@ public class Entity extends CNode {
 
     protected static void union (Node _node, Node node,
                                  StitchKey key, Object value) {
+        Node stats = merge (_node, node);
+        if (stats != null) {
+            updateStatsNode (stats, key, value, 1);
+        }
+        else {
+            logger.log(Level.SEVERE, 
+                       "SOMETHING'S ROTTEN WITH THE SUMMARY STATS!");
+        }
+    }
+
+    /*
+     * union the components of the two nodes and return the stats node
+     * of the merged component. When both components already have stats
+     * the one with fewer values is folded into the other, so the cost
+     * is proportional to the smaller summary no matter which node ends
+     * up as the root.
+     */
+    protected static Node merge (Node _node, Node node) {
         Node stats1 = getStatsNode (_node);
         Node stats2 = getStatsNode (node);
         Node root = union (_node, node);
 
-        Node stats = null;
+        Node stats;
         if (stats1 != null && stats2 != null) {
+            stats = stats1;
             if (!stats1.equals(stats2)) {
-                // merge
-                Relationship rel1 = stats1.getSingleRelationship
-                    (AuxRelType.SUMMARY, Direction.OUTGOING);
-                Relationship rel2 = stats2.getSingleRelationship
-                    (AuxRelType.SUMMARY, Direction.OUTGOING);
-                if (root.equals(rel1.getOtherNode(stats1))) {
-                    mergeStatsNodes (stats1, stats2);
-                    rel2.delete();
-                    stats2.delete();
-                    stats = stats1;
-                }
-                else if (root.equals(rel2.getOtherNode(stats2))) {
-                    mergeStatsNodes (stats2, stats1);
-                    rel1.delete();
-                    stats1.delete();
+                Node small = stats2;
+                if (stats1.getDegree() < stats2.getDegree()) {
                     stats = stats2;
+                    small = stats1;
                 }
-                else {
-                    // huh?
-                }
-            }
-            else {
-                stats = stats1; // or stats2
+                mergeStatsNodes (stats, small);
+                small.getSingleRelationship
+                    (AuxRelType.SUMMARY, Direction.OUTGOING).delete();
+                small.delete();
             }
         }
         else if (stats1 != null) {
@@ -1255,19 +1388,14 @@ public class Entity extends CNode {
             stats.createRelationshipTo(root, AuxRelType.SUMMARY);
         }
 
-        if (stats != null) {
-            updateStatsNode (stats, key, value);
-            Relationship rel = stats.getSingleRelationship
-                (AuxRelType.SUMMARY, Direction.OUTGOING);
-            if (!root.equals(rel.getOtherNode(stats))) {
-                rel.delete();
-                stats.createRelationshipTo(root, AuxRelType.SUMMARY);
-            }
-        }
-        else {
-            logger.log(Level.SEVERE, 
-                       "SOMETHING'S ROTTEN WITH THE SUMMARY STATS!");
+        Relationship rel = stats.getSingleRelationship
+            (AuxRelType.SUMMARY, Direction.OUTGOING);
+        if (!root.equals(rel.getOtherNode(stats))) {
+            rel.delete();
+            stats.createRelationshipTo(root, AuxRelType.SUMMARY);
         }
+        
+        return stats;
     }
 
     /*
@@ -1425,31 +1553,24 @@ public class Entity extends CNode {
             if (size > 0) {
                 RelationshipIndex relindx = _relationshipIndex (node);
                 Object source = node.getProperty(SOURCE);
+                Node stats = null;
+                int links = 0;
                 for (Node n : hits) {
                     // can't have self-link
                     if (!node.equals(n)) {
-                        Relationship rel = node.createRelationshipTo(n, key);
-                        rel.setProperty(CREATED, System.currentTimeMillis());
-                        rel.setProperty(VALUE, value);
-                        if (source.equals(n.getProperty(SOURCE, null))) {
-                            rel.setProperty(SOURCE, source);
-                        }
-                        
-                        if (attrs != null) {
-                            for (Map.Entry<String, Object> a
-                                     : attrs.entrySet()) {
-                                rel.setProperty(a.getKey(), a.getValue());
-                            }
-                        }
-
-                        relindx.add(rel, key.name(), value);
-                        union (n, node, key, value);
+                        link (relindx, node, source, n, key, value, attrs);
+                        ++links;
+                        stats = merge (n, node);
 
                         /*   
                              logger.info(node.getId()
                              +" <-["+key+":\""+value+"\"]-> "+n.getId());*/
                     }
                 }
+                
+                // all hits are now in one component; record the value once
+                if (stats != null)
+                    updateStatsNode (stats, key, value, links);
                 logger.info(key+":\""+value+"\" => "+size);
             }
         }
@@ -1460,6 +1581,29 @@ public class Entity extends CNode {
         index.add(node, key.name(), value);
     }
 
+    /*
+     * create and index the stitch relationship node -> n
+     */
+    static Relationship link (RelationshipIndex relindx, Node node,
+                              Object source, Node n, StitchKey key,
+                              Object value, Map<String, Object> attrs) {
+        Relationship rel = node.createRelationshipTo(n, key);
+        rel.setProperty(CREATED, System.currentTimeMillis());
+        rel.setProperty(VALUE, value);
+        if (source.equals(n.getProperty(SOURCE, null))) {
+            rel.setProperty(SOURCE, source);
+        }
+        
+        if (attrs != null) {
+            for (Map.Entry<String, Object> a : attrs.entrySet()) {
+                rel.setProperty(a.getKey(), a.getValue());
+            }
+        }
+        
+        relindx.add(rel, key.name(), value);
+        return rel;
+    }
+
     public Entity[] pathTo (Entity end, StitchKey key) {
         return pathTo (end, key, null);
     }
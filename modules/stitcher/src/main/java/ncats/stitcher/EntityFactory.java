@@ -15,6 +15,8 @@ import java.util.function.Supplier;
 import java.util.function.Function;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -40,6 +42,8 @@ import org.neo4j.graphdb.traversal.TraversalDescription;
 import org.neo4j.graphdb.traversal.Traverser;
 
 import ncats.stitcher.graph.UnionFind;
+import ncats.stitcher.graph.ConcurrentUnionFind;
+import ncats.stitcher.graph.LongIntMap;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.JsonNode;
@@ -54,7 +58,8 @@ public class EntityFactory implements Props, AutoCloseable {
 
     static final double CLIQUE_WEIGHT = 0.7;
     static final int CLIQUE_MINSIZE = 2;
-    static final String TEXT_INDEXER = "lucene";
+    static final int STATS_WINDOW = 1000; // stats nodes per transaction
+    public static final String TEXT_INDEXER = "lucene";
 
     static class DefaultGraphMetrics implements GraphMetrics {
         int entityCount;
@@ -141,95 +146,94 @@ public class EntityFactory implements Props, AutoCloseable {
         }
 
         public void add (Node node) {
-            Map<Node, Map<StitchKey, Object>> sv = stitchValues (node);
-            if (sv.isEmpty()) {
+            List<Node> nodes = equivalents (node, hist);
+            if (nodes.isEmpty()) {
                 singletons.add(node.getId());
             }
             else {
-                Entity n = Entity._getEntity(node);
-                List<Node> bestNodes = new ArrayList<>();
-                List<Node> eqvnodes = new ArrayList<>();
-                int bestScore = 0;
-                for (Map.Entry<Node, Map<StitchKey, Object>>
-                         me : sv.entrySet()) {
-                    Map<StitchKey, Object> stitches = me.getValue();
-                    Entity m = Entity._getEntity(me.getKey());
-                    
-                    // we should properly make sure directionality
-                    // is correct here
-                    int score = predication.score(n, stitches, m);
-                    Integer c = hist.get(score);
-                    hist.put(score, c==null ? 1:c+1);
-
-                    if ((stitches.containsKey(StitchKey.R_equivalentClass)
-                         || stitches.containsKey(StitchKey.R_exactMatch))
-                        && score > 0) {
-                        eqvnodes.add(me.getKey());
-                    }
-                    else if (score < minscore
-                             || stitches.containsKey(StitchKey.R_subClassOf)) {
-                    }
-                    else if (score > bestScore) {
-                        bestScore = score;
-                        bestNodes.clear();
-                        bestNodes.add(me.getKey());
-                    }
-                    else if (score == bestScore) {
-                        bestNodes.add(me.getKey());
-                    }
-                }
+                for (Node m : nodes)
+                    eqv.union(node.getId(), m.getId());
+            }
+        } // add ()
 
-                if (!eqvnodes.isEmpty()) {
-                    for (Node eqn : eqvnodes)
-                        eqv.union(node.getId(), eqn.getId());
+        /*
+         * neighbors of node that should be merged with it; an empty
+         * list means node is a singleton
+         */
+        List<Node> equivalents (Node node, Map<Integer, Integer> hist) {
+            Map<Node, Map<StitchKey, Object>> sv = stitchValues (node);
+            if (sv.isEmpty())
+                return Collections.emptyList();
+
+            Entity n = Entity._getEntity(node);
+            List<Node> bestNodes = new ArrayList<>();
+            List<Node> eqvnodes = new ArrayList<>();
+            int bestScore = 0;
+            for (Map.Entry<Node, Map<StitchKey, Object>> me : sv.entrySet()) {
+                Map<StitchKey, Object> stitches = me.getValue();
+                Entity m = Entity._getEntity(me.getKey());
+
+                // we should properly make sure directionality
+                // is correct here
+                int score = predication.score(n, stitches, m);
+                Integer c = hist.get(score);
+                hist.put(score, c==null ? 1:c+1);
+
+                if ((stitches.containsKey(StitchKey.R_equivalentClass)
+                     || stitches.containsKey(StitchKey.R_exactMatch))
+                    && score > 0) {
+                    eqvnodes.add(me.getKey());
                 }
-                else if (!bestNodes.isEmpty()) {
-                    for (Node bn : bestNodes)
-                        eqv.union(node.getId(), bn.getId());
+                else if (score < minscore
+                         || stitches.containsKey(StitchKey.R_subClassOf)) {
                 }
-                else {
-                    singletons.add(node.getId());
+                else if (score > bestScore) {
+                    bestScore = score;
+                    bestNodes.clear();
+                    bestNodes.add(me.getKey());
                 }
-            }            
-        } // add ()
+                else if (score == bestScore) {
+                    bestNodes.add(me.getKey());
+                }
+            }
+
+            return !eqvnodes.isEmpty() ? eqvnodes : bestNodes;
+        }
 
         Map<Node, Map<StitchKey, Object>> stitchValues (Node node) {
-            Map<Node, Map<StitchKey, List>> edges = new HashMap<>();
+            Map<Node, Map<StitchKey, Object>> sv = new HashMap<>();
             for (Relationship rel : node.getRelationships(Entity.KEYS)) {
-                StitchKey type =  StitchKey.valueOf(rel.getType().name());
-                Node start = rel.getStartNode();
-                Node end = rel.getEndNode();
-                
-                Node n = start.equals(node) ? end : start;
-                Map<StitchKey, List> values = edges.get(n);
+                Object v = rel.getProperty(VALUE, null);
+                if (v == null)
+                    continue;
+
+                Node n = rel.getOtherNode(node);
+                Map<StitchKey, Object> values = sv.get(n);
                 if (values == null) {
-                    values = new EnumMap (StitchKey.class);
-                    edges.put(n, values);
+                    values = new EnumMap<>(StitchKey.class);
+                    sv.put(n, values);
                 }
-                
-                List lv = values.get(type);
-                if (lv == null) {
-                    values.put(type, lv = new ArrayList ());
+
+                StitchKey type =  StitchKey.valueOf(rel.getType().name());
+                Object val = values.get(type);
+                if (val == null)
+                    values.put(type, v);
+                else if (val instanceof List)
+                    ((List)val).add(v);
+                else {
+                    List lv = new ArrayList ();
+                    lv.add(val);
+                    lv.add(v);
+                    values.put(type, lv);
                 }
-                Object v = rel.getProperty(VALUE);
-                if (v != null) lv.add(v);
             }
 
-            Map<Node, Map<StitchKey, Object>> sv = new HashMap<>();
-            for (Map.Entry<Node, Map<StitchKey, List>> me : edges.entrySet()) {
-                Map<StitchKey, Object> values = new TreeMap<>();
-                for (Map.Entry<StitchKey, List> le: me.getValue().entrySet()) {
-                    List lv = le.getValue();
-                    if (!lv.isEmpty()) {
-                        if (lv.size() == 1)
-                            values.put(le.getKey(), lv.get(0));
-                        else
-                            values.put(le.getKey(), lv.toArray(new Object[0]));
-                    }
+            for (Map<StitchKey, Object> values : sv.values()) {
+                for (Map.Entry<StitchKey, Object> me : values.entrySet()) {
+                    if (me.getValue() instanceof List)
+                        me.setValue(((List)me.getValue())
+                                    .toArray(new Object[0]));
                 }
-                
-                if (!values.isEmpty())
-                    sv.put(me.getKey(), values);
             }
             return sv;
         }
@@ -249,6 +253,128 @@ public class EntityFactory implements Props, AutoCloseable {
             }
         }
     } // EquivalenceClass
+
+    /*
+     * partitions the entity node ids across a fork-join pool; each
+     * partition scans its nodes in its own read transaction with the
+     * given EquivalenceClass's scoring and merges into a lock-free
+     * union-find. Neighbors that aren't entities can't go into the
+     * union-find so they're unioned afterward, just as the serial
+     * scan does. The predication must be thread-safe.
+     */
+    static class ParallelEquivalenceClass {
+        static final int THRESHOLD = 4096;
+
+        final GraphDatabaseService gdb;
+        final EquivalenceClass eqv;
+        final ConcurrentUnionFind ceqv;
+        long[][] components;
+
+        class Partial {
+            final List<Long> singletons = new ArrayList<>();
+            final Map<Integer, Integer> hist = new TreeMap<>();
+            // (entity, non-entity) pairs to union afterward
+            final List<long[]> others = new ArrayList<>();
+
+            Partial merge (Partial p) {
+                singletons.addAll(p.singletons);
+                for (Map.Entry<Integer, Integer> me : p.hist.entrySet()) {
+                    Integer c = hist.get(me.getKey());
+                    hist.put(me.getKey(), c == null
+                             ? me.getValue() : c+me.getValue());
+                }
+                others.addAll(p.others);
+                return this;
+            }
+        }
+
+        class Scan extends RecursiveTask<Partial> {
+            final int lo, hi;
+
+            Scan (int lo, int hi) {
+                this.lo = lo;
+                this.hi = hi;
+            }
+
+            @Override
+            protected Partial compute () {
+                if (hi - lo > THRESHOLD) {
+                    int mid = (lo + hi) >>> 1;
+                    Scan right = new Scan (mid, hi);
+                    right.fork();
+                    Partial left = new Scan (lo, mid).compute();
+                    // left first so singletons stay in node id order
+                    return left.merge(right.join());
+                }
+
+                Partial p = new Partial ();
+                try (Transaction tx = gdb.beginTx()) {
+                    for (int i = lo; i < hi; ++i) {
+                        long id = ceqv.id(i);
+                        List<Node> nodes = eqv.equivalents
+                            (gdb.getNodeById(id), p.hist);
+                        if (nodes.isEmpty()) {
+                            p.singletons.add(id);
+                        }
+                        else {
+                            for (Node m : nodes) {
+                                if (!ceqv.union(id, m.getId()))
+                                    p.others.add(new long[]{id, m.getId()});
+                            }
+                        }
+                    }
+                    tx.success();
+                }
+                return p;
+            }
+        }
+
+        ParallelEquivalenceClass (GraphDatabaseService gdb,
+                                  EquivalenceClass eqv) {
+            long[] ids;
+            try (Transaction tx = gdb.beginTx()) {
+                ids = gdb.findNodes(AuxNodeType.ENTITY).stream()
+                    .mapToLong(Node::getId).toArray();
+                tx.success();
+            }
+            this.gdb = gdb;
+            this.eqv = eqv;
+            this.ceqv = new ConcurrentUnionFind (ids);
+        }
+
+        void run (int threads) {
+            ForkJoinPool pool = new ForkJoinPool (threads);
+            try {
+                long start = System.currentTimeMillis();
+                Partial p = pool.invoke(new Scan (0, ceqv.size()));
+                eqv.singletons.addAll(p.singletons);
+                eqv.hist.putAll(p.hist);
+                components = ceqv.components();
+                if (!p.others.isEmpty()) {
+                    UnionFind uf = new UnionFind ();
+                    for (long[] comp : components) {
+                        uf.add(comp[0]);
+                        for (int i = 1; i < comp.length; ++i)
+                            uf.union(comp[0], comp[i]);
+                    }
+                    for (long[] pair : p.others)
+                        uf.union(pair[0], pair[1]);
+                    components = uf.components();
+                }
+                logger.info(ceqv.size()+" entities scanned in "
+                            +String.format("%1$.3fs", 
+                                           (System.currentTimeMillis()
+                                            -start)*1e-3)
+                            +" using "+threads+" threads; "
+                            +p.others.size()+" non-entity neighbor(s)!");
+            }
+            finally {
+                pool.shutdown();
+            }
+        }
+        
+        public long[][] components () { return components; }
+    } // ParallelEquivalenceClass
     
     static class StronglyConnectedComponents implements Iterator<Component> {
         int current;
@@ -264,18 +390,34 @@ public class EntityFactory implements Props, AutoCloseable {
         StronglyConnectedComponents (final GraphDatabaseService gdb,
                                      final Predication predication,
                                      final int minscore) {
-            EquivalenceClass eqv = new EquivalenceClass (minscore, predication);
-            try (Transaction tx = gdb.beginTx()) {
-                gdb.findNodes(AuxNodeType.ENTITY).stream().forEach(node -> {
-                        eqv.add(node);
-                    });
+            this (gdb, predication, minscore, 1);
+        }
+
+        StronglyConnectedComponents (final GraphDatabaseService gdb,
+                                     final Predication predication,
+                                     final int minscore,
+                                     final int threads) {
+            EquivalenceClass eqv =
+                new EquivalenceClass (minscore, predication);
+            if (threads > 1) {
+                ParallelEquivalenceClass peqv =
+                    new ParallelEquivalenceClass (gdb, eqv);
+                peqv.run(threads);
+                this.components = peqv.components();
+            }
+            else {
+                try (Transaction tx = gdb.beginTx()) {
+                    gdb.findNodes(AuxNodeType.ENTITY).stream().forEach(node -> {
+                            eqv.add(node);
+                        });
                 
-                tx.success();
+                    tx.success();
+                }
+                this.components = eqv.components();
             }
             eqv.dumpScoreHist();
             
             this.singletons = eqv.singletons();
-            this.components = eqv.components();
             this.gdb = gdb;
         }
 
@@ -314,76 +456,106 @@ public class EntityFactory implements Props, AutoCloseable {
     }
 
     /*
-     * a simple graph wrapper around a set of nodes
+     * a simple graph wrapper around a set of nodes; the adjacency
+     * of each node is a row of 64-bit words in a single array
      */
     static class Graph {
-        final BitSet[] adj;
-        StitchKey key;
-        GraphDatabaseService gdb;
-        Node[] nodes;
+        final long[] nodes;
+        final int words;
+        final long[] adj;
+        final StitchKey key;
 
-        Graph (Component comp) {
-            Entity[] entities = comp.entities();
-            adj = new BitSet[entities.length];
-            if (entities.length > 0) {
-                gdb = entities[0].getGraphDb();
-                try (Transaction tx = gdb.beginTx()) {
-                    for (int i = 0; i < entities.length; ++i) {
-                        Node n = entities[i]._node();
-                        BitSet bs = new BitSet (entities.length);
-                        for (Relationship rel :
-                                 n.getRelationships(key, Direction.BOTH)) {
-                            Node m = rel.getOtherNode(n);
-                            long id = m.getId();
-                            for (int j = 0; j < entities.length; ++j) 
-                                if (i != j && entities[j].getId() == id) {
-                                    bs.set(j);
-                                    break;
-                                }
-                        }
-                        adj[i] = bs;
-                        nodes[i] = n;
-                    }
-                    tx.success();
-                }
-            }
+        Graph (StitchKey key, long[] nodes) {
+            this.key = key;
+            this.nodes = nodes;
+            this.words = words (nodes.length);
+            this.adj = new long[nodes.length * words];
         }
         
-        Graph (GraphDatabaseService gdb, StitchKey key, long[] nodes) {
-            adj = new BitSet[nodes.length];
-            try (Transaction tx = gdb.beginTx()) {
-                this.nodes = new Node[nodes.length];
-                for (int i = 0; i < nodes.length; ++i) {
-                    Node n = gdb.getNodeById(nodes[i]);
-                    BitSet bs = new BitSet (nodes.length);
-                    for (Relationship rel :
-                             n.getRelationships(key, Direction.BOTH)) {
-                        Node m = rel.getOtherNode(n);
-                        long id = m.getId();
-                        for (int j = 0; j < nodes.length; ++j) 
-                            if (i != j && nodes[j] == id) {
-                                bs.set(j);
-                                break;
+        static int words (int size) { return (size + 63) >>> 6; }
+        
+        static LongIntMap index (long[] nodes) {
+            LongIntMap index = new LongIntMap (nodes.length);
+            for (int i = 0; i < nodes.length; ++i)
+                if (!index.containsKey(nodes[i]))
+                    index.put(nodes[i], i);
+            return index;
+        }
+
+        void set (int i, int j) {
+            adj[i*words + (j >>> 6)] |= 1l << j;
+            adj[j*words + (i >>> 6)] |= 1l << i;
+        }
+
+        public boolean edge (int i, int j) {
+            return (adj[i*words + (j >>> 6)] & (1l << j)) != 0;
+        }
+        
+        public int degree (int i) {
+            int d = 0;
+            for (int w = 0, off = i*words; w < words; ++w)
+                d += Long.bitCount(adj[off+w]);
+            return d;
+        }
+
+        /*
+         * smallest-last (degeneracy) ordering of the nodes using the
+         * bucket algorithm of Batagelj & Zaversnik
+         */
+        public int[] degeneracyOrder () {
+            int n = size ();
+            int[] deg = new int[n];
+            int maxdeg = 0;
+            for (int i = 0; i < n; ++i) {
+                deg[i] = degree (i);
+                if (deg[i] > maxdeg)
+                    maxdeg = deg[i];
+            }
+
+            int[] bin = new int[maxdeg+1];
+            for (int i = 0; i < n; ++i)
+                ++bin[deg[i]];
+            for (int d = 0, start = 0; d <= maxdeg; ++d) {
+                int num = bin[d];
+                bin[d] = start;
+                start += num;
+            }
+
+            int[] pos = new int[n];
+            int[] vert = new int[n];
+            for (int v = 0; v < n; ++v) {
+                pos[v] = bin[deg[v]]++;
+                vert[pos[v]] = v;
+            }
+            for (int d = maxdeg; d > 0; --d)
+                bin[d] = bin[d-1];
+            bin[0] = 0;
+
+            for (int i = 0; i < n; ++i) {
+                int v = vert[i];
+                for (int w = 0, off = v*words; w < words; ++w) {
+                    for (long bits = adj[off+w]; bits != 0; bits &= bits-1) {
+                        int u = (w << 6) + Long.numberOfTrailingZeros(bits);
+                        if (deg[u] > deg[v]) {
+                            int du = deg[u], pu = pos[u];
+                            int pw = bin[du], x = vert[pw];
+                            if (u != x) {
+                                pos[u] = pw;
+                                vert[pu] = x;
+                                pos[x] = pu;
+                                vert[pw] = u;
                             }
+                            ++bin[du];
+                            --deg[u];
+                        }
                     }
-                    adj[i] = bs;
-                    this.nodes[i] = n;
                 }
-                tx.success();
             }
-            this.gdb = gdb;
-            this.key = key;
+            return vert;
         }
 
-        public BitSet maxclique (StitchKey key, Object value) {
-            return null;
-        }
-
-        // construct a clique based on the given set of nodes
-        
-        public BitSet edges (int n) { return adj[n]; }
         public StitchKey key () { return key; }
-        public int size () { return adj.length; }
+        public int size () { return nodes.length; }
     }
 
     static class ComponentImpl implements Component {
@@ -1149,7 +1321,7 @@ public class EntityFactory implements Props, AutoCloseable {
     }
     
     /*
-     * using the standard Bron-Kerbosch enumeration algorithm
+     * maximal clique enumeration using Bron-Kerbosch with pivoting
      */
     static class CliqueEnumeration {
         final GraphDatabaseService gdb;
@@ -1164,9 +1336,17 @@ public class EntityFactory implements Props, AutoCloseable {
 
         public boolean enumerate (long[] nodes, CliqueVisitor visitor) {
             cliques.clear();
-            
-            for (StitchKey key : keys)
-                enumerate (key, nodes);
+
+            // keys are independent so enumerate them in parallel; the
+            // results are merged in key order
+            List<Graph> graphs = graphs (nodes);
+            List<List<BitSet>> results = graphs.parallelStream()
+                .map(G -> new BronKerbosch (G).enumerate())
+                .collect(Collectors.toList());
+            for (int i = 0; i < graphs.size(); ++i) {
+                for (BitSet C : results.get(i))
+                    clique (C, graphs.get(i).key());
+            }
             
             for (Map.Entry<BitSet, EnumSet<StitchKey>> me
                      : cliques.entrySet()) {
@@ -1195,61 +1375,171 @@ public class EntityFactory implements Props, AutoCloseable {
             return true;
         }
         
-        void enumerate (StitchKey key, long[] nodes) {
-            BitSet P = new BitSet (nodes.length);
-            for (int i = 0; i < nodes.length; ++i) {
-                P.set(i);
+        /*
+         * adjacency of every key in a single sweep over the relationships
+         * of nodes; keys without any edges among nodes are skipped
+         */
+        List<Graph> graphs (long[] nodes) {
+            Map<StitchKey, Graph> graphs = new EnumMap<>(StitchKey.class);
+            LongIntMap index = Graph.index(nodes);
+            try (Transaction tx = gdb.beginTx()) {
+                for (int i = 0; i < nodes.length; ++i) {
+                    Node n = gdb.getNodeById(nodes[i]);
+                    for (Relationship rel :
+                             n.getRelationships(Direction.BOTH, keys)) {
+                        int j = index.get(rel.getOtherNodeId(nodes[i]));
+                        if (j < 0 || i == j)
+                            continue;
+                        
+                        StitchKey key = StitchKey.valueOf
+                            (rel.getType().name());
+                        Graph G = graphs.get(key);
+                        if (G == null)
+                            graphs.put(key, G = new Graph (key, nodes));
+                        G.set(i, j);
+                    }
+                }
+                tx.success();
             }
-            BitSet C = new BitSet (nodes.length);
-            BitSet S = new BitSet (nodes.length);
-            Graph G = new Graph (gdb, key, nodes);
+            
+            List<Graph> sorted = new ArrayList<>();
+            for (StitchKey key : keys) {
+                Graph G = graphs.remove(key);
+                if (G != null)
+                    sorted.add(G);
+            }
+            return sorted;
+        }
 
-            /*
-            { Set<Long> g = new TreeSet<Long>();
-                for (int i = 0; i < nodes.length; ++i)
-                    g.add(nodes[i]);
-                logger.info("Clique enumeration "+key+" G="+g+"...");
+        void clique (BitSet C, StitchKey key) {
+            EnumSet<StitchKey> keys = cliques.get(C);
+            if (keys == null) {
+                cliques.put(C, EnumSet.of(key));
+                //logger.info("Clique found.."+C);
             }
-            */
-            
-            bronKerbosch (G, C, P, S);
+            else
+                keys.add(key);
         }
+        
+        /*
+         * Bron-Kerbosch with Tomita pivoting over word bitsets. The
+         * top level visits the nodes in degeneracy order (Eppstein et
+         * al.) and every recursion depth has its own preallocated P, X,
+         * and candidate rows, so nothing is allocated per call. Only
+         * reads the graph, so instances for different graphs can run
+         * concurrently.
+         */
+        class BronKerbosch {
+            final Graph G;
+            final int words;
+            final long[] R;
+            final long[][] P, X, Q;
+            final List<BitSet> cliques = new ArrayList<>();
+            boolean done;
+
+            BronKerbosch (Graph G) {
+                this.G = G;
+                words = G.words;
+                R = new long[words];
+                P = new long[G.size()+2][];
+                X = new long[G.size()+2][];
+                Q = new long[G.size()+2][];
+            }
+
+            long[] row (long[][] stack, int depth) {
+                long[] r = stack[depth];
+                if (r == null)
+                    stack[depth] = r = new long[words];
+                return r;
+            }
+
+            List<BitSet> enumerate () {
+                int n = G.size();
+                if (n == 0)
+                    return cliques;
+                
+                // nodes not yet visited in the degeneracy order
+                long[] later = new long[words];
+                for (int i = 0; i < n; ++i)
+                    later[i >>> 6] |= 1l << i;
+
+                long[] p = row (P, 1), x = row (X, 1);
+                int[] order = G.degeneracyOrder();
+                for (int k = 0; k < n && !done; ++k) {
+                    int v = order[k];
+                    later[v >>> 6] &= ~(1l << v);
+                    for (int w = 0, off = v*words; w < words; ++w) {
+                        p[w] = G.adj[off+w] & later[w];
+                        x[w] = G.adj[off+w] & ~later[w];
+                    }
+                    R[v >>> 6] |= 1l << v;
+                    expand (1, p, x);
+                    R[v >>> 6] &= ~(1l << v);
+                }
+                return cliques;
+            }
 
-        boolean bronKerbosch (Graph G, BitSet C, BitSet P, BitSet S) {
-            boolean done = false;
-            if (P.isEmpty() && S.isEmpty()) {
-                //logger.info("@Clique "+C);
-                // only consider cliques that are of size >= CLIQUE_MINSIZE
-                if (C.cardinality() >= CLIQUE_MINSIZE) {
-                    BitSet c = (BitSet)C.clone();
-                    
-                    EnumSet<StitchKey> keys = cliques.get(c);
-                    if (keys == null) {
-                        cliques.put(c, EnumSet.of(G.key()));
-                        //logger.info("Clique found.."+c);
+            boolean isEmpty (long[] s) {
+                for (int w = 0; w < words; ++w)
+                    if (s[w] != 0)
+                        return false;
+                return true;
+            }
+
+            /*
+             * node in P u X with the most neighbors in P
+             */
+            int pivot (long[] p, long[] x) {
+                int pivot = -1, best = -1;
+                for (int w = 0; w < words; ++w) {
+                    for (long bits = p[w] | x[w]; bits != 0; bits &= bits-1) {
+                        int u = (w << 6) + Long.numberOfTrailingZeros(bits);
+                        int c = 0;
+                        for (int k = 0, off = u*words; k < words; ++k)
+                            c += Long.bitCount(p[k] & G.adj[off+k]);
+                        if (c > best) {
+                            best = c;
+                            pivot = u;
+                        }
                     }
-                    else
-                        keys.add(G.key());
-                    
-                    done = C.cardinality() == G.size();
                 }
+                return pivot;
             }
-            else {
-                for (int u = P.nextSetBit(0); u >=0 && !done ;
-                     u = P.nextSetBit(u+1)) {
-                    P.clear(u);
-                    BitSet PP = (BitSet)P.clone();
-                    BitSet SS = (BitSet)S.clone();
-                    PP.and(G.edges(u));
-                    SS.and(G.edges(u));
-                    C.set(u);
-                    done = bronKerbosch (G, C, PP, SS);
-                    C.clear(u);
-                    S.set(u);
+
+            // depth is the size of R
+            void expand (int depth, long[] p, long[] x) {
+                if (isEmpty (p)) {
+                    // only consider cliques that are of size >= CLIQUE_MINSIZE
+                    if (isEmpty (x) && depth >= CLIQUE_MINSIZE) {
+                        cliques.add(BitSet.valueOf(R));
+                        done = depth == G.size();
+                    }
+                    return;
+                }
+
+                int u = pivot (p, x);
+                long[] q = row (Q, depth);
+                for (int w = 0, off = u*words; w < words; ++w)
+                    q[w] = p[w] & ~G.adj[off+w];
+
+                long[] pp = row (P, depth+1), xx = row (X, depth+1);
+                for (int w = 0; w < words && !done; ++w) {
+                    for (long bits = q[w]; bits != 0 && !done;
+                         bits &= bits-1) {
+                        int v = (w << 6) + Long.numberOfTrailingZeros(bits);
+                        long bv = 1l << v;
+                        for (int k = 0, off = v*words; k < words; ++k) {
+                            pp[k] = p[k] & G.adj[off+k];
+                            xx[k] = x[k] & G.adj[off+k];
+                        }
+                        R[w] |= bv;
+                        expand (depth+1, pp, xx);
+                        R[w] &= ~bv;
+                        p[w] &= ~bv;
+                        x[w] |= bv;
+                    }
                 }
             }
-            
-            return done;
         }
     }
 
@@ -1483,14 +1773,84 @@ public class EntityFactory implements Props, AutoCloseable {
         return count;
     }
 
+    /*
+     * stitch value counts of every component; the counts are kept on
+     * the stats nodes, so this is a scan over them in id order with one
+     * transaction per window instead of an index lookup per value
+     */
     public void stitchValues (StitchValueVisitor visitor, StitchKey... keys) {
-        List<Long> comps = new ArrayList<>();
-        if (components (comps) > 0) {
-            for (Long c : comps)
-                entity(c).componentStitchValues(visitor, keys);
+        if (keys == null || keys.length == 0)
+            keys = Entity.KEYS;
+        
+        long[] ids = graphDb.ids(AuxNodeType.STATS);
+        for (int i = 0; i < ids.length; ) {
+            int end = Math.min(ids.length, i+STATS_WINDOW);
+            try (Transaction tx = gdb.beginTx()) {
+                for (; i < end; ++i) {
+                    try {
+                        Entity.statsValues
+                            (gdb.getNodeById(ids[i]), visitor, keys);
+                    }
+                    catch (NotFoundException ex) {
+                        // merged into another stats node since
+                    }
+                }
+                tx.success();
+            }
         }
     }
 
+    /*
+     * stitch value frequencies over all components keyed by value
+     */
+    public Map<Object, Integer> stitchValueCounts (StitchKey... keys) {
+        Map<Object, Integer> counts = new HashMap<>();
+        stitchValues ((key, value, count) -> {
+                counts.merge(value, count, Integer::sum);
+            }, keys);
+        return counts;
+    }
+
+    /*
+     * materialize the counts of stats recorded before they were kept
+     * on the stats nodes; returns the number of values updated
+     */
+    public int updateStitchValueCounts () {
+        int updated = 0;
+        long[] ids = graphDb.ids(AuxNodeType.STATS);
+        for (int i = 0; i < ids.length; ) {
+            int end = Math.min(ids.length, i+STATS_WINDOW);
+            try (Transaction tx = gdb.beginTx()) {
+                RelationshipIndex relidx = gdb.index().forRelationships
+                    (Entity.relationshipIndexName());
+                for (; i < end; ++i) {
+                    Node stats;
+                    try {
+                        stats = gdb.getNodeById(ids[i]);
+                    }
+                    catch (NotFoundException ex) {
+                        continue;
+                    }
+                    for (Relationship r : stats.getRelationships
+                             (Direction.OUTGOING, Entity.KEYS)) {
+                        Object value = r.getProperty(VALUE, null);
+                        if (value != null && !r.hasProperty(COUNT)) {
+                            IndexHits<Relationship> hits =
+                                relidx.get(r.getType().name(), value);
+                            r.setProperty(COUNT, hits.size());
+                            hits.close();
+                            ++updated;
+                        }
+                    }
+                }
+                tx.success();
+            }
+        }
+        logger.info(updated+" stitch value count(s) updated");
+        
+        return updated;
+    }
+
     /*
      * globally delete the value for a particular stitch key
      */
@@ -1501,6 +1861,7 @@ public class EntityFactory implements Props, AutoCloseable {
             IndexHits<Relationship> hits = index.get(key.name(), value);
             try {
                 for (Relationship rel : hits) {
+                    Entity.unstitched(rel);
                     CNode._delete(rel.getStartNode(), key.name(), value);
                     CNode._delete(rel.getEndNode(), key.name(), value);
                     index.remove(rel);
@@ -1623,6 +1984,17 @@ public class EntityFactory implements Props, AutoCloseable {
         return new StronglyConnectedComponents (gdb, predication, minscore);
     }
 
+    /*
+     * same as above but the entity scan is partitioned over the given
+     * number of threads; predication must be thread-safe
+     */
+    public Iterator<Component> connectedComponents (int minscore,
+                                                    Predication predication,
+                                                    int threads) {
+        return new StronglyConnectedComponents
+            (gdb, predication, minscore, threads);
+    }
+
     public Collection<Component> components () {
         List<Component> comps = new ArrayList<Component>();
         try (Transaction tx = gdb.beginTx()) {
@@ -1667,6 +2039,22 @@ public class EntityFactory implements Props, AutoCloseable {
         }
     }
 
+    /*
+     * in-memory snapshot of the component of the given node; see
+     * ComponentSnapshot
+     */
+    public Component snapshot (long id) {
+        try (Transaction tx = gdb.beginTx()) {
+            Node node = gdb.getNodeById(id);
+            if (!node.hasLabel(AuxNodeType.COMPONENT))
+                node = CNode.getRoot(node);
+            Component comp = new ComponentSnapshot (node);
+            tx.success();
+            
+            return comp;
+        }
+    }
+
     public Component component (long[] nodes) {
         return component (null, nodes);
     }
@@ -1711,31 +2099,35 @@ public class EntityFactory implements Props, AutoCloseable {
     }
     
     public Entity[] entities (int skip, int top, Label... labels) {
-        List<Entity> page = new ArrayList<Entity>();
-        Map<String, Object> params = new HashMap<String, Object>();
-        params.put("skip", skip);
-        params.put("top", top);
+        long[] ids = graphDb.ids(labels);
+        return page (ids, Math.min(Math.max(0, skip), ids.length), top);
+    }
 
-        StringBuilder query = new StringBuilder ("match(n");
-        for (Label l : labels) {
-            query.append(":`"+l+"`");
-        }
-        query.append(") return n skip {skip} limit {top}");
+    /*
+     * keyset paging: up to top entities with node id > after; pass the
+     * id of the last entity of a page to fetch the next one
+     */
+    public Entity[] entitiesAfter (long after, int top, String... labels) {
+        return entitiesAfter (after, top, Arrays.stream(labels)
+                              .map(l -> Label.label(l)).toArray(Label[]::new));
+    }
+    
+    public Entity[] entitiesAfter (long after, int top, Label... labels) {
+        long[] ids = graphDb.ids(labels);
+        int pos = Arrays.binarySearch(ids, after);
+        return page (ids, pos < 0 ? -pos-1 : pos+1, top);
+    }
 
-        //System.out.println("components: skip="+skip+" top="+top);
-        try (Transaction tx = gdb.beginTx();
-             Result result = gdb.execute(query.toString(), params)) {
-            while (result.hasNext()) {
-                Map<String, Object> row = result.next();
-                //System.out.println("  rows: "+row);
-                Node n = (Node)row.get("n");
+    Entity[] page (long[] ids, int start, int top) {
+        List<Entity> page = new ArrayList<Entity>();
+        try (Transaction tx = gdb.beginTx()) {
+            for (int i = start; i < ids.length && page.size() < top; ++i) {
                 try {
-                    page.add(Entity._getEntity(n));
+                    page.add(Entity._getEntity(gdb.getNodeById(ids[i])));
                 }
-                catch (Exception ex) { // not an entity
+                catch (Exception ex) { // not an entity or gone
                 }
             }
-            result.close();
             tx.success();
         }
         
@@ -1886,11 +2278,8 @@ public class EntityFactory implements Props, AutoCloseable {
     public void untangle (UntangleAbstract untangler,
                           Consumer<Stitch> consumer) {
         untangler.untangle(this, (root, member) -> {
-                ComponentImpl comp = new ComponentImpl (gdb, member);
-                if (root != null)
-                    comp.setRoot(root);
-                DataSource dsource = untangler.getDataSource();
-                Stitch stitch = createStitch (dsource, comp);
+                Stitch stitch = createStitch
+                    (untangler.getDataSource(), root, member);
                 if (consumer != null)
                     consumer.accept(stitch);
             });
@@ -2676,6 +3065,16 @@ public class EntityFactory implements Props, AutoCloseable {
         }
     }
 
+    /*
+     * stitch for the members of an untangled component
+     */
+    public Stitch createStitch (DataSource source, Long root, long[] members) {
+        ComponentImpl comp = new ComponentImpl (gdb, members);
+        if (root != null)
+            comp.setRoot(root);
+        return createStitch (source, comp);
+    }
+
     public Stitch createStitch (DataSource source, long[] component) {
         Component comp = new ComponentImpl (gdb, component);
         try (Transaction tx = gdb.beginTx()) {
@@ -2810,6 +3209,68 @@ public class EntityFactory implements Props, AutoCloseable {
         }
     }
 
+    /*
+     * id of the current component root of the node or null if the node
+     * is gone
+     */
+    public Long root (long id) {
+        try (Transaction tx = gdb.beginTx()) {
+            Long root = CNode.getRoot(gdb.getNodeById(id)).getId();
+            tx.success();
+            return root;
+        }
+        catch (NotFoundException ex) {
+            return null;
+        }
+    }
+
+    /*
+     * ids of the source's stitch nodes over any of the entities
+     */
+    public long[] stitches (DataSource source, Collection<Long> entities) {
+        Set<Long> stitches = new TreeSet<>();
+        try (Transaction tx = gdb.beginTx()) {
+            Label label = source.getLabel();
+            for (Long id : entities) {
+                Node n = gdb.getNodeById(id);
+                for (Relationship r : n.getRelationships
+                         (Direction.INCOMING, AuxRelType.PAYLOAD)) {
+                    for (Relationship s : r.getOtherNode(n).getRelationships
+                             (AuxRelType.STITCH, Direction.BOTH)) {
+                        Node sn = s.getOtherNode(r.getOtherNode(n));
+                        if (sn.hasLabel(AuxNodeType.SGROUP)
+                            && sn.hasLabel(label))
+                            stitches.add(sn.getId());
+                    }
+                }
+            }
+            tx.success();
+        }
+        return Util.toPrimitive(stitches.toArray(new Long[0]));
+    }
+
+    /*
+     * ids of the components with an entity created or updated at or
+     * after the given time
+     */
+    public long[] componentsUpdatedSince (long since) {
+        Set<Long> comps = new TreeSet<>();
+        try (Transaction tx = gdb.beginTx()) {
+            IndexHits<Node> hits = timeline.getBetween(since, null);
+            try {
+                for (Node n : hits) {
+                    if (n.hasLabel(AuxNodeType.ENTITY))
+                        comps.add(CNode.getRoot(n).getId());
+                }
+            }
+            finally {
+                hits.close();
+            }
+            tx.success();
+        }
+        return Util.toPrimitive(comps.toArray(new Long[0]));
+    }
+
     public Entity getLastUpdatedEntity () {
         Entity[] ent = getLastUpdatedEntities (1);
         return ent != null && ent.length > 0 ? ent[0] : null;
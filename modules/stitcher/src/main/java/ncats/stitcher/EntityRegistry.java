@@ -11,6 +11,10 @@ import java.util.*;
 import java.util.logging.Logger;
 import java.util.logging.Level;
 import java.util.concurrent.Callable;
+import java.util.function.Supplier;
+import java.util.function.Function;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Array;
 
@@ -130,6 +134,11 @@ public class EntityRegistry extends EntityFactory {
     protected String strucField;
     protected String parserField; // EventParser for this datasource
     
+    protected int batchSize = 1; // records per transaction for Batch
+    protected int batchRetries = 2;
+    protected int threads = 0; // Pipeline workers; 0 means none
+    protected DeferredStitches deferred; // null unless bulk stitching
+    
     protected EnumMap<StitchKey, Set<String>> stitches;
     protected Map<String, StitchKeyMapper> mappers; // TODO this is deprecated + should be removed
     // stitch key due to mappers
@@ -240,6 +249,49 @@ public class EntityRegistry extends EntityFactory {
     }
     public String getEventParser () { return parserField; }
 
+    public EntityRegistry setBatchSize (int batchSize) {
+        if (batchSize < 1)
+            throw new IllegalArgumentException
+                ("Bogus batch size: "+batchSize);
+        this.batchSize = batchSize;
+        return this;
+    }
+    public int getBatchSize () { return batchSize; }
+
+    public EntityRegistry setBatchRetries (int batchRetries) {
+        this.batchRetries = Math.max(0, batchRetries);
+        return this;
+    }
+    public int getBatchRetries () { return batchRetries; }
+
+    /*
+     * number of worker threads that parse and hash structures ahead of
+     * the graph writer
+     */
+    public EntityRegistry setThreads (int threads) {
+        this.threads = Math.max(0, threads);
+        return this;
+    }
+    public int getThreads () { return threads; }
+
+    /*
+     * with bulk stitching, edges for new entities are only created
+     * when the data source is done (see updateMeta)
+     */
+    public EntityRegistry setBulkStitching (boolean bulk) {
+        if (!bulk && deferred != null)
+            flushStitches ();
+        deferred = bulk ? (deferred != null
+                           ? deferred : new DeferredStitches ()) : null;
+        return this;
+    }
+    public boolean getBulkStitching () { return deferred != null; }
+
+    public long flushStitches () {
+        return deferred != null && !deferred.isEmpty()
+            ? deferred.flush(gdb) : 0l;
+    }
+
     public void clear () { stitches.clear(); }
     
     public EntityRegistry add (StitchKey key, String property) {
@@ -315,6 +367,17 @@ public class EntityRegistry extends EntityFactory {
         if (source.hasPath("eventParser")) {
             parserField = source.getString("eventParser");
         }
+        
+        if (source.hasPath("batch"))
+            setBatchSize (source.getInt("batch"));
+        if (source.hasPath("retries"))
+            setBatchRetries (source.getInt("retries"));
+        if (source.hasPath("threads"))
+            setThreads (source.getInt("threads"));
+        if (source.hasPath("bulk"))
+            setBulkStitching (source.getBoolean("bulk"));
+        if (source.hasPath("changes")) // see ChangeFeed
+            graphDb.getChangeFeed().setEnabled(source.getBoolean("changes"));
 
         if (conf.hasPath("stitches")) {
             List<? extends ConfigObject> list = conf.getObjectList("stitches");
@@ -560,88 +623,327 @@ public class EntityRegistry extends EntityFactory {
         }
     }
 
+    public Entity register (final Map<String, Object> map,
+                            final Structure struc) {
+        try (Transaction tx = gdb.beginTx()) {
+            Entity ent = _register (map, struc);
+            tx.success();
+            return ent;
+        }
+    }
+
     public Entity registerIfAbsent (final Map<String, Object> map) {
-        Entity ent = null;      
         try (Transaction tx = gdb.beginTx()) {
-            Object id = map.get(idField);           
-            if (id != null) {
-                // check if this has been registered before..
-                int dups = 0;
-                Iterator<Entity> it = find (idField, id);
-                while (it.hasNext()) {
-                    Entity e = it.next();
-                    if (e._is(source.getName())) {
-                        if (ent != null)
-                            ++dups;
-                        ent = e;
-                    }
+            Entity ent = _registerIfAbsent (map);
+            tx.success();
+            return ent;
+        }
+    }
+
+    protected Entity _registerIfAbsent (final Map<String, Object> map) {
+        Entity ent = null;      
+        Object id = map.get(idField);           
+        if (id != null) {
+            // check if this has been registered before..
+            int dups = 0;
+            Iterator<Entity> it = find (idField, id);
+            while (it.hasNext()) {
+                Entity e = it.next();
+                if (e._is(source.getName())) {
+                    if (ent != null)
+                        ++dups;
+                    ent = e;
                 }
-                
-                if (dups > 0)
-                    logger.warning(idField+"="+id
-                                   +" yields "+dups+" matches!");
+            }
+            
+            if (dups > 0)
+                logger.warning(idField+"="+id
+                               +" yields "+dups+" matches!");
+        }
+
+        if (ent == null) {
+            ent = _register (map);
+        }
+        else {
+            //ent = null;
+            logger.info(id+" is already registered!");
+        }
+        
+        return ent;
+    }
+
+    /**
+     * Registration of many records with one transaction per batchSize
+     * records. A batch that fails (either a record or the commit) is
+     * rolled back and replayed up to batchRetries times, after which
+     * its records are replayed one transaction each so that only the
+     * bad ones are dropped. Must be used from a single thread.
+     *
+     * Since a record can be run more than once, ops must be idempotent
+     * apart from their graph writes; anything kept in memory (counts,
+     * maps of entities, etc.) belongs in the onCommit callback, which
+     * only sees the result of the attempt that committed.
+     */
+    public class Batch implements AutoCloseable {
+        class Op<T> {
+            final Supplier<T> op;
+            final Consumer<? super T> onCommit;
+            T result;
+            boolean ok;
+
+            Op (Supplier<T> op, Consumer<? super T> onCommit) {
+                this.op = op;
+                this.onCommit = onCommit;
             }
 
-            if (ent == null) {
-                ent = _register (map);
+            T run () {
+                ok = false;
+                result = op.get();
+                ok = true;
+                return result;
             }
-            else {
-                //ent = null;
-                logger.info(id+" is already registered!");
+
+            void committed () {
+                if (ok && onCommit != null)
+                    onCommit.accept(result);
             }
-            tx.success();
-            
-            return ent;
         }
+        
+        final int size;
+        final List<Op<?>> pending = new ArrayList<>();
+        final long start = System.currentTimeMillis();
+        Transaction tx;
+        int count, dropped;
+
+        Batch (int size) {
+            this.size = Math.max(1, size);
+        }
+
+        public Entity register (final Map<String, Object> map) {
+            return add (() -> _register (map));
+        }
+
+        public Entity register (final Map<String, Object> map,
+                                final Structure struc) {
+            return add (() -> _register (map, struc));
+        }
+
+        public Entity registerIfAbsent (final Map<String, Object> map) {
+            return add (() -> _registerIfAbsent (map));
+        }
+
+        public <T> T add (Supplier<T> op) {
+            return add (op, null);
+        }
+
+        /*
+         * op must assume an open transaction (i.e., an underscore
+         * method) and be safe to replay if the batch fails; onCommit
+         * (if not null) gets op's result once its transaction has
+         * committed. returns op's result, which is from the replay if
+         * the batch failed on this op, or null if it was dropped
+         */
+        public <T> T add (Supplier<T> op, Consumer<? super T> onCommit) {
+            Op<T> o = new Op<>(op, onCommit);
+            pending.add(o);
+            if (tx == null)
+                tx = gdb.beginTx();
+
+            try {
+                o.run();
+            }
+            catch (RuntimeException ex) {
+                logger.log(Level.WARNING, "Record failed; replaying batch of "
+                           +pending.size()+" record(s)...", ex);
+                rollback ();
+                replay ();
+                return o.ok ? o.result : null;
+            }
+
+            if (pending.size() >= size)
+                commit ();
+            return o.result;
+        }
+
+        public void flush () {
+            if (tx != null)
+                commit ();
+        }
+
+        void commit () {
+            try {
+                tx.success();
+                tx.close();
+            }
+            catch (RuntimeException ex) {
+                logger.log(Level.WARNING, "Commit failed; replaying batch of "
+                           +pending.size()+" record(s)...", ex);
+                tx = null;
+                replay ();
+                return;
+            }
+            tx = null;
+            committed (pending.size());
+        }
+
+        void rollback () {
+            try {
+                tx.failure();
+                tx.close();
+            }
+            catch (RuntimeException ex) {
+                // expected
+            }
+            tx = null;
+        }
+
+        void replay () {
+            for (int retry = 1; retry <= batchRetries; ++retry) {
+                try (Transaction rtx = gdb.beginTx()) {
+                    for (Op<?> op : pending)
+                        op.run();
+                    rtx.success();
+                }
+                catch (RuntimeException ex) {
+                    logger.warning("Retry "+retry+" of batch failed: "
+                                   +ex.getMessage());
+                    continue;
+                }
+                committed (pending.size());
+                return;
+            }
+
+            int ok = 0;
+            for (Op<?> op : pending) {
+                try (Transaction rtx = gdb.beginTx()) {
+                    op.run();
+                    rtx.success();
+                }
+                catch (RuntimeException ex) {
+                    logger.log(Level.SEVERE, "Record dropped!", ex);
+                    op.ok = false;
+                    ++dropped;
+                    continue;
+                }
+                ++ok;
+            }
+            committed (ok);
+        }
+
+        void committed (int n) {
+            List<Op<?>> ops = new ArrayList<>(pending);
+            pending.clear();
+            count += n;
+            if (size > 1)
+                logger.info("Batch committed; "+count+" record(s) "+rate ());
+            for (Op<?> op : ops)
+                op.committed();
+        }
+
+        String rate () {
+            double secs = Math.max
+                (1e-3, (System.currentTimeMillis() - start)*1e-3);
+            return String.format("in %1$.1fs (%2$.1f records/sec)",
+                                 secs, count / secs);
+        }
+
+        public int getCount () { return count; }
+        public int getDropped () { return dropped; }
+
+        public void close () {
+            flush ();
+            logger.info("$$$ "+count+" record(s) registered "+rate ()
+                        +(dropped > 0 ? "; "+dropped+" dropped!" : ""));
+        }
+    }
+
+    public Batch batch () {
+        return new Batch (batchSize);
+    }
+
+    public Batch batch (int size) {
+        return new Batch (size);
+    }
+
+    /*
+     * stage runs on up to getThreads() workers ahead of writer, which
+     * runs on this thread in input order
+     */
+    public <T, R> Pipeline<T, R> pipeline (Function<T, R> stage,
+                                           BiConsumer<T, R> writer) {
+        return new Pipeline<>(threads, stage, writer);
     }
 
     protected Entity _register (Map<String, Object> map) {
+        return _register (map, structure (map));
+    }
+
+    String getId (Map<String, Object> map) {
+        String id = null;
+        if (idField != null && map.containsKey(idField)) {
+            Object o = map.get(idField);
+            //do null value check incase it's missing!
+            if (o !=null){
+                id = o.toString();
+            }
+        }
+        return id;
+    }
+
+    /*
+     * parse and hash the structure field of map (if any); this doesn't
+     * touch the graph so it can run ahead on a Pipeline worker
+     */
+    protected Structure structure (Map<String, Object> map) {
+        if (strucField == null || (stitches.isEmpty() && mappers.isEmpty()))
+            return null;
+        
+        Object value = map.get(strucField);
+        if (value == null)
+            return null;
+        
+        Molecule mol = null;
+        if (value instanceof Molecule) {
+            mol = (Molecule)value;
+        }
+        else {
+            if ("NA".equals(value.toString())) {
+                // Withdrawn file uses NA as not available,
+                // but this is a valid smiles
+                value = "Not Available";
+            }
+            try {
+                MolHandler mh = new MolHandler (value.toString());
+                mol = mh.getMolecule();
+            }
+            catch (Exception ex) {
+                logger.warning
+                    (getId (map)+": Can't parse structure: "+value);
+            }
+        }
+        
+        return mol != null && mol.getAtomCount() > 0
+            ? structure (mol) : null;
+    }
+
+    /*
+     * struc is the result of structure(map) or null if there is none
+     */
+    protected Entity _register (Map<String, Object> map, Structure struc) {
         Entity ent = null;
         
         if (stitches.isEmpty() && mappers.isEmpty()) {
             ent = _attach (map);
         }
         else {      
-            ent = Entity._getEntity(_createNode ());
-            String id = null;
-            if (idField != null && map.containsKey(idField)) {
-                Object o = map.get(idField);
-                //do null value check incase it's missing!
-                if (o !=null){
-                    id = o.toString();
-                }
-            }
+            ent = _newEntity ();
+            String id = getId (map);
             
             DefaultPayload payload = new DefaultPayload (getDataSource (), id);
             payload.putAll(map);
             
-            if (strucField != null) {
-                Object value = map.get(strucField);
-                if (value != null) {
-                    if (value instanceof Molecule) {
-                        Molecule mol = (Molecule)value;
-                        if (mol.getAtomCount() > 0)
-                            lychify (ent, mol);
-                    }
-                    else {
-                        if ("NA".equals(value.toString())) {
-                            // Withdrawn file uses NA as not available,
-                            // but this is a valid smiles
-                            value = "Not Available";
-                        }
-                        try {
-                            MolHandler mh = new MolHandler (value.toString());
-                            Molecule mol = mh.getMolecule();
-                            if (mol.getAtomCount() > 0)
-                                lychify (ent, mol);
-                        }
-                        catch (Exception ex) {
-                            logger.warning
-                                (id+": Can't parse structure: "+value);
-                        }
-                    }
-                }
-            }
+            if (struc != null)
+                _lychify (ent, struc);
             
             for (Map.Entry<StitchKey, Set<String>> me : stitches.entrySet()) {
                 for (String prop : me.getValue()) {
@@ -864,7 +1166,27 @@ public class EntityRegistry extends EntityFactory {
         return hk;
     }
 
-    protected void lychify (Entity ent, Molecule mol) {
+    /*
+     * LyChI hashes of a molecule and its fragments; computed by
+     * structure(Molecule) without touching the graph
+     */
+    public static class Structure {
+        public final Molecule mol;
+        String[] moieties;
+        String[] l3;
+        boolean fragments; // false if l4 and lychi are of the whole mol
+        String[] l4;
+        String[] lychi;
+        String l5;
+        Exception error;
+
+        Structure (Molecule mol) {
+            this.mol = mol;
+        }
+    }
+
+    protected Structure structure (Molecule mol) {
+        Structure struc = new Structure (mol);
         try {
             Molecule clone = mol.cloneMolecule();
             Set<String> l3 = new TreeSet<>();
@@ -906,12 +1228,10 @@ public class EntityRegistry extends EntityFactory {
                     l4.put(hk[hk.length-1], f);
                 }
             }
-            ent._snapshot(MOIETIES, moieties);
+            struc.moieties = moieties;
 
-            if (!l3.isEmpty()) {
-                ent._set(H_LyChI_L3,
-                         new StitchValue (l3.toArray(new String[0])));
-            }
+            if (!l3.isEmpty())
+                struc.l3 = l3.toArray(new String[0]);
 
             if (!l4.isEmpty()) {
                 String[] hk = new String[l4.size()];
@@ -922,21 +1242,57 @@ public class EntityRegistry extends EntityFactory {
                     ly[i] = f.getProperty(LYCHI);
                     ++i;
                 }
-                ent._set(H_LyChI_L4, new StitchValue (hk));
-                ent._snapshot(LYCHI, ly); // store the lychi smiles
+                struc.fragments = true;
+                struc.l4 = hk;
+                struc.lychi = ly;
             }
             else {
                 clone = mol.cloneMolecule();
                 String[] hk = lychify (clone, false);
-                ent._set(H_LyChI_L4, new StitchValue (hk[3]));
-                ent._snapshot(LYCHI, hk[4]);
+                struc.l4 = new String[]{hk[3]};
+                struc.lychi = new String[]{hk[4]};
             }
             
             // with salt + solvent
             clone = mol.cloneMolecule();
             String[] hk = lychify (clone, false);
             if (hk != null)
-                ent._set(H_LyChI_L5, new StitchValue (hk[3]));
+                struc.l5 = hk[3];
+        }
+        catch (Exception ex) {
+            struc.error = ex;
+        }
+        return struc;
+    }
+
+    protected void lychify (Entity ent, Molecule mol) {
+        _lychify (ent, structure (mol));
+    }
+
+    protected void _lychify (Entity ent, Structure struc) {
+        if (struc.error != null) {
+            logger.log(Level.SEVERE, "Can't generate LyChI hash for entity "
+                       +ent.getId(), struc.error);
+            firePropertyChange ("error", ent, struc.error);
+            return;
+        }
+        
+        try {
+            ent._snapshot(MOIETIES, struc.moieties);
+            if (struc.l3 != null)
+                ent._set(H_LyChI_L3, new StitchValue (struc.l3));
+
+            if (struc.fragments) {
+                ent._set(H_LyChI_L4, new StitchValue (struc.l4));
+                ent._snapshot(LYCHI, struc.lychi); // store the lychi smiles
+            }
+            else {
+                ent._set(H_LyChI_L4, new StitchValue (struc.l4[0]));
+                ent._snapshot(LYCHI, struc.lychi[0]);
+            }
+            
+            if (struc.l5 != null)
+                ent._set(H_LyChI_L5, new StitchValue (struc.l5));
         }
         catch (Exception ex) {
             logger.log(Level.SEVERE, "Can't generate LyChI hash for entity "
@@ -969,6 +1325,10 @@ public class EntityRegistry extends EntityFactory {
         return node;
     }
     
+    protected Entity _newEntity () {
+        return Entity._getEntity(_createNode ())._defer(deferred);
+    }
+    
     protected Node createNode () {
         try (Transaction tx = gdb.beginTx()) {
             Node node = _createNode ();
@@ -978,6 +1338,7 @@ public class EntityRegistry extends EntityFactory {
     }
     
     protected void updateMeta (DataSource ds) {
+        flushStitches ();
         stitchMappers.putAll(stitches); // just to double-check we have the stitches; MoleculeEntityFactory seems to skip this step otherwise
         StitchKey[] keys = stitchMappers.keySet().toArray(new StitchKey[0]);
         String[] sk = new String[keys.length];
@@ -0,0 +1,128 @@
+package ncats.stitcher;
+
+import java.io.*;
+import java.util.*;
+import java.util.logging.Logger;
+
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.GraphDatabaseService;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Streams every node with the given labels as newline delimited json.
+ * Nodes are visited in id order with one read transaction per window
+ * of nodes, and each node is written straight to the generator, so
+ * memory is bounded by the window rather than by the size of the
+ * export.
+ */
+public class Exporter implements Props {
+    static final Logger logger = Logger.getLogger(Exporter.class.getName());
+
+    public static final int DEFAULT_WINDOW = 1000;
+
+    public interface Encoder {
+        /*
+         * write one json value for node; called within a transaction
+         */
+        void encode (JsonGenerator gen, Node node) throws IOException;
+    }
+
+    /*
+     * id, labels, properties and the stitched members of a node
+     */
+    public static final Encoder DEFAULT_ENCODER = (gen, node) -> {
+        gen.writeStartObject();
+        gen.writeNumberField("id", node.getId());
+        gen.writeArrayFieldStart("labels");
+        for (Label l : node.getLabels())
+            gen.writeString(l.name());
+        gen.writeEndArray();
+        gen.writeObjectField("properties", node.getAllProperties());
+        if (node.hasLabel(AuxNodeType.SGROUP)) {
+            gen.writeArrayFieldStart("members");
+            for (Relationship rel : node.getRelationships
+                     (AuxRelType.STITCH, Direction.BOTH)) {
+                gen.writeStartObject();
+                gen.writeNumberField
+                    ("node", rel.getOtherNode(node).getId());
+                gen.writeObjectField(SOURCE, rel.getProperty(SOURCE, null));
+                gen.writeEndObject();
+            }
+            gen.writeEndArray();
+        }
+        gen.writeEndObject();
+    };
+
+    final GraphDb graphDb;
+    final GraphDatabaseService gdb;
+    final ObjectMapper mapper = new ObjectMapper ();
+    int window = DEFAULT_WINDOW;
+    Encoder encoder = DEFAULT_ENCODER;
+
+    public Exporter (GraphDb graphDb) {
+        this.graphDb = graphDb;
+        this.gdb = graphDb.graphDb();
+    }
+
+    public Exporter setWindow (int window) {
+        if (window < 1)
+            throw new IllegalArgumentException ("Bogus window: "+window);
+        this.window = window;
+        return this;
+    }
+    public int getWindow () { return window; }
+
+    public Exporter setEncoder (Encoder encoder) {
+        if (encoder == null)
+            throw new IllegalArgumentException ("Encoder can't be null");
+        this.encoder = encoder;
+        return this;
+    }
+    public Encoder getEncoder () { return encoder; }
+
+    public long export (OutputStream os, String... labels) throws IOException {
+        return export (os, Arrays.stream(labels).map(l -> Label.label(l))
+                       .toArray(Label[]::new));
+    }
+
+    /*
+     * returns the number of nodes written; os isn't closed
+     */
+    public long export (OutputStream os, Label... labels) throws IOException {
+        long[] ids = graphDb.ids(labels);
+        long count = 0;
+        try (JsonGenerator gen = mapper.getFactory().createGenerator(os)) {
+            gen.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            gen.setRootValueSeparator(null); // newlines are ours
+            for (int i = 0; i < ids.length; ) {
+                int end = Math.min(ids.length, i+window);
+                try (Transaction tx = gdb.beginTx()) {
+                    for (; i < end; ++i) {
+                        Node node;
+                        try {
+                            node = gdb.getNodeById(ids[i]);
+                        }
+                        catch (NotFoundException ex) { // deleted since
+                            continue;
+                        }
+                        encoder.encode(gen, node);
+                        gen.writeRaw('\n');
+                        ++count;
+                    }
+                    tx.success();
+                }
+                gen.flush();
+            }
+        }
+        logger.info(count+" node(s) exported for "+Arrays.toString(labels));
+
+        return count;
+    }
+}
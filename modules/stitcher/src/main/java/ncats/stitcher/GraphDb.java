@@ -8,6 +8,7 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 
 import java.util.function.Function;
+import java.util.stream.Collectors;
 import java.util.logging.Logger;
 import java.util.logging.Level;
 
@@ -21,6 +22,8 @@ import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.event.*;
 import org.neo4j.graphdb.schema.IndexDefinition;
 import org.neo4j.graphdb.schema.IndexCreator;
+import org.neo4j.index.lucene.LuceneTimeline;
+import org.neo4j.index.lucene.TimelineIndex;
 
 
 /**
@@ -35,16 +38,49 @@ public class GraphDb extends TransactionEventHandler.Adapter
 
     static final Map<File, GraphDb> INSTANCES =
         new ConcurrentHashMap<File, GraphDb>();
+    static final Map<GraphDatabaseService, GraphDb> SERVICES =
+        new ConcurrentHashMap<GraphDatabaseService, GraphDb>();
 
     protected final File dir;
     protected final GraphDatabaseService gdb;
     protected CacheFactory cache;
     protected boolean localCache;
     protected final AtomicLong lastUpdated = new AtomicLong ();
+    protected final AtomicLong generation = new AtomicLong ();
+    // bumped by commits that add or remove a node with the label (or
+    // any node for the empty label)
+    protected final Map<String, AtomicLong> labelGenerations =
+        new ConcurrentHashMap<>();
     
     protected final File indexDir;
     protected final Map<File, TextIndexer> indexers
         = new ConcurrentHashMap<>();
+
+    // shared by every CNode wrapper of this graph
+    protected final DataSourceFactory dsf;
+    protected volatile TimelineIndex<Node> timeline;
+    protected final RootCache roots = new RootCache ();
+    protected final Map<Integer, Indexer> versions = new ConcurrentHashMap<>();
+    protected final ChangeFeed changes;
+
+    static final int MAX_LABEL_IDS = 16;
+    static class LabelIds {
+        final long generation;
+        final long[] ids;
+        LabelIds (long generation, long[] ids) {
+            this.generation = generation;
+            this.ids = ids;
+        }
+    }
+    // sorted node ids per label set, for paging
+    protected final Map<String, LabelIds> labelIds =
+        Collections.synchronizedMap
+            (new LinkedHashMap<String, LabelIds>(16, .75f, true) {
+                protected boolean removeEldestEntry
+                    (Map.Entry<String, LabelIds> e) {
+                    return size () > MAX_LABEL_IDS;
+                }
+            });
     
     protected GraphDb (File dir) throws IOException {
         this (dir, null);
@@ -93,13 +129,16 @@ public class GraphDb extends TransactionEventHandler.Adapter
         }
         */
         
-        gdb.registerTransactionEventHandler(this);
-        gdb.registerKernelEventHandler(this);
-
         indexDir = new File (dir, "index");
         if (!indexDir.exists()) {
             indexDir.mkdirs();
         }
+        changes = new ChangeFeed (new File (indexDir, "changes.log"));
+
+        gdb.registerTransactionEventHandler(this);
+        gdb.registerKernelEventHandler(this);
+        dsf = new DataSourceFactory (this);
+        SERVICES.put(gdb, this);
 
         // this must be initialized after graph initialization
         if (cache == null) {
@@ -114,14 +153,82 @@ public class GraphDb extends TransactionEventHandler.Adapter
         this.dir = dir;
     }
 
+    @Override
+    public Object beforeCommit (TransactionData data) throws Exception {
+        return changes.touched(data);
+    }
+
     @Override
     public void afterCommit (TransactionData data, Object state) {
+        if (state != null)
+            changes.changed((long[])state);
         lastUpdated.set(System.currentTimeMillis());
+        generation.incrementAndGet();
+        // deleted nodes show up with all of their labels removed
+        for (LabelEntry e : data.assignedLabels())
+            labelChanged (e.label().name());
+        for (LabelEntry e : data.removedLabels())
+            labelChanged (e.label().name());
+        if (data.createdNodes().iterator().hasNext()
+            || data.deletedNodes().iterator().hasNext())
+            labelChanged ("");
+        roots.committed(data.deletedNodes().iterator().hasNext());
+    }
+
+    @Override
+    public void afterRollback (TransactionData data, Object state) {
+        roots.rolledBack();
+    }
+
+    void labelChanged (String label) {
+        labelGenerations.computeIfAbsent
+            (label, l -> new AtomicLong ()).incrementAndGet();
+    }
+
+    /*
+     * changes whenever a node gains or loses one of the labels
+     */
+    long generation (Label... labels) {
+        if (labels.length == 0)
+            return generation ("");
+        long gen = 0;
+        for (Label l : labels)
+            gen += generation (l.name());
+        return gen;
+    }
+
+    long generation (String label) {
+        AtomicLong gen = labelGenerations.get(label);
+        return gen != null ? gen.get() : 0l;
     }
 
     public long getLastUpdated () { return lastUpdated.get(); }
+    /*
+     * bumped by every commit
+     */
+    public long getGeneration () { return generation.get(); }
     public GraphDatabaseService graphDb () { return gdb; }
     public CacheFactory getCache () { return cache; }
+    public DataSourceFactory getDataSourceFactory () { return dsf; }
+    RootCache getRootCache () { return roots; }
+    public ChangeFeed getChangeFeed () { return changes; }
+
+    /*
+     * the index itself isn't bound to a transaction, but the first
+     * call has to be made within one
+     */
+    public TimelineIndex<Node> getTimeline () {
+        TimelineIndex<Node> tl = timeline;
+        if (tl == null) {
+            synchronized (this) {
+                if ((tl = timeline) == null) {
+                    timeline = tl = new LuceneTimeline
+                        (gdb, gdb.index().forNodes(CNode.NODE_TIMELINE));
+                }
+            }
+        }
+        return tl;
+    }
     public void setCache (CacheFactory cache) {
         if (cache == null)
             throw new IllegalArgumentException ("Cache can't be null");
@@ -139,8 +246,11 @@ public class GraphDb extends TransactionEventHandler.Adapter
                 logger.log(Level.SEVERE, "Can't close TextIndexer", ex);
             }
         }
+        for (Indexer indexer : versions.values())
+            indexer.shutdown();
         gdb.unregisterTransactionEventHandler(this);
         gdb.shutdown();
+        changes.close();
         if (localCache)
             cache.shutdown();
     }
@@ -188,6 +298,7 @@ public class GraphDb extends TransactionEventHandler.Adapter
     public void beforeShutdown () {
         logger.info("Instance "+dir+" shutting down...");
         INSTANCES.remove(dir);
+        SERVICES.remove(gdb);
     }
 
     public Object getResource () {
@@ -235,14 +346,56 @@ public class GraphDb extends TransactionEventHandler.Adapter
     }
 
     public static GraphDb getInstance (GraphDatabaseService gdb) {
-        for (GraphDb db : INSTANCES.values())
-            if (db.graphDb() == gdb)
-                return db;
-        return null;
+        return SERVICES.get(gdb);
     }
 
+    /*
+     * index of the S_STITCH_V<version> nodes
+     */
     public Indexer getIndexer (Integer version) throws IOException {
-        return Indexer.getInstance(new File (indexDir, "v"+version));
+        Indexer indexer = Indexer.getInstance
+            (gdb, new File (indexDir, "v"+version),
+             Label.label("S_STITCH_V"+version));
+        versions.put(version, indexer);
+        return indexer;
+    }
+
+    /*
+     * sorted ids of the nodes carrying all of the labels; the list is
+     * built once and reused until a commit adds or removes one of the
+     * labels, so paging through it costs the same for every page
+     */
+    public long[] ids (Label... labels) {
+        String key = Arrays.stream(labels).map(Label::name)
+            .sorted().collect(Collectors.joining(":"));
+        long gen = generation (labels);
+        LabelIds cached = labelIds.get(key);
+        if (cached != null && cached.generation == gen)
+            return cached.ids;
+
+        long[] ids = new long[1024];
+        int size = 0;
+        try (Transaction tx = gdb.beginTx()) {
+            Iterator<Node> it = labels.length == 0
+                ? gdb.getAllNodes().iterator() : gdb.findNodes(labels[0]);
+            while (it.hasNext()) {
+                Node n = it.next();
+                boolean matched = true;
+                for (int i = 1; i < labels.length && matched; ++i)
+                    matched = n.hasLabel(labels[i]);
+                if (matched) {
+                    if (size == ids.length)
+                        ids = Arrays.copyOf(ids, size*2);
+                    ids[size++] = n.getId();
+                }
+            }
+            tx.success();
+        }
+        ids = Arrays.copyOf(ids, size);
+        Arrays.sort(ids);
+        labelIds.put(key, new LabelIds (gen, ids));
+        
+        return ids;
     }
 
     public static void addShutdownHook () {
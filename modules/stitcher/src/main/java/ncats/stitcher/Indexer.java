@@ -3,7 +3,8 @@ package ncats.stitcher;
 import java.io.*;
 import java.util.*;
 import java.util.concurrent.locks.*;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
@@ -18,53 +19,126 @@ import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.search.*;
 import org.apache.lucene.util.IOUtils;
 import org.apache.lucene.facet.*;
+import org.apache.lucene.facet.taxonomy.FastTaxonomyFacetCounts;
+import org.apache.lucene.facet.taxonomy.SearcherTaxonomyManager;
 import org.apache.lucene.facet.taxonomy.directory.*;
 
+import org.neo4j.graphdb.Direction;
 import org.neo4j.graphdb.Label;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.Entity;
 import org.neo4j.graphdb.Relationship;
 import org.neo4j.graphdb.Transaction;
 import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.ResourceIterator;
+import org.neo4j.graphdb.event.LabelEntry;
+import org.neo4j.graphdb.event.PropertyEntry;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+import org.neo4j.kernel.internal.GraphDatabaseAPI;
+import org.neo4j.kernel.impl.transaction.log.TransactionIdStore;
 
-
-public class Indexer {
+/**
+ * Near-real-time Lucene index of the nodes with a given label (e.g.,
+ * S_STITCH_Vn) kept in sync with the graph through a transaction
+ * event handler. Every property value of a node and of the payloads
+ * it reaches through STITCH relationships (as EntityFactory's legacy
+ * node index has them) is indexed as an exact term under its own
+ * name (and strings also as full text), labels are indexed as terms
+ * and facets. Changes are visible to searches as
+ * soon as the graph transaction commits; the index itself is only
+ * committed every COMMIT_BATCH documents and on shutdown.
+ *
+ * Only commits made while the index is open reach it, so a clean
+ * shutdown records the graph's last transaction id with the index.
+ * If that doesn't match the graph when the index is opened again
+ * (e.g., the graph was changed by an offline run or the process
+ * died), the index is rebuilt in the background and isReady() is
+ * false until it's done.
+ */
+public class Indexer extends TransactionEventHandler.Adapter<List<Object>> {
     static final Logger logger = Logger.getLogger(Indexer.class.getName());
-    
+
     static final String DEFAULT_FACET = "facet"; // facet index
     static final String DEFAULT_TEXT = "text"; // lucene index
     static final String DEFAULT_SUGGEST = "suggest"; // suggest index
-    
-    
+
+    public static final String FIELD_ID = "@id";
+    public static final String FIELD_LABEL = "@label";
+    public static final String FIELD_TEXT = "text";
+
+    static final int COMMIT_BATCH = 1000;
+    static final int MAX_TERM = 1024; // longer values are text only
+    static final int MAX_FACETS = 100;
+    // commit data with the graph's last transaction id
+    static final String GRAPH_TX = "graph.tx";
+
+    public static class SearchResult {
+        public final long[] ids;
+        public final int skip;
+        public final int top;
+        public final int total;
+        // label -> count over all matches
+        public final Map<String, Integer> facets = new LinkedHashMap<>();
+
+        SearchResult (long[] ids, int skip, int top, int total) {
+            this.ids = ids;
+            this.skip = skip;
+            this.top = top;
+            this.total = total;
+        }
+        public int size () { return ids.length; }
+    }
+
     final ReentrantLock lock = new ReentrantLock ();
     protected File base;
     protected Directory textDir;
     protected Directory facetsDir;
     protected IndexWriter indexWriter;
     protected DirectoryTaxonomyWriter facetsWriter;
-    protected FacetsConfig facetsConfig; 
-    protected IndexSearcher indexSearcher;
+    protected FacetsConfig facetsConfig;
+    protected SearcherTaxonomyManager searcherManager;
+    protected GraphDatabaseService gdb;
+    protected Label label;
+
+    final AtomicBoolean dirty = new AtomicBoolean ();
+    final AtomicBoolean ready = new AtomicBoolean ();
+    final AtomicInteger pending = new AtomicInteger ();
+    /*
+     * live updates held back while reindexing, so a document the
+     * reindex built earlier can't overwrite a newer one; guarded by
+     * lock
+     */
+    List<Object> deferred;
 
     static final Map<File, Indexer> INSTANCES = new ConcurrentHashMap<>();
 
-    protected Indexer (File base) throws IOException {
+    protected Indexer (GraphDatabaseService gdb, File base, Label label)
+        throws IOException {
         if (!base.exists())
             base.mkdirs();
-        
+
         File dir = new File (base, DEFAULT_TEXT);
         dir.mkdirs();
         textDir = new NIOFSDirectory (dir.toPath());
         IndexWriterConfig config =
             new IndexWriterConfig (new StandardAnalyzer ());
         indexWriter = new IndexWriter (textDir, config);
-        
+
         dir = new File (base, DEFAULT_FACET);
         dir.mkdirs();
         facetsDir = new NIOFSDirectory (dir.toPath());
         facetsWriter = new DirectoryTaxonomyWriter (facetsDir);
         facetsConfig = new FacetsConfig ();
+        facetsConfig.setMultiValued(FIELD_LABEL, true);
+
+        searcherManager = new SearcherTaxonomyManager
+            (indexWriter, true, new SearcherFactory (), facetsWriter);
 
+        this.gdb = gdb;
+        this.label = label;
         this.base = base;
+        gdb.registerTransactionEventHandler(this);
         INSTANCES.put(base, this);
     }
 
@@ -72,6 +146,11 @@ public class Indexer {
         lock.lock();
         try {
             if (INSTANCES.containsKey(base)) {
+                // read before unregistering so we never claim more
+                long txid = lastTxId ();
+                gdb.unregisterTransactionEventHandler(this);
+                commit (ready.get() ? txid : null);
+                IOUtils.close(searcherManager);
                 IOUtils.close(indexWriter);
                 IOUtils.close(textDir);
                 IOUtils.close(facetsWriter);
@@ -87,26 +166,424 @@ public class Indexer {
         }
     }
 
-    public synchronized static Indexer getInstance (File base)
+    /*
+     * index of nodes with the given label; an index that's empty or
+     * out of date with the graph is rebuilt in the background
+     */
+    public synchronized static Indexer getInstance
+        (GraphDatabaseService gdb, File base, Label label)
         throws IOException {
         Indexer indexer = INSTANCES.get(base);
         if (indexer == null) {
-            indexer = new Indexer (base);
+            indexer = new Indexer (gdb, base, label);
+            String txid = indexer.indexWriter.getCommitData().get(GRAPH_TX);
+            if (indexer.indexWriter.numDocs() == 0
+                || !String.valueOf(indexer.lastTxId()).equals(txid)) {
+                logger.info(base+": index is out of date ("+txid
+                            +" vs "+indexer.lastTxId()+"); rebuilding...");
+                final Indexer idx = indexer;
+                Thread t = new Thread (() -> {
+                        try {
+                            idx.rebuild();
+                        }
+                        catch (Exception ex) {
+                            logger.log(Level.SEVERE,
+                                       "Can't rebuild index "+base, ex);
+                        }
+                    }, "Indexer "+base.getName());
+                t.setDaemon(true);
+                t.start();
+            }
+            else {
+                indexer.ready.set(true);
+            }
         }
         return indexer;
     }
 
+    public Label getLabel () { return label; }
+    public int size () { return indexWriter.numDocs(); }
+    /*
+     * false while the index is being rebuilt, during which searches
+     * are incomplete
+     */
+    public boolean isReady () { return ready.get(); }
+
+    long lastTxId () {
+        return ((GraphDatabaseAPI)gdb).getDependencyResolver()
+            .resolveDependency(TransactionIdStore.class)
+            .getLastCommittedTransactionId();
+    }
+
+    /*
+     * drop everything and index every node with our label; commits
+     * made meanwhile still go through the event handler
+     */
+    public int rebuild () throws IOException {
+        ready.set(false);
+        long txid = lastTxId ();
+        int count = reindex (true);
+        commit (txid);
+        ready.set(true);
+        return count;
+    }
+
+    /*
+     * (re)index every node with our label
+     */
+    public int reindex () throws IOException {
+        return reindex (false);
+    }
+
+    int reindex (boolean clear) throws IOException {
+        lock.lock();
+        try {
+            if (deferred != null)
+                throw new IllegalStateException
+                    ("Index "+base+" is already being reindexed!");
+            deferred = new ArrayList<>();
+        }
+        finally {
+            lock.unlock();
+        }
+
+        int count = 0;
+        try {
+            if (clear)
+                indexWriter.deleteAll();
+            try (Transaction tx = gdb.beginTx();
+                 ResourceIterator<Node> it = gdb.findNodes(label)) {
+                while (it.hasNext()) {
+                    _update (it.next());
+                    ++count;
+                }
+                tx.success();
+            }
+        }
+        finally {
+            // whatever committed meanwhile goes on top in commit order
+            lock.lock();
+            try {
+                List<Object> docs = deferred;
+                deferred = null;
+                write (docs);
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+        commit ();
+        dirty.set(true);
+        logger.info("#### "+count+" "+label+" node(s) indexed in "+base);
+        return count;
+    }
+
+    public void commit () throws IOException {
+        commit (null);
+    }
+
+    /*
+     * txid is the graph transaction the index is known to be in sync
+     * with; null means it might not be once this commit is all that's
+     * left (e.g., the process dies)
+     */
+    void commit (Long txid) throws IOException {
+        lock.lock();
+        try {
+            Map<String, String> data = new HashMap<>();
+            if (txid != null)
+                data.put(GRAPH_TX, txid.toString());
+            indexWriter.setCommitData(data);
+            // taxonomy first so the index never refers to missing facets
+            facetsWriter.commit();
+            indexWriter.commit();
+            pending.set(0);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    void index (Document doc, String name, Object value) {
+        if (value == null)
+            return;
+
+        if (value.getClass().isArray()) {
+            int len = java.lang.reflect.Array.getLength(value);
+            for (int i = 0; i < len; ++i)
+                index (doc, name, java.lang.reflect.Array.get(value, i));
+        }
+        else {
+            String s = value.toString();
+            if (s.length() <= MAX_TERM)
+                doc.add(new StringField (name, s, Field.Store.NO));
+            if (value instanceof String)
+                doc.add(new TextField (FIELD_TEXT, s, Field.Store.NO));
+        }
+    }
+
+    /*
+     * must be called within a transaction
+     */
+    protected Document instrument (Node node) {
+        Document doc = new Document ();
+        doc.add(new StringField
+                (FIELD_ID, String.valueOf(node.getId()), Field.Store.YES));
+        doc.add(new NumericDocValuesField (FIELD_ID, node.getId()));
+        for (Label l : node.getLabels()) {
+            doc.add(new StringField (FIELD_LABEL, l.name(), Field.Store.NO));
+            doc.add(new FacetField (FIELD_LABEL, l.name()));
+        }
+        for (Map.Entry<String, Object> me
+                 : node.getAllProperties().entrySet())
+            index (doc, me.getKey(), me.getValue());
+        for (Relationship rel : node.getRelationships
+                 (Direction.OUTGOING, AuxRelType.STITCH)) {
+            for (Map.Entry<String, Object> me
+                     : rel.getEndNode().getAllProperties().entrySet())
+                index (doc, me.getKey(), me.getValue());
+        }
+        return doc;
+    }
+
+    static Term idTerm (long id) {
+        return new Term (FIELD_ID, String.valueOf(id));
+    }
+
+    void _update (Node node) throws IOException {
+        indexWriter.updateDocument
+            (idTerm (node.getId()),
+             facetsConfig.build(facetsWriter, instrument (node)));
+    }
+
+    void written (int n) throws IOException {
+        dirty.set(true);
+        if (pending.addAndGet(n) >= COMMIT_BATCH)
+            commit ();
+    }
+
     public void add (Entity ent) {
-        String FIELD_ID = ent.getClass().getName()+".__id";
+        if (ent instanceof Node) {
+            try {
+                _update ((Node)ent);
+                written (1);
+            }
+            catch (IOException ex) {
+                logger.log(Level.SEVERE, "Can't index node "+ent.getId(), ex);
+            }
+        }
     }
 
     public void addIfAbsent (Entity ent) {
-        String FIELD_ID = ent.getClass().getName()+".__id";
+        if (ent instanceof Node) {
+            try {
+                refresh ();
+                SearcherTaxonomyManager.SearcherAndTaxonomy st =
+                    searcherManager.acquire();
+                try {
+                    if (st.searcher.search
+                        (new TermQuery (idTerm (ent.getId())), 1)
+                        .totalHits == 0)
+                        add (ent);
+                }
+                finally {
+                    searcherManager.release(st);
+                }
+            }
+            catch (IOException ex) {
+                logger.log(Level.SEVERE, "Can't index node "+ent.getId(), ex);
+            }
+        }
     }
 
     public void update (Entity ent) {
+        if (ent instanceof Node) {
+            try {
+                _update ((Node)ent);
+                written (1);
+            }
+            catch (IOException ex) {
+                logger.log(Level.SEVERE, "Can't index node "+ent.getId(), ex);
+            }
+        }
     }
 
     public void remove (Entity ent) {
+        try {
+            indexWriter.deleteDocuments(idTerm (ent.getId()));
+            written (1);
+        }
+        catch (IOException ex) {
+            logger.log(Level.SEVERE, "Can't remove node "+ent.getId(), ex);
+        }
+    }
+
+    /*
+     * TransactionEventHandler; documents are built while the
+     * transaction can still read the nodes and written after commit
+     */
+    @Override
+    public List<Object> beforeCommit (TransactionData data) throws Exception {
+        Set<Node> changed = new LinkedHashSet<>();
+        Set<Long> removed = new TreeSet<>();
+        for (Node n : data.createdNodes())
+            changed.add(n);
+        for (PropertyEntry<Node> e : data.assignedNodeProperties())
+            changed.add(e.entity());
+        for (PropertyEntry<Node> e : data.removedNodeProperties())
+            changed.add(e.entity());
+        for (LabelEntry e : data.assignedLabels())
+            changed.add(e.node());
+        for (LabelEntry e : data.removedLabels()) {
+            if (e.label().equals(label))
+                removed.add(e.node().getId());
+            else // @label terms and facets
+                changed.add(e.node());
+        }
+        for (Node n : data.deletedNodes())
+            removed.add(n.getId());
+
+        // stitches whose payloads changed
+        Set<Node> stitches = new LinkedHashSet<>();
+        for (Node n : changed) {
+            if (!removed.contains(n.getId()) && !n.hasLabel(label)) {
+                for (Relationship rel : n.getRelationships
+                         (Direction.INCOMING, AuxRelType.STITCH))
+                    stitches.add(rel.getStartNode());
+            }
+        }
+        for (Relationship rel : data.createdRelationships()) {
+            if (rel.isType(AuxRelType.STITCH))
+                stitches.add(rel.getStartNode());
+        }
+        for (Relationship rel : data.deletedRelationships()) {
+            try {
+                if (rel.isType(AuxRelType.STITCH))
+                    stitches.add(rel.getStartNode());
+            }
+            catch (Exception ex) {
+                // both ends went with it
+            }
+        }
+        changed.addAll(stitches);
+
+        List<Object> docs = new ArrayList<>();
+        for (Node n : changed) {
+            if (!removed.contains(n.getId()) && n.hasLabel(label))
+                docs.add(instrument (n));
+        }
+        docs.addAll(removed);
+        return docs;
+    }
+
+    @Override
+    public void afterCommit (TransactionData data, List<Object> docs) {
+        if (docs == null || docs.isEmpty())
+            return;
+        lock.lock();
+        try {
+            if (deferred != null)
+                deferred.addAll(docs);
+            else
+                write (docs);
+        }
+        catch (IOException ex) {
+            logger.log(Level.SEVERE, "Can't update index "+base, ex);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    void write (List<Object> docs) throws IOException {
+        for (Object d : docs) {
+            if (d instanceof Document) {
+                Document doc = (Document)d;
+                indexWriter.updateDocument
+                    (new Term (FIELD_ID, doc.get(FIELD_ID)),
+                     facetsConfig.build(facetsWriter, doc));
+            }
+            else {
+                indexWriter.deleteDocuments(idTerm ((Long)d));
+            }
+        }
+        written (docs.size());
+    }
+
+    /*
+     * make everything written so far visible to search
+     */
+    public void refresh () throws IOException {
+        if (dirty.getAndSet(false))
+            searcherManager.maybeRefreshBlocking();
+    }
+
+    /*
+     * nodes with all of the given property values and labels, in
+     * node id order; facets has the label counts over all matches
+     */
+    public SearchResult filter (Map<String, Object> values,
+                                Collection<String> labels,
+                                int skip, int top) throws IOException {
+        BooleanQuery.Builder builder = new BooleanQuery.Builder ();
+        int clauses = 0;
+        if (values != null) {
+            for (Map.Entry<String, Object> me : values.entrySet()) {
+                builder.add(new TermQuery
+                            (new Term (me.getKey(),
+                                       me.getValue().toString())),
+                            BooleanClause.Occur.FILTER);
+                ++clauses;
+            }
+        }
+        if (labels != null) {
+            for (String l : labels) {
+                builder.add(new TermQuery (new Term (FIELD_LABEL, l)),
+                            BooleanClause.Occur.FILTER);
+                ++clauses;
+            }
+        }
+        Query query = clauses > 0
+            ? builder.build() : new MatchAllDocsQuery ();
+        return search (query, skip, top);
+    }
+
+    public SearchResult search (Query query, int skip, int top)
+        throws IOException {
+        refresh ();
+        SearcherTaxonomyManager.SearcherAndTaxonomy st =
+            searcherManager.acquire();
+        try {
+            FacetsCollector fc = new FacetsCollector ();
+            TopFieldDocs hits = FacetsCollector.search
+                (st.searcher, query, Math.max(1, skip+top),
+                 new Sort (new SortField (FIELD_ID, SortField.Type.LONG)),
+                 fc);
+
+            int size = Math.max(0, Math.min(skip+top, hits.scoreDocs.length)
+                                - skip);
+            long[] ids = new long[size];
+            for (int i = 0; i < size; ++i) {
+                Document doc = st.searcher.doc(hits.scoreDocs[skip+i].doc);
+                ids[i] = Long.parseLong(doc.get(FIELD_ID));
+            }
+
+            SearchResult result =
+                new SearchResult (ids, skip, top, hits.totalHits);
+            if (hits.totalHits > 0) {
+                Facets facets = new FastTaxonomyFacetCounts
+                    (st.taxonomyReader, facetsConfig, fc);
+                FacetResult fr = facets.getTopChildren
+                    (MAX_FACETS, FIELD_LABEL);
+                if (fr != null) {
+                    for (LabelAndValue lv : fr.labelValues)
+                        result.facets.put(lv.label, lv.value.intValue());
+                }
+            }
+            return result;
+        }
+        finally {
+            searcherManager.release(st);
+        }
     }
 }
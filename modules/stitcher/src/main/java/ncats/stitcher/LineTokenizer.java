@@ -2,16 +2,48 @@ package ncats.stitcher;
 
 import java.io.*;
 import java.util.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+/**
+ * Delimited record tokenizer. Input is scanned a block at a time;
+ * tokens that don't span a block or contain quotes are cut straight
+ * out of the block. Quotes toggle quoting wherever they appear and
+ * are dropped, quoted delimiters and newlines are kept, carriage
+ * returns are ignored and empty tokens are null.
+ *
+ * With setFile and threads > 0 an uncompressed file is split into
+ * chunks at record boundaries that aren't inside quotes; chunks are
+ * tokenized on a pool of threads and the records are still returned
+ * in file order.
+ */
 public class LineTokenizer implements Iterator<String[]> {
+    static final int BLOCK = 1<<16;
+    static final int CHUNK = 1<<23; // 8mb per parallel chunk
+
     protected char delim;
     protected Reader reader;
-    protected char[] buf = new char[1];
+    protected char[] buf = new char[BLOCK];
+    protected int pos, len;
+    protected char last; // last char read
     protected String[] tokens;
     protected boolean checkQuote = true;
-    
+
     protected int count, lines;
+    // only used when the current line spans more than one block
     protected StringBuilder currentLine = new StringBuilder ();
+    protected int lineStart, lineEnd;
+    protected boolean lineSpilled;
+
+    protected final List<String> row = new ArrayList<>();
+    protected final StringBuilder tok = new StringBuilder ();
+
+    // parallel mode
+    protected Chunks chunks;
 
     public LineTokenizer () {
         this ('\t');
@@ -29,64 +61,158 @@ public class LineTokenizer implements Iterator<String[]> {
         this.checkQuote = checkQuote;
     }
 
-    protected String[] nextLine () throws IOException {
-        List<String> tokens = new ArrayList<String>();
-        int i = 0, nb;
+    /*
+     * refill the block; anything of the current line that is still
+     * in the block is moved to currentLine first
+     */
+    protected boolean fill () throws IOException {
+        if (pos > lineStart) {
+            currentLine.append(buf, lineStart, pos - lineStart);
+            lineSpilled = true;
+        }
+        if (len > 0)
+            last = buf[len-1];
+        len = Math.max(0, reader.read(buf, 0, buf.length));
+        pos = lineStart = 0;
+        return len > 0;
+    }
+
+    protected String token (int start, int end) {
+        if (tok.length() == 0)
+            return end > start ? new String (buf, start, end - start) : null;
+        tok.append(buf, start, end - start);
+        String s = tok.toString();
+        tok.setLength(0);
+        return s;
+    }
 
-        boolean quote = false;
-        StringBuilder tok = new StringBuilder ();
+    protected String[] nextLine () throws IOException {
+        row.clear();
+        tok.setLength(0);
         currentLine.setLength(0);
-        while ((nb = reader.read(buf)) != -1) {
-            currentLine.append(buf[0]);
-            
-            if (buf[0] == '"' && checkQuote) {
+        lineSpilled = false;
+        lineStart = pos;
+
+        boolean quote = false, eof = false;
+        int start = pos; // start of the pending run of token chars
+        scan: while (true) {
+            if (pos == len) {
+                tok.append(buf, start, pos - start);
+                if (!fill ()) {
+                    eof = true;
+                    break;
+                }
+                start = 0;
+            }
+
+            // bulk scan up to the next char of interest
+            int i = pos;
+            if (quote) {
+                for (char ch; i < len && (ch = buf[i]) != '"'
+                         && ch != '\r' && ch != '\n'; ++i)
+                    ;
+            }
+            else {
+                for (char ch; i < len && (ch = buf[i]) != delim
+                         && ch != '"' && ch != '\r' && ch != '\n'; ++i)
+                    ;
+            }
+            pos = i;
+            if (i == len)
+                continue;
+
+            char ch = buf[i];
+            ++pos;
+            if (ch == '"' && checkQuote) {
+                tok.append(buf, start, i - start);
+                start = pos;
                 quote = !quote;
             }
-            else if (buf[0] == '\r') {
+            else if (ch == '\r') {
+                tok.append(buf, start, i - start);
+                start = pos;
             }
-            else if (buf[0] == '\n') {
+            else if (ch == '\n') {
                 ++lines;
                 if (!quote) {
-                    tokens.add(tok.length() > 0? tok.toString() : null);
-                    break;
+                    row.add(token (start, i));
+                    break scan;
                 }
-                else
-                    tok.append('\n');
+                // quoted newline stays in the run
             }
-            else if (buf[0] != delim || quote) {
-                tok.append(buf[0]);
+            else if (ch != delim || quote) {
+                // quote char with checkQuote off
             }
             else {
-                tokens.add(tok.length() > 0 ? tok.toString() : null);
-                tok.setLength(0);
+                row.add(token (start, i));
+                start = pos;
             }
         }
+        lineEnd = pos;
 
-        if (nb == -1) {
-            if (tokens.isEmpty()) return null;
+        if (eof) {
+            if (row.isEmpty()) return null;
             // in case no terminating newline at the end of the last record
-            if (buf[0] != '\n')
-                tokens.add(tok.length() > 0 ? tok.toString() : null);           
+            if (last != '\n')
+                row.add(token (0, 0));
         }
         ++count;
-        
-        return tokens.toArray(new String[0]);
+
+        return row.toArray(new String[row.size()]);
     }
-    
+
     public void setInputStream (InputStream is) throws IOException {
-        reader = new BufferedReader (new InputStreamReader (is));
+        close ();
+        reader = new InputStreamReader (is);
+        pos = len = lineStart = lineEnd = 0;
+        last = 0;
         lines = 0;
         count = 0;
         currentLine.setLength(0);
         tokens = nextLine ();
     }
 
+    /*
+     * tokenize file with threads workers; compressed files and
+     * threads < 1 are read sequentially
+     */
+    public void setFile (File file, int threads) throws IOException {
+        String name = file.getName().toLowerCase();
+        if (threads < 1 || name.endsWith(".gz") || name.endsWith(".zip")) {
+            setInputStream (new FileInputStream (file));
+        }
+        else {
+            close ();
+            reader = null;
+            lines = 0;
+            count = 0;
+            currentLine.setLength(0);
+            chunks = new Chunks (file, threads);
+            tokens = chunks.next();
+        }
+    }
+
+    public void close () {
+        if (chunks != null) {
+            chunks.close();
+            chunks = null;
+        }
+    }
+
     public int getCount () { return count; }
     public int getLineCount () { return lines; }
+    /*
+     * not available for parallel tokenizing
+     */
     public String getCurrentLine () {
-        return currentLine.toString();
+        if (chunks != null)
+            return null;
+        if (!lineSpilled)
+            return new String (buf, lineStart, lineEnd - lineStart);
+        return currentLine.toString()
+            + new String (buf, 0, lineEnd);
     }
-    
+
     public boolean hasNext () {
         return tokens != null;
     }
@@ -96,15 +222,162 @@ public class LineTokenizer implements Iterator<String[]> {
             throw new IllegalStateException ("No line available");
         String[] line = tokens;
         try {
-            tokens = nextLine ();
+            tokens = chunks != null ? chunks.next() : nextLine ();
         }
         catch (IOException ex) {
             ex.printStackTrace();
             tokens = null;
         }
+        if (tokens == null)
+            close ();
         return line;
     }
 
+    static class Chunk {
+        final List<String[]> rows = new ArrayList<>();
+        final List<Integer> lines = new ArrayList<>();
+        int total; // lines in the chunk
+    }
+
+    static class ByteBufferInputStream extends InputStream {
+        final ByteBuffer bb;
+        ByteBufferInputStream (ByteBuffer bb) {
+            this.bb = bb;
+        }
+        public int read () {
+            return bb.hasRemaining() ? bb.get() & 0xff : -1;
+        }
+        public int read (byte[] b, int off, int len) {
+            if (!bb.hasRemaining())
+                return -1;
+            len = Math.min(len, bb.remaining());
+            bb.get(b, off, len);
+            return len;
+        }
+    }
+
+    /*
+     * chunks of the file in order; boundaries are found on this thread
+     * while the workers tokenize at most 2*threads chunks ahead
+     */
+    class Chunks {
+        final RandomAccessFile raf;
+        final FileChannel channel;
+        final long size;
+        final int window;
+        final ExecutorService es;
+        final LinkedList<Future<Chunk>> queue = new LinkedList<>();
+        long offset;
+        Chunk current;
+        int next, base;
+
+        Chunks (File file, int threads) throws IOException {
+            raf = new RandomAccessFile (file, "r");
+            channel = raf.getChannel();
+            size = channel.size();
+            window = 2*threads;
+            es = Executors.newFixedThreadPool(threads, r -> {
+                    Thread t = new Thread (r, "tokenizer");
+                    t.setDaemon(true);
+                    return t;
+                });
+        }
+
+        /*
+         * first record boundary at or after offset+CHUNK that isn't
+         * inside quotes; '"' and '\n' never occur within a multibyte
+         * utf8 sequence, so this is safe to do on bytes
+         */
+        long boundary (long offset) throws IOException {
+            long end = Math.min(size, offset + CHUNK);
+            if (end == size)
+                return size;
+
+            boolean quote = false;
+            for (long w = offset; w < size; w += CHUNK) {
+                ByteBuffer bb = channel.map(FileChannel.MapMode.READ_ONLY,
+                                            w, Math.min(CHUNK, size - w));
+                for (int i = 0, n = bb.limit(); i < n; ++i) {
+                    byte b = bb.get(i);
+                    if (b == '"' && checkQuote)
+                        quote = !quote;
+                    else if (b == '\n' && !quote && w + i >= end - 1)
+                        return w + i + 1;
+                }
+            }
+            return size;
+        }
+
+        void submit () throws IOException {
+            while (queue.size() < window && offset < size) {
+                final long start = offset;
+                final long end = boundary (offset);
+                offset = end;
+                queue.add(es.submit(() -> tokenize (start, end)));
+            }
+        }
+
+        Chunk tokenize (long start, long end) throws IOException {
+            LineTokenizer tokenizer = new LineTokenizer (delim);
+            tokenizer.setCheckQuote(checkQuote);
+            tokenizer.setInputStream
+                (new ByteBufferInputStream
+                 (channel.map(FileChannel.MapMode.READ_ONLY,
+                              start, end - start)));
+            Chunk chunk = new Chunk ();
+            while (tokenizer.hasNext()) {
+                // lines up to and including this record
+                chunk.lines.add(tokenizer.getLineCount());
+                chunk.rows.add(tokenizer.next());
+            }
+            chunk.total = tokenizer.getLineCount();
+            return chunk;
+        }
+
+        String[] next () throws IOException {
+            while (current == null || next == current.rows.size()) {
+                if (current != null) {
+                    base += current.total;
+                    current = null;
+                }
+                submit ();
+                if (queue.isEmpty()) {
+                    lines = base;
+                    return null;
+                }
+                try {
+                    current = queue.poll().get();
+                    next = 0;
+                }
+                catch (ExecutionException ex) {
+                    Throwable t = ex.getCause();
+                    throw t instanceof IOException
+                        ? (IOException)t : new IOException (t);
+                }
+                catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException (ex);
+                }
+            }
+            ++count;
+            lines = base + current.lines.get(next);
+            return current.rows.get(next++);
+        }
+
+        void close () {
+            for (Future<Chunk> f : queue)
+                f.cancel(true);
+            queue.clear();
+            es.shutdown();
+            try {
+                raf.close();
+            }
+            catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        }
+    }
+
     public static void main (String[] argv) throws Exception {
         if (argv.length == 0) {
             System.err.println("Usage: LineTokenizer [delimiter=tab] FILES...");
@@ -112,7 +385,7 @@ public class LineTokenizer implements Iterator<String[]> {
         }
 
         LineTokenizer tokenizer = new LineTokenizer ();
-        Map<String, Set<String>> uvals = new HashMap<>();       
+        Map<String, Set<String>> uvals = new HashMap<>();
         for (String a : argv) {
             int pos = a.indexOf('=');
             if (pos > 0) {
@@ -0,0 +1,417 @@
+package ncats.stitcher;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+import java.util.logging.Level;
+
+/**
+ * Persistent key/value store backed by a memory-mapped append-only
+ * log. Every put appends a record (sha1 of the key followed by the
+ * encoded value) and a remove appends a tombstone; the latest record
+ * for a key wins. The hash index (64-bit key tag to log offset) lives
+ * off-heap and is rebuilt by scanning the log when the store is
+ * opened. Writes are serialized, reads never lock: the log is only
+ * ever appended to and a full index is replaced rather than resized in
+ * place, so a reader that races with a writer simply misses the entry
+ * being written.
+ */
+public class MappedCache implements Closeable {
+    static final Logger logger =
+        Logger.getLogger(MappedCache.class.getName());
+
+    public static final String LOG = "cache.log";
+
+    static final int MAGIC = 0x53544348; // STCH
+    static final int VERSION = 1;
+    static final int HEADER = 16; // magic, version, end
+    static final int SEGMENT = 1<<26; // 64mb per mapping
+    static final int DIGEST = 20;
+
+    // value types
+    static final byte TOMBSTONE = 0;
+    static final byte STRING = 1;
+    static final byte STRINGS = 2;
+    static final byte OBJECT = 3;
+
+    /*
+     * open addressing table of (tag, offset) pairs; offset 0 is an
+     * empty slot since no record lives inside the header
+     */
+    static class Index {
+        final ByteBuffer table;
+        final int mask;
+        int size;
+
+        Index (int capacity) {
+            int tsize = Integer.highestOneBit(Math.max(1024, capacity)-1)<<2;
+            table = ByteBuffer.allocateDirect(tsize*16);
+            mask = tsize - 1;
+        }
+
+        int capacity () { return mask+1; }
+
+        long offset (long tag) {
+            for (int h = (int)(tag ^ (tag >>> 32)) & mask; ;
+                 h = (h + 1) & mask) {
+                long off = table.getLong(h*16+8);
+                if (off == 0l)
+                    return 0l;
+                if (table.getLong(h*16) == tag)
+                    return off;
+            }
+        }
+
+        /*
+         * returns the previous offset for tag, if any
+         */
+        long put (long tag, long offset) {
+            int h = (int)(tag ^ (tag >>> 32)) & mask;
+            for (long off; (off = table.getLong(h*16+8)) != 0l;
+                 h = (h + 1) & mask) {
+                if (table.getLong(h*16) == tag) {
+                    table.putLong(h*16+8, offset);
+                    return off;
+                }
+            }
+            // tag before offset so the slot is never seen half written
+            table.putLong(h*16, tag);
+            table.putLong(h*16+8, offset);
+            ++size;
+            return 0l;
+        }
+    }
+
+    final File file;
+    final RandomAccessFile raf;
+    final FileChannel channel;
+    final FileLock lock;
+    volatile MappedByteBuffer[] segments = new MappedByteBuffer[0];
+    volatile Index index;
+    volatile long end;
+    int count; // live keys
+
+    final LongAdder hits = new LongAdder ();
+    final LongAdder misses = new LongAdder ();
+
+    public MappedCache (File dir) throws IOException {
+        dir.mkdirs();
+        if (!dir.isDirectory())
+            throw new IllegalArgumentException (dir+" is not a directory!");
+
+        file = new File (dir, LOG);
+        raf = new RandomAccessFile (file, "rw");
+        channel = raf.getChannel();
+        lock = channel.tryLock();
+        if (lock == null) {
+            raf.close();
+            throw new IOException (file+" is locked by another process!");
+        }
+
+        try {
+            open ();
+        }
+        catch (IOException ex) {
+            lock.release();
+            raf.close();
+            throw ex;
+        }
+    }
+
+    public static boolean exists (File dir) {
+        return new File (dir, LOG).exists();
+    }
+
+    void open () throws IOException {
+        long size = channel.size();
+        int nseg = (int)Math.max(1l, (size + SEGMENT - 1) / SEGMENT);
+        MappedByteBuffer[] segs = new MappedByteBuffer[nseg];
+        for (int i = 0; i < nseg; ++i)
+            segs[i] = map (i);
+        segments = segs;
+
+        ByteBuffer header = segs[0];
+        if (size == 0l) {
+            header.putInt(0, MAGIC);
+            header.putInt(4, VERSION);
+            header.putLong(8, HEADER);
+        }
+        else if (header.getInt(0) != MAGIC) {
+            throw new IOException (file+" is not a cache log!");
+        }
+        else if (header.getInt(4) != VERSION) {
+            throw new IOException (file+" has unknown version "
+                                   +header.getInt(4));
+        }
+
+        long last = header.getLong(8);
+        Index idx = new Index (1024);
+        long pos = HEADER;
+        while (pos < last) {
+            ByteBuffer seg = segs[(int)(pos / SEGMENT)];
+            int len = SEGMENT - (int)(pos % SEGMENT) < 4
+                ? 0 : seg.getInt((int)(pos % SEGMENT));
+            if (len == 0) { // padding to the next segment
+                pos = (pos / SEGMENT + 1) * SEGMENT;
+                continue;
+            }
+
+            if (idx.size*2 > idx.capacity())
+                idx = rehash (idx);
+            index (idx, pos);
+            pos += 4 + len;
+        }
+        index = idx;
+        end = last;
+
+        logger.info("##### opened cache log "+file+"; "
+                    +count+" entries, "+last+" bytes #####");
+    }
+
+    MappedByteBuffer map (int seg) throws IOException {
+        return channel.map(FileChannel.MapMode.READ_WRITE,
+                           (long)seg*SEGMENT, SEGMENT);
+    }
+
+    ByteBuffer segment (long pos) {
+        return segments[(int)(pos / SEGMENT)];
+    }
+
+    static long tag (byte[] digest) {
+        long tag = 0l;
+        for (int i = 0; i < 8; ++i)
+            tag = (tag << 8) | (digest[i] & 0xff);
+        return tag;
+    }
+
+    static byte[] digest (Object key) throws IOException {
+        if (key instanceof String)
+            return Util.sha1((String)key);
+        if (!(key instanceof Serializable))
+            throw new IllegalArgumentException
+                ("Cache key "+key+" is not serializable!");
+        return Util.sha1().digest(Util.serialize(key));
+    }
+
+    byte type (long pos) {
+        return segment(pos).get((int)(pos % SEGMENT) + 4);
+    }
+
+    byte[] digest (long pos) {
+        ByteBuffer buf = segment(pos).duplicate();
+        buf.position((int)(pos % SEGMENT) + 5);
+        byte[] d = new byte[DIGEST];
+        buf.get(d);
+        return d;
+    }
+
+    /*
+     * add the record at pos to the index; only called by the writer
+     */
+    void index (Index idx, long pos) {
+        byte t = type (pos);
+        long prev = idx.put(tag (digest (pos)), pos);
+        boolean live = prev != 0l && type (prev) != TOMBSTONE;
+        if (t == TOMBSTONE) {
+            if (live) --count;
+        }
+        else if (!live) {
+            ++count;
+        }
+    }
+
+    Index rehash (Index idx) {
+        Index nidx = new Index (idx.capacity() * 2);
+        for (int h = 0; h <= idx.mask; ++h) {
+            long off = idx.table.getLong(h*16+8);
+            if (off != 0l)
+                nidx.put(idx.table.getLong(h*16), off);
+        }
+        return nidx;
+    }
+
+    public Object get (Object key) throws IOException {
+        byte[] d = digest (key);
+        Index idx = index;
+        long pos = idx.offset(tag (d));
+        // end is published after the record is written, so anything
+        // below it is safe to read
+        if (pos == 0l || pos >= end || !Arrays.equals(d, digest (pos))) {
+            misses.increment();
+            return null;
+        }
+
+        ByteBuffer buf = segment(pos).duplicate();
+        buf.position((int)(pos % SEGMENT));
+        int len = buf.getInt();
+        byte type = buf.get();
+        buf.position(buf.position() + DIGEST);
+        byte[] data = new byte[len - 1 - DIGEST];
+        buf.get(data);
+
+        Object value = decode (type, data);
+        if (value != null)
+            hits.increment();
+        else
+            misses.increment();
+        return value;
+    }
+
+    public void put (Object key, Object value) throws IOException {
+        if (value == null) {
+            remove (key);
+        }
+        else {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream ();
+            byte type = encode (value, new DataOutputStream (bos));
+            append (digest (key), type, bos.toByteArray());
+        }
+    }
+
+    public void remove (Object key) throws IOException {
+        byte[] d = digest (key);
+        if (index.offset(tag (d)) != 0l)
+            append (d, TOMBSTONE, new byte[0]);
+    }
+
+    synchronized void append (byte[] digest, byte type, byte[] data)
+        throws IOException {
+        int len = 1 + DIGEST + data.length;
+        if (4 + len > SEGMENT)
+            throw new IllegalArgumentException
+                ("Cache value is too large: "+data.length+" bytes!");
+
+        long pos = end;
+        int seg = (int)(pos / SEGMENT);
+        if ((pos % SEGMENT) + 4 + len > SEGMENT) {
+            // records never span segments; rest of this one is zero
+            pos = (long)++seg * SEGMENT;
+        }
+
+        MappedByteBuffer[] segs = segments;
+        if (seg >= segs.length) {
+            segs = Arrays.copyOf(segs, seg+1);
+            segs[seg] = map (seg);
+            segments = segs;
+        }
+
+        ByteBuffer buf = segs[seg].duplicate();
+        buf.position((int)(pos % SEGMENT));
+        buf.putInt(len);
+        buf.put(type);
+        buf.put(digest);
+        buf.put(data);
+
+        long last = pos + 4 + len;
+        segs[0].putLong(8, last);
+        end = last;
+
+        Index idx = index;
+        if (idx.size*2 > idx.capacity()) {
+            // readers keep probing the old table until this is published
+            idx = rehash (idx);
+            index (idx, pos);
+            index = idx;
+        }
+        else {
+            index (idx, pos);
+        }
+    }
+
+    static byte encode (Object value, DataOutputStream dos)
+        throws IOException {
+        if (value instanceof String) {
+            writeString (dos, (String)value);
+            return STRING;
+        }
+
+        if (value instanceof String[]) {
+            String[] values = (String[])value;
+            dos.writeInt(values.length);
+            for (String s : values)
+                writeString (dos, s);
+            return STRINGS;
+        }
+
+        dos.write(Util.serialize(value));
+        return OBJECT;
+    }
+
+    static void writeString (DataOutputStream dos, String s)
+        throws IOException {
+        if (s == null) {
+            dos.writeInt(-1);
+        }
+        else {
+            byte[] b = s.getBytes(StandardCharsets.UTF_8);
+            dos.writeInt(b.length);
+            dos.write(b);
+        }
+    }
+
+    static String readString (ByteBuffer buf) {
+        int len = buf.getInt();
+        if (len < 0)
+            return null;
+        String s = new String (buf.array(), buf.position(),
+                               len, StandardCharsets.UTF_8);
+        buf.position(buf.position()+len);
+        return s;
+    }
+
+    static Object decode (byte type, byte[] data) throws IOException {
+        switch (type) {
+        case TOMBSTONE:
+            return null;
+
+        case STRING:
+            return readString (ByteBuffer.wrap(data));
+
+        case STRINGS:
+            { ByteBuffer buf = ByteBuffer.wrap(data);
+                String[] values = new String[buf.getInt()];
+                for (int i = 0; i < values.length; ++i)
+                    values[i] = readString (buf);
+                return values;
+            }
+
+        case OBJECT:
+            try (ObjectInputStream ois = new ObjectInputStream
+                 (new ByteArrayInputStream (data))) {
+                return ois.readObject();
+            }
+            catch (ClassNotFoundException ex) {
+                throw new IOException (ex);
+            }
+        }
+        throw new IOException ("Unknown cache value type: "+type);
+    }
+
+    public int size () { return count; }
+    public long getHits () { return hits.sum(); }
+    public long getMisses () { return misses.sum(); }
+    public File getFile () { return file; }
+
+    public synchronized void close () throws IOException {
+        try {
+            for (MappedByteBuffer seg : segments)
+                seg.force();
+            logger.info("#### closing cache log "+file+"; "+count
+                        +" entries; "+getHits()+" hit(s), "
+                        +getMisses()+" miss(es) #####");
+        }
+        catch (Exception ex) {
+            logger.log(Level.SEVERE, "Can't flush cache log "+file, ex);
+        }
+        finally {
+            lock.release();
+            raf.close();
+        }
+    }
+}
@@ -7,6 +7,9 @@ import java.util.function.Function;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.lang.reflect.Array;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -70,25 +73,41 @@ public class Partition {
         }
     }
 
-    interface EMStep {
-        void step (int k, int i, int j);
+    interface RowVisitor {
+        void visit (int j, double w);
     }
-    
+
+    /*
+     * PLSA over the nonzero (document, word) counts only. The E and M
+     * steps are fused so the posteriors P(z_k|d_i,w_j) are never
+     * stored and a round is O(K*nnz); documents are split across
+     * threads that each accumulate their own P(w_j|z_k) numerators,
+     * which are then normalized once per k. EM stops when the
+     * log-likelihood no longer improves by more than epsilon
+     * (relative) or after maxiter rounds.
+     */
     static abstract class PLSA {
-        final double[][] Pz;
-        final double[][] Pw;
-        final double[][][] P;
+        double[][] Pz; // P(z_k | d_i) as [i][k]
+        double[][] Pw; // P(w_j | z_k) as [k][j]
+
+        // counts of document i are words[start[i]..start[i+1])
+        int[] start;
+        int[] words;
+        double[] counts;
+        double[] length;
+
+        final int N, M, K;
+        int maxiter;
+        int threads = Runtime.getRuntime().availableProcessors();
+        double epsilon = 1e-6;
+        double loglik;
 
-        final int N, M, K, maxiter;
         /*
          * N - number of documents
          * M - number of words (i.e., dictionary size)
          * K - latent dimension
          */
         protected PLSA (int K, int N, int M) {
-            Pw = new double[K][M]; // P(w_j | z_k)
-            Pz = new double[N][K]; // P(z_k | d_i)
-            P = new double[N][M][K]; // P(z_k | d_i, w_j)
             this.K = K;
             this.N = N;
             this.M = M;
@@ -96,72 +115,147 @@ public class Partition {
         }
 
         protected void init () {
-            for (int k = 0; k < K; ++k) {
-                for (int i = 0; i < N; ++i) {
-                    for (int j = 0; j < M; ++j)
-                        P[i][j][k] = Math.random();
-                    Pz[i][k] = Math.random();
-                }
-                
-                for (int j = 0; j < M; ++j)
-                    Pw[k][j] = Math.random();
+            start = new int[N+1];
+            for (int i = 0; i < N; ++i) {
+                int[] n = {0};
+                row (i, (j, w) -> ++n[0]);
+                start[i+1] = start[i] + n[0];
+            }
+
+            words = new int[start[N]];
+            counts = new double[start[N]];
+            length = new double[N];
+            for (int i = 0; i < N; ++i) {
+                int[] pos = {start[i]};
+                row (i, (j, w) -> {
+                        words[pos[0]] = j;
+                        counts[pos[0]++] = w;
+                    });
+                length[i] = getd (i);
             }
+
+            Random rand = new Random (1l);
+            Pz = new double[N][K];
+            for (int i = 0; i < N; ++i)
+                random (rand, Pz[i]);
+            Pw = new double[K][M];
+            for (int k = 0; k < K; ++k)
+                random (rand, Pw[k]);
         }
 
-        protected void step (EMStep em) {
-            for (int k = 0; k < K; ++k) 
-                for (int i = 0; i < N; ++i)
-                    for (int j = 0; j < M; ++j) {
-                        if (hasw (i, j))
-                            em.step(k, i, j);
-                    }
+        static void random (Random rand, double[] p) {
+            double sum = 0.;
+            for (int i = 0; i < p.length; ++i)
+                sum += p[i] = rand.nextDouble();
+            for (int i = 0; i < p.length; ++i)
+                p[i] /= sum;
         }
-        
+
         /*
-         * P(z_k|d_i,w_j) = P(w_i|z_k)P(z_k|d_i) 
-         *                  / sum_{l..K} P(w_j|z_l)P(z_l|d_i)
+         * one E+M round over documents [from, to); new P(z|d) rows go
+         * straight into pz and the P(w|z) numerators into pw. Returns
+         * the log-likelihood under the current parameters.
          */
-        protected void Estep (int k, int i, int j) {
-            double Q = 0.;
-            for (int l = 0; l < K; ++l)
-                Q += Pw[l][j] * Pz[i][l];
-            P[i][j][k] = Pw[k][j] * Pz[i][k] / Q;
+        double step (int from, int to, double[][] pz, double[][] pw) {
+            double ll = 0.;
+            double[] q = new double[K];
+            for (int i = from; i < to; ++i) {
+                double[] z = pz[i];
+                for (int n = start[i]; n < start[i+1]; ++n) {
+                    int j = words[n];
+                    double Q = 0.;
+                    for (int k = 0; k < K; ++k)
+                        Q += q[k] = Pw[k][j] * Pz[i][k];
+                    if (Q > 0.) {
+                        double w = counts[n];
+                        ll += w * Math.log(Q);
+                        for (int k = 0; k < K; ++k) {
+                            double p = w * q[k] / Q;
+                            pw[k][j] += p;
+                            z[k] += p;
+                        }
+                    }
+                }
+
+                for (int k = 0; k < K; ++k)
+                    z[k] = length[i] > 0. ? z[k] / length[i] : 0.;
+            }
+            return ll;
         }
 
-        protected void Mstep (int k, int i, int j) {
-            double num = 0.;
-            for (int l = 0; l < N; ++l)
-                num += getw (l, j) * P[l][j][k];
-            double den = 0.;
-            for (int m = 0; m < M; ++m)
-                for (int l = 0; l < N; ++l)
-                    den += getw (l, m) * P[l][m][k];
-            Pw[k][j] = num / den;
-
-            num = 0.;
-            for (int m = 0; m < M; ++m)
-                num += getw (i, m) * P[i][m][k];
-            Pz[i][k] = num / getd (i);
+        double step (ExecutorService es, int nt) throws Exception {
+            double[][] pz = new double[N][K];
+            List<Future<Double>> futures = new ArrayList<>();
+            List<double[][]> partials = new ArrayList<>();
+            // contiguous ranges of about the same number of nonzeros
+            for (int t = 0, from = 0; t < nt && from < N; ++t) {
+                long target = (long)start[N] * (t+1) / nt;
+                int to = from + 1;
+                while (to < N && start[to] < target)
+                    ++to;
+                if (t == nt - 1)
+                    to = N;
+
+                final int a = from, b = to;
+                final double[][] pw = new double[K][M];
+                partials.add(pw);
+                futures.add(es.submit(() -> step (a, b, pz, pw)));
+                from = to;
+            }
+
+            double ll = 0.;
+            for (Future<Double> f : futures)
+                ll += f.get();
+
+            double[][] pw = partials.get(0);
+            for (int t = 1; t < partials.size(); ++t) {
+                double[][] p = partials.get(t);
+                for (int k = 0; k < K; ++k)
+                    for (int j = 0; j < M; ++j)
+                        pw[k][j] += p[k][j];
+            }
+            for (int k = 0; k < K; ++k) {
+                double norm = 0.;
+                for (int j = 0; j < M; ++j)
+                    norm += pw[k][j];
+                if (norm > 0.) {
+                    for (int j = 0; j < M; ++j)
+                        pw[k][j] /= norm;
+                }
+            }
+
+            Pz = pz;
+            Pw = pw;
+            return ll;
         }
 
         public int EM () {
             init ();
-            int niter = 0;
-            for ( ; !converged (niter); ++niter) {
-                step (this::Estep);
-                step (this::Mstep);
+            int nt = Math.max(1, Math.min(threads, N));
+            ExecutorService es = Executors.newFixedThreadPool(nt);
+            try {
+                int niter = 0;
+                double prev = Double.NEGATIVE_INFINITY;
+                for (; niter < maxiter; ++niter) {
+                    loglik = step (es, nt);
+                    if (Math.abs(loglik - prev) <= epsilon * Math.abs(loglik))
+                        break;
+                    prev = loglik;
+                }
+                logger.info("EM converged after "+niter
+                            +" iteration(s); log-likelihood "+loglik);
+                return niter;
+            }
+            catch (Exception ex) {
+                throw new RuntimeException (ex);
+            }
+            finally {
+                es.shutdown();
             }
-            return niter;
-        }
-
-        protected boolean converged (int niter) {
-            return niter > maxiter;
         }
 
-        // return true if word j is in document i; false otherwise
-        abstract boolean hasw (int i, int j);
-        // return the count of word j in document i
-        abstract double getw (int i, int j);
+        // visit the (word, count) pairs of document i
+        abstract void row (int i, RowVisitor visitor);
         // return the length (number of words) for document i
         abstract double getd (int i);
     }
@@ -170,12 +264,22 @@ public class Partition {
         final NV[] nodes;
         final SV[] values;
         final boolean reversed;
+        final Map<Long, Integer> index = new HashMap<>(); // node -> j
+        final Map<Long, int[]> members = new HashMap<>(); // node -> values
 
         StitchPLSA (int K, NV[] nodes, SV[] values) {
             super (K, nodes.length, values.length);
             this.nodes = nodes;
             this.values = values;
             reversed = false;
+
+            Map<Long, List<Integer>> mem = new HashMap<>();
+            for (int j = 0; j < values.length; ++j)
+                for (Long id : values[j].nodes)
+                    mem.computeIfAbsent(id, x -> new ArrayList<>()).add(j);
+            for (Map.Entry<Long, List<Integer>> me : mem.entrySet())
+                members.put(me.getKey(), me.getValue().stream()
+                            .mapToInt(Integer::intValue).toArray());
         }
 
         StitchPLSA (int K, SV[] values, NV[] nodes) {
@@ -183,24 +287,24 @@ public class Partition {
             this.nodes = nodes;
             this.values = values;
             reversed = true;
+            for (int j = 0; j < nodes.length; ++j)
+                index.put(nodes[j].id, j);
         }
 
-        protected boolean hasw (int i, int j) {
-            NV nv;
-            SV sv;
+        protected void row (int i, RowVisitor visitor) {
             if (reversed) {
-                nv = nodes[j];
-                sv = values[i];
+                for (Long id : values[i].nodes) {
+                    Integer j = index.get(id);
+                    if (j != null)
+                        visitor.visit(j, 1.);
+                }
             }
             else {
-                nv = nodes[i];
-                sv = values[j];
+                int[] js = members.get(nodes[i].id);
+                if (js != null)
+                    for (int j : js)
+                        visitor.visit(j, 1.);
             }
-            return sv.nodes.contains(nv.id);
-        }
-
-        protected double getw (int i, int j) {
-            return hasw (i, j) ? 1.0 : 0.0;
         }
 
         protected double getd (int i) {
@@ -277,95 +381,115 @@ public class Partition {
 
     Map<String, SV> values = new TreeMap<>();
     Map<Long, NV> nodes = new TreeMap<>();
+    int threads = Runtime.getRuntime().availableProcessors();
 
     public Partition (File file) throws IOException {
+        this (readJson (file));
+    }
+
+    /*
+     * partition a component directly instead of its exported json
+     */
+    public Partition (Component comp) {
+        this (comp.toJson());
+    }
+
+    static JsonNode readJson (File file) throws IOException {
         ObjectMapper mapper = new ObjectMapper ();
         try (InputStream is = new FileInputStream (file)) {
-            JsonNode json = mapper.readTree(is);
-
-            // stitches
-            JsonNode stitches = json.get("stitches");
-            if (stitches == null)
-                throw new IllegalArgumentException
-                    ("Not a valid ncatskg json format!");
-            for (Iterator<String> it = stitches.fieldNames(); it.hasNext(); ) {
-                String f = it.next();
-                try {
-                    StitchKey key = StitchKey.valueOf(f);
-                    switch (key) {
-                    case N_Name: case I_CODE:
-                        { JsonNode nodes = stitches.get(f);
-                            for (int i = 0; i < nodes.size(); ++i) {
-                                JsonNode n = nodes.get(i);
-                                SV sv = new SV (key, n.get("value").asText(),
-                                                n.get("count").asInt(),
-                                                n.get("total").asInt());
-                                values.put(sv.value, sv);
-                            }
+            return mapper.readTree(is);
+        }
+    }
+
+    public Partition (JsonNode json) {
+        // stitches
+        JsonNode stitches = json.get("stitches");
+        if (stitches == null)
+            throw new IllegalArgumentException
+                ("Not a valid ncatskg json format!");
+        for (Iterator<String> it = stitches.fieldNames(); it.hasNext(); ) {
+            String f = it.next();
+            try {
+                StitchKey key = StitchKey.valueOf(f);
+                switch (key) {
+                case N_Name: case I_CODE:
+                    { JsonNode nodes = stitches.get(f);
+                        for (int i = 0; i < nodes.size(); ++i) {
+                            JsonNode n = nodes.get(i);
+                            SV sv = new SV (key, n.get("value").asText(),
+                                            n.get("count").asInt(),
+                                            n.get("total").asInt());
+                            values.put(sv.value, sv);
                         }
                     }
                 }
-                catch (Exception ex) {
-                    logger.warning("Not a recognized StitchKey: "+f);
-                }
             }
+            catch (Exception ex) {
+                logger.warning("Not a recognized StitchKey: "+f);
+            }
+        }
 
-            // nodes
-            JsonNode nodes = json.get("nodes");
-            if (nodes == null)
-                throw new IllegalArgumentException
-                    ("Not a valid ncatskg json format!");
-            for (int i = 0; i < nodes.size(); ++i) {
-                JsonNode n = nodes.get(i);
-                long id = n.get("id").asLong();
-                NV nv = new NV (id);
-                
-                JsonNode labels = n.get("labels");
-                if (labels != null) {
-                    for (int j = 0; j < labels.size(); ++j)
-                        nv.labels.add(labels.get(j).asText());
-                }
-                
-                JsonNode props = n.get("properties");
-                for (Iterator<String> it = props.fieldNames(); it.hasNext();) {
-                    String p = it.next();
-                    try {
-                        StitchKey key = StitchKey.valueOf(p);
-                        JsonNode val = props.get(p);
-                        if (val.isArray()) {
-                            String[] vals = new String[val.size()];
-                            for (int j = 0; j < val.size(); ++j) {
-                                String v = val.get(j).asText();
-                                SV sv = values.get(v);
-                                if (sv != null)
-                                    sv.nodes.add(id);
-                                vals[j] = v;
-                            }
-                            nv.values.put(key, vals);
-                        }
-                        else {
-                            String v = val.asText();
+        // nodes
+        JsonNode nodes = json.get("nodes");
+        if (nodes == null)
+            throw new IllegalArgumentException
+                ("Not a valid ncatskg json format!");
+        for (int i = 0; i < nodes.size(); ++i) {
+            JsonNode n = nodes.get(i);
+            long id = n.get("id").asLong();
+            NV nv = new NV (id);
+            
+            JsonNode labels = n.get("labels");
+            if (labels != null) {
+                for (int j = 0; j < labels.size(); ++j)
+                    nv.labels.add(labels.get(j).asText());
+            }
+            
+            JsonNode props = n.get("properties");
+            for (Iterator<String> it = props.fieldNames(); it.hasNext();) {
+                String p = it.next();
+                try {
+                    StitchKey key = StitchKey.valueOf(p);
+                    JsonNode val = props.get(p);
+                    if (val.isArray()) {
+                        String[] vals = new String[val.size()];
+                        for (int j = 0; j < val.size(); ++j) {
+                            String v = val.get(j).asText();
                             SV sv = values.get(v);
                             if (sv != null)
                                 sv.nodes.add(id);
-                            nv.values.put(key, new String[]{v});
+                            vals[j] = v;
                         }
+                        nv.values.put(key, vals);
                     }
-                    catch (Exception ex) {
-                        // not a stitchkey
+                    else {
+                        String v = val.asText();
+                        SV sv = values.get(v);
+                        if (sv != null)
+                            sv.nodes.add(id);
+                        nv.values.put(key, new String[]{v});
                     }
                 }
-                this.nodes.put(id, nv);
-            }
-            
-            logger.info("loading "+json.get("id").asText()+"..."+values.size());
-            Set<SV> svs = new TreeSet<>(values.values());
-            for (SV sv : svs) {
-                System.out.println(sv);
+                catch (Exception ex) {
+                    // not a stitchkey
+                }
             }
+            this.nodes.put(id, nv);
+        }
+        
+        logger.info("loading "+json.get("id").asText()+"..."+values.size());
+        Set<SV> svs = new TreeSet<>(values.values());
+        for (SV sv : svs) {
+            System.out.println(sv);
         }
     }
-    
+
+    public Partition setThreads (int threads) {
+        this.threads = Math.max(1, threads);
+        return this;
+    }
+    public int getThreads () { return threads; }
+
     public void plsa (int K) throws Exception {
         plsa (K, System.out);
     }
@@ -375,33 +499,62 @@ public class Partition {
         StitchPLSA plsa =
             new StitchPLSA (K, nodes.values().toArray(new NV[0]),
                             values.values().toArray(new SV[0]));
+        plsa.threads = threads;
         plsa.aspects(os);
         
         logger.info("------- NODE partitions ---------");
         plsa = new StitchPLSA (K, values.values().toArray(new SV[0]),
                                nodes.values().toArray(new NV[0]));
+        plsa.threads = threads;
         plsa.aspects(os);
     }
 
     public static void main (String[] argv) throws Exception {
         if (argv.length == 0) {
             System.err.println
-                ("Usage: ncats.stitcher.Partition [K=5] [FILES...");
+                ("Usage: ncats.stitcher.Partition [K=5] [threads=N] "
+                 +"FILES... | DBDIR COMPONENTS...");
             System.exit(1);
         }
 
-        int K = 5, i = 0;
+        int K = 5, threads = 0, i = 0;
         try {
             K = Integer.parseInt(argv[i]);
             ++i;
         }
         catch (NumberFormatException ex) {
         }
-        
-        for (; i < argv.length; ++i) {
-            File file = new File (argv[i]);
-            Partition part = new Partition (file);
-            part.plsa(K);
+
+        if (i < argv.length && argv[i].startsWith("threads=")) {
+            threads = Integer.parseInt(argv[i].substring(8));
+            ++i;
+        }
+
+        File file = i < argv.length ? new File (argv[i]) : null;
+        if (file != null && file.isDirectory()) {
+            // graph database followed by component ids
+            GraphDb graphDb = GraphDb.getInstance(file);
+            try {
+                EntityFactory ef = new EntityFactory (graphDb);
+                for (++i; i < argv.length; ++i) {
+                    Partition part = new Partition
+                        (ef.component(Long.parseLong(argv[i])));
+                    if (threads > 0)
+                        part.setThreads(threads);
+                    part.plsa(K);
+                }
+            }
+            finally {
+                graphDb.shutdown();
+            }
+        }
+        else {
+            for (; i < argv.length; ++i) {
+                Partition part = new Partition (new File (argv[i]));
+                if (threads > 0)
+                    part.setThreads(threads);
+                part.plsa(K);
+            }
         }
     }
 }
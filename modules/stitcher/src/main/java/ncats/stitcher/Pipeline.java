@@ -0,0 +1,118 @@
+package ncats.stitcher;
+
+import java.util.LinkedList;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.logging.Logger;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Two stage ordered pipeline. Items put into the pipeline are run
+ * through stage on a pool of worker threads, at most window items
+ * ahead of the writer. The writer is always called on the thread that
+ * calls put/close and in the same order the items were put, so it can
+ * safely hold a graph transaction. With threads < 1 both stages simply
+ * run on the calling thread.
+ */
+public class Pipeline<T, R> implements AutoCloseable {
+    static final Logger logger = Logger.getLogger(Pipeline.class.getName());
+
+    static class Pending<T, R> {
+        final T item;
+        final Future<R> result;
+        Pending (T item, Future<R> result) {
+            this.item = item;
+            this.result = result;
+        }
+    }
+
+    final Function<T, R> stage;
+    final BiConsumer<T, R> writer;
+    final int window;
+    final ExecutorService es;
+    final LinkedList<Pending<T, R>> queue = new LinkedList<>();
+    int count;
+
+    public Pipeline (int threads, Function<T, R> stage,
+                     BiConsumer<T, R> writer) {
+        this (threads, 16*threads, stage, writer);
+    }
+
+    public Pipeline (int threads, int window, Function<T, R> stage,
+                     BiConsumer<T, R> writer) {
+        this.stage = stage;
+        this.writer = writer;
+        this.window = Math.max(1, window);
+        if (threads > 0) {
+            final AtomicInteger id = new AtomicInteger ();
+            es = Executors.newFixedThreadPool(threads, r -> {
+                    Thread t = new Thread
+                        (r, "pipeline-"+id.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+        }
+        else {
+            es = null;
+        }
+    }
+
+    public void put (final T item) {
+        if (es == null) {
+            write (item, stage.apply(item));
+        }
+        else {
+            queue.add(new Pending<>(item, es.submit(() -> stage.apply(item))));
+            // block on the oldest item when we're too far ahead;
+            // otherwise only write what's already done
+            while (!queue.isEmpty()
+                   && (queue.size() > window || queue.peek().result.isDone()))
+                drain ();
+        }
+    }
+
+    void drain () {
+        Pending<T, R> p = queue.poll();
+        R result;
+        try {
+            result = p.result.get();
+        }
+        catch (ExecutionException ex) {
+            Throwable t = ex.getCause();
+            if (t instanceof RuntimeException)
+                throw (RuntimeException)t;
+            throw new RuntimeException (t);
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException (ex);
+        }
+        write (p.item, result);
+    }
+
+    void write (T item, R result) {
+        writer.accept(item, result);
+        ++count;
+    }
+
+    public int getCount () { return count; }
+
+    public void close () {
+        try {
+            while (!queue.isEmpty())
+                drain ();
+        }
+        finally {
+            if (es != null) {
+                for (Pending<T, R> p : queue)
+                    p.result.cancel(true);
+                queue.clear();
+                es.shutdown();
+            }
+        }
+    }
+}
@@ -21,6 +21,7 @@ public interface Props {
     public static final String KEY = "key";
     public static final String SHA1 = "sha1";
     public static final String SIZE = "size";
+    public static final String COUNT = "count";
     public static final String ETAG = "etag";
     public static final String URI = "uri";
     public static final String INSTANCES = "instances";
@@ -0,0 +1,106 @@
+package ncats.stitcher;
+
+/**
+ * Node id -> component root for CNode.getRoot. Components are only
+ * ever joined by pointing one root at another, so a cached root is
+ * still an ancestor of the node once it's no longer a root and lookups
+ * simply continue from there. Only roots seen by a thread without
+ * uncommitted unions of its own are cached (there's no callback for a
+ * plain rollback, so those can't be trusted); the thread is clean
+ * again after its next commit. Deleting a node re-parents its children,
+ * so any commit with deletes clears the cache.
+ *
+ * The cache is a direct mapped table of primitive slots (~20MB), so a
+ * new entry simply evicts whatever shared its slot; clearing it bumps
+ * the generation instead of touching the table.
+ */
+class RootCache {
+    static final int SIZE = 1<<20; // power of 2
+    static final int STRIPES = 64; // power of 2
+
+    // thread state since its last commit
+    static final int CLEAN = 0;
+    static final int LINKED = 1; // uncommitted unions
+    static final int DELETED = 2; // uncommitted deletes
+
+    final long[] ids = new long[SIZE];
+    final long[] roots = new long[SIZE];
+    final int[] generations = new int[SIZE]; // slot is valid if current
+    final Object[] locks = new Object[STRIPES];
+    volatile int generation = 1;
+    final ThreadLocal<int[]> state = ThreadLocal.withInitial(() -> new int[1]);
+
+    RootCache () {
+        for (int i = 0; i < locks.length; ++i)
+            locks[i] = new Object ();
+    }
+
+    static int slot (long id) {
+        long h = id * 0x9E3779B97F4A7C15L;
+        return (int)(h ^ (h >>> 32)) & (SIZE - 1);
+    }
+
+    /*
+     * cached ancestor of id or -1
+     */
+    long get (long id) {
+        if (state.get()[0] == DELETED)
+            return -1l;
+        int slot = slot (id);
+        synchronized (locks[slot & (STRIPES - 1)]) {
+            return generations[slot] == generation && ids[slot] == id
+                ? roots[slot] : -1l;
+        }
+    }
+
+    void put (long id, long root) {
+        if (state.get()[0] != CLEAN)
+            return;
+        int slot = slot (id);
+        synchronized (locks[slot & (STRIPES - 1)]) {
+            ids[slot] = id;
+            roots[slot] = root;
+            generations[slot] = generation;
+        }
+    }
+
+    void linked () {
+        int[] s = state.get();
+        s[0] = Math.max(s[0], LINKED);
+    }
+
+    void deleted () {
+        state.get()[0] = DELETED;
+    }
+
+    /*
+     * called on the committing thread
+     */
+    void committed (boolean deletes) {
+        if (deletes)
+            clear ();
+        state.get()[0] = CLEAN;
+    }
+
+    void rolledBack () {
+        state.get()[0] = CLEAN;
+    }
+
+    synchronized void clear () {
+        ++generation;
+    }
+
+    /*
+     * number of valid slots; for diagnostics only
+     */
+    int size () {
+        int size = 0, gen = generation;
+        for (int i = 0; i < SIZE; ++i) {
+            synchronized (locks[i & (STRIPES - 1)]) {
+                if (generations[i] == gen)
+                    ++size;
+            }
+        }
+        return size;
+    }
+}
@@ -188,7 +188,7 @@ public class UntangleCompoundStitches extends UntangleCompoundAbstract {
         if (seed != null)
             seed.componentStitchValues(visitor);
         else 
-            ef.stitchValues(visitor);
+            counts.putAll(ef.stitchValueCounts());
         //logger.info("$$$$ COUNTS ==> "+counts);       
 
         total = 0.;
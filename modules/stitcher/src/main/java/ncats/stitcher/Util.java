@@ -755,14 +755,37 @@ public class Util {
         return map;
     }
     
+    /*
+     * the (dotted) fields of an SRS record read by fromJson
+     */
+    public static final String[] SRS_FIELDS = {
+        "substanceClass", "approvalID", "UNII", "structure.molfile",
+        "names.name", "names.displayName",
+        "codes.type", "codes.codeSystem", "codes.code",
+        "references.citation",
+        "relationships.type", "relationships.relatedSubstance.approvalID"
+    };
+    
     /*
      * parse SRS json into a Molecule
      */
     public static Object fromJson (String json) {
-        Object retobj = null;
         try {
             ObjectMapper mapper = new ObjectMapper ();      
-            JsonNode node = mapper.readTree(json);
+            return fromJson (mapper.readTree(json));
+        }
+        catch (Exception ex) {
+            logger.log(Level.SEVERE, "Can't parse json", ex);
+        }
+        return null;
+    }
+
+    /*
+     * node needs no more than SRS_FIELDS
+     */
+    public static Object fromJson (JsonNode node) {
+        Object retobj = null;
+        try {
             String cls = node.get("substanceClass").asText();
             switch (cls) {
             case "chemical":
@@ -0,0 +1,147 @@
+package ncats.stitcher.graph;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Lock-free union-find over a fixed universe of node ids. Ids are
+ * remapped onto their position in a sorted array and parent links
+ * are updated with compare-and-set, so any number of threads can
+ * call union concurrently. Roots are always linked toward the
+ * smaller index which keeps the structure acyclic without locks.
+ */
+public class ConcurrentUnionFind {
+    final long[] ids;
+    final AtomicIntegerArray parent;
+    final AtomicIntegerArray touched;
+
+    /*
+     * ids must be the full universe of nodes that can be unioned
+     */
+    public ConcurrentUnionFind (long[] ids) {
+        this.ids = ids.clone();
+        Arrays.sort(this.ids);
+        parent = new AtomicIntegerArray (this.ids.length);
+        touched = new AtomicIntegerArray (this.ids.length);
+        for (int i = 0; i < this.ids.length; ++i)
+            parent.lazySet(i, i);
+    }
+
+    public int size () { return ids.length; }
+    public long id (int i) { return ids[i]; }
+    public int index (long id) {
+        int i = Arrays.binarySearch(ids, id);
+        return i < 0 ? -1 : i;
+    }
+
+    public boolean contains (long p) {
+        int i = index (p);
+        return i >= 0 && touched.get(i) != 0;
+    }
+
+    protected int getRoot (int i) {
+        for (int p; (p = parent.get(i)) != i; ) {
+            int gp = parent.get(p);
+            if (gp != p) // path halving; losing the race here is harmless
+                parent.compareAndSet(i, p, gp);
+            i = gp;
+        }
+        return i;
+    }
+
+    public Long root (long p) {
+        int i = index (p);
+        return i >= 0 && touched.get(i) != 0 ? ids[getRoot (i)] : null;
+    }
+
+    public boolean find (long p, long q) {
+        int i = index (p), j = index (q);
+        if (i < 0 || j < 0)
+            return false;
+        while (true) {
+            i = getRoot (i);
+            j = getRoot (j);
+            if (i == j)
+                return true;
+            // i is still a root, so they really are disjoint
+            if (parent.get(i) == i)
+                return false;
+        }
+    }
+
+    /*
+     * return false if either id is outside of the universe
+     */
+    public boolean union (long p, long q) {
+        int i = index (p), j = index (q);
+        if (i < 0 || j < 0)
+            return false;
+
+        touched.lazySet(i, 1);
+        touched.lazySet(j, 1);
+        while (true) {
+            i = getRoot (i);
+            j = getRoot (j);
+            if (i == j)
+                break;
+            if (i < j) {
+                int t = i;
+                i = j;
+                j = t;
+            }
+            if (parent.compareAndSet(i, i, j))
+                break;
+        }
+        return true;
+    }
+
+    /*
+     * should only be called once all unions have completed; same
+     * ordering as UnionFind.components()
+     */
+    public long[][] components () {
+        int n = ids.length;
+        int[] sizes = new int[n];
+        int ncomps = 0;
+        for (int i = 0; i < n; ++i) {
+            if (touched.get(i) != 0) {
+                int r = getRoot (i);
+                if (sizes[r]++ == 0)
+                    ++ncomps;
+            }
+        }
+
+        long[][] eqv = new long[ncomps][];
+        int[] slot = new int[n];
+        int eq = 0;
+        for (int i = 0; i < n; ++i) {
+            if (touched.get(i) != 0) {
+                int r = getRoot (i);
+                long[] comp;
+                if (i == r) {
+                    slot[r] = eq;
+                    comp = eqv[eq++] = new long[sizes[r]];
+                }
+                else {
+                    comp = eqv[slot[r]];
+                }
+                // roots are the smallest index of their component so
+                // members are filled in increasing (sorted) order
+                comp[comp.length - sizes[r]--] = ids[i];
+            }
+        }
+
+        Arrays.sort(eqv, new Comparator<long[]> () {
+                public int compare (long[] c1, long[] c2) {
+                    int d = c2.length - c1.length;
+                    if (d == 0) {
+                        d = Long.compare(c1[0], c2[0]);
+                    }
+                    return d;
+                }
+            });
+
+        return eqv;
+    }
+}
@@ -0,0 +1,124 @@
+package ncats.stitcher.graph;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing long to int map; no boxing of keys or values.
+ * Mostly used to map node ids onto dense array indexes.
+ */
+public class LongIntMap {
+    public interface Visitor {
+        void visit (long key, int value);
+    }
+
+    private long[] keys;
+    private int[] values;
+    private boolean[] used;
+    private int mask;
+    private int size;
+    private final int missing;
+
+    public LongIntMap () {
+        this (16, -1);
+    }
+
+    public LongIntMap (int capacity) {
+        this (capacity, -1);
+    }
+
+    /*
+     * missing is the value returned by get for keys that are not
+     * in the map
+     */
+    public LongIntMap (int capacity, int missing) {
+        int tsize = Integer.highestOneBit(Math.max(4, capacity) - 1) << 2;
+        keys = new long[tsize];
+        values = new int[tsize];
+        used = new boolean[tsize];
+        mask = tsize - 1;
+        this.missing = missing;
+    }
+
+    static int hash (long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int)(h ^ (h >>> 32));
+    }
+
+    int slot (long key) {
+        int h = hash (key) & mask;
+        while (used[h] && keys[h] != key)
+            h = (h + 1) & mask;
+        return h;
+    }
+
+    public int size () { return size; }
+    public int missing () { return missing; }
+
+    public boolean containsKey (long key) {
+        return used[slot (key)];
+    }
+
+    public int get (long key) {
+        int h = slot (key);
+        return used[h] ? values[h] : missing;
+    }
+
+    public int put (long key, int value) {
+        int h = slot (key);
+        if (used[h]) {
+            int old = values[h];
+            values[h] = value;
+            return old;
+        }
+
+        keys[h] = key;
+        values[h] = value;
+        used[h] = true;
+        if (++size << 1 > keys.length)
+            rehash ();
+        return missing;
+    }
+
+    /*
+     * add delta to the value of key (starting from 0) and return
+     * the new value
+     */
+    public int increment (long key, int delta) {
+        int h = slot (key);
+        if (used[h])
+            return values[h] += delta;
+        put (key, delta);
+        return delta;
+    }
+
+    public void clear () {
+        Arrays.fill(used, false);
+        size = 0;
+    }
+
+    public void forEach (Visitor visitor) {
+        for (int i = 0; i < keys.length; ++i)
+            if (used[i])
+                visitor.visit(keys[i], values[i]);
+    }
+
+    void rehash () {
+        long[] okeys = keys;
+        int[] ovalues = values;
+        boolean[] oused = used;
+
+        int tsize = okeys.length << 1;
+        keys = new long[tsize];
+        values = new int[tsize];
+        used = new boolean[tsize];
+        mask = tsize - 1;
+        for (int i = 0; i < okeys.length; ++i) {
+            if (oused[i]) {
+                int h = slot (okeys[i]);
+                keys[h] = okeys[i];
+                values[h] = ovalues[i];
+                used[h] = true;
+            }
+        }
+    }
+}
@@ -1,71 +1,155 @@
 package ncats.stitcher.graph;
 
-import java.util.Map;
-import java.util.HashMap;
-import java.util.TreeMap;
-import java.util.List;
-import java.util.ArrayList;
-import java.util.Set;
-import java.util.TreeSet;
-import java.util.Iterator;
 import java.util.Arrays;
 import java.util.Comparator;
+import java.util.function.Consumer;
 
 /**
- * UnionFind algorithm with path compression
+ * UnionFind algorithm with path compression (halving) and union by
+ * size. Node ids are remapped onto dense int indexes through an open
+ * addressing hash table so that parent and size are kept in primitive
+ * arrays; nothing is boxed per node.
  */
 public class UnionFind {
+    static final int DEFAULT_CAPACITY = 16;
+    static final long EMPTY = Long.MIN_VALUE;
 
-    private Map<Long, Long> parent = new HashMap<Long, Long>();
-    private Map<Long, Integer> rank = new HashMap<Long, Integer>();
+    // open addressing table of id -> index+1 (0 means empty slot)
+    private long[] keys;
+    private int[] slots;
+    private int mask;
+
+    // dense index arrays
+    private long[] ids;
+    private int[] parent;
+    private int[] rank; // size (weight) of the tree rooted at the index
+    private int count;
 
     public UnionFind () {
+        this (DEFAULT_CAPACITY);
+    }
+
+    public UnionFind (int capacity) {
+        allocate (Math.max(DEFAULT_CAPACITY, capacity));
+    }
+
+    void allocate (int capacity) {
+        int tsize = Integer.highestOneBit(Math.max(2, capacity) - 1) << 2;
+        keys = new long[tsize];
+        slots = new int[tsize];
+        mask = tsize - 1;
+        ids = new long[capacity];
+        parent = new int[capacity];
+        rank = new int[capacity];
+        count = 0;
     }
 
     public void clear () {
-        parent.clear();
-        rank.clear();
+        Arrays.fill(slots, 0);
+        count = 0;
     }
 
-    protected Long getRoot (Long n) {
-        return getRoot (n, 1);
+    public int size () { return count; }
+
+    static int hash (long id) {
+        long h = id * 0x9E3779B97F4A7C15L;
+        return (int)(h ^ (h >>> 32));
+    }
+
+    /*
+     * index of id or -1 if not present
+     */
+    protected int index (long id) {
+        for (int h = hash (id) & mask; ; h = (h + 1) & mask) {
+            int s = slots[h];
+            if (s == 0)
+                return -1;
+            if (keys[h] == id)
+                return s - 1;
+        }
     }
-    
-    protected Long getRoot (Long n, int r) {
-        Long p = parent.get(n);
-        if (p != null) {
-            while (!n.equals(p)) {
-                n = p;          
-                p = parent.get(p);              
+
+    /*
+     * index of id; id is added as a singleton with weight r if
+     * not already present
+     */
+    protected int index (long id, int r) {
+        int h = hash (id) & mask;
+        for (int s; (s = slots[h]) != 0; h = (h + 1) & mask) {
+            if (keys[h] == id)
+                return s - 1;
+        }
+
+        if (count == ids.length) {
+            grow ();
+            h = hash (id) & mask;
+            while (slots[h] != 0)
+                h = (h + 1) & mask;
+        }
+
+        int i = count++;
+        keys[h] = id;
+        slots[h] = i + 1;
+        ids[i] = id;
+        parent[i] = i;
+        rank[i] = r;
+
+        return i;
+    }
+
+    void grow () {
+        int capacity = ids.length << 1;
+        ids = Arrays.copyOf(ids, capacity);
+        parent = Arrays.copyOf(parent, capacity);
+        rank = Arrays.copyOf(rank, capacity);
+
+        if ((capacity << 1) > keys.length) {
+            int tsize = keys.length << 1;
+            keys = new long[tsize];
+            slots = new int[tsize];
+            mask = tsize - 1;
+            for (int i = 0; i < count; ++i) {
+                int h = hash (ids[i]) & mask;
+                while (slots[h] != 0)
+                    h = (h + 1) & mask;
+                keys[h] = ids[i];
+                slots[h] = i + 1;
             }
         }
-        else {
-            parent.put(n, n);
-            rank.put(n, r);
+    }
+
+    /*
+     * root index with path halving
+     */
+    protected int getRoot (int i) {
+        while (parent[i] != i) {
+            int p = parent[parent[i]];
+            parent[i] = p;
+            i = p;
         }
-        return n;
+        return i;
     }
 
     public boolean add (long p) {
         return add (p, 1);
     }
-    
+
     public boolean add (long p, int r) {
-        Long q = getRoot (p, r);
-        return q.equals(p);
+        return ids[getRoot (index (p, r))] == p;
     }
-    
+
     public boolean find (long p, long q) {
-        return parent.containsKey(p) && parent.containsKey(q)
-            && getRoot(p).equals(getRoot (q));
+        int i = index (p), j = index (q);
+        return i >= 0 && j >= 0 && getRoot (i) == getRoot (j);
     }
 
     public boolean contains (long p) {
-        return parent.containsKey(p);
+        return index (p) >= 0;
     }
 
     public Long root (long p) {
-        return parent.containsKey(p) ? getRoot (p) : null;
+        int i = index (p);
+        return i >= 0 ? ids[getRoot (i)] : null;
     }
 
     public long union (long p, long q) {
@@ -73,50 +157,85 @@ public class UnionFind {
     }
 
     public long union (long p, long q, boolean maxrank) {
-        long i = getRoot (p);
-        long j = getRoot (q);
-        long k;
+        int i = getRoot (index (p, 1));
+        int j = getRoot (index (q, 1));
+        int k;
         if (i != j) {
-            int ri = rank.get(i);
-            int rj = rank.get(j);
+            int ri = rank[i];
+            int rj = rank[j];
             if (ri >= rj || !maxrank) { // preserve directionality
-                parent.put(j, i);
-                rank.put(i, ri+rj);
+                parent[j] = i;
+                rank[i] = ri+rj;
                 k = i;
             }
             else {
-                parent.put(i, j);
-                rank.put(j, ri+rj);
+                parent[i] = j;
+                rank[j] = ri+rj;
                 k = j;
             }
         }
         else
             k = i; // or p = j
-        return k;
+        return ids[k];
     }
 
-    public long component (long p) { return getRoot (p); }
-    public long[][] components () {
-        Map<Long, Set<Long>> eqmap = new TreeMap<Long, Set<Long>>();
-        for (Long n : parent.keySet()) {
-            Long p = getRoot (n);
-            Set<Long> comp = eqmap.get(p);
-            if (comp == null) {
-                eqmap.put(p, comp = new TreeSet<Long>());
-            }
-            comp.add(n);
+    public long component (long p) { return ids[getRoot (index (p, 1))]; }
+
+    /*
+     * members of each component linked through next[] with head[]
+     * indexed by root; returns the number of components
+     */
+    int link (int[] head, int[] next, int[] sizes) {
+        Arrays.fill(head, 0, count, -1);
+        int ncomps = 0;
+        // walk backward so that each list comes out in insertion order
+        for (int i = count; --i >= 0; ) {
+            int r = getRoot (i);
+            if (head[r] < 0)
+                ++ncomps;
+            next[i] = head[r];
+            head[r] = i;
+            ++sizes[r];
         }
+        return ncomps;
+    }
+
+    long[] members (int r, int[] head, int[] next, int size) {
+        long[] comp = new long[size];
+        int k = 0;
+        for (int i = head[r]; i >= 0; i = next[i])
+            comp[k++] = ids[i];
+        Arrays.sort(comp);
+        return comp;
+    }
+
+    /**
+     * Stream each component (members sorted by id) to the consumer
+     * without materializing all of them at once. Components are
+     * visited in the order in which their roots were first added.
+     */
+    public void forEachComponent (Consumer<long[]> consumer) {
+        int[] head = new int[count];
+        int[] next = new int[count];
+        int[] sizes = new int[count];
+        link (head, next, sizes);
+        for (int r = 0; r < count; ++r) {
+            if (head[r] >= 0 && parent[r] == r)
+                consumer.accept(members (r, head, next, sizes[r]));
+        }
+    }
+
+    public long[][] components () {
+        int[] head = new int[count];
+        int[] next = new int[count];
+        int[] sizes = new int[count];
 
         // equivalence class
-        long[][] eqv = new long[eqmap.size()][];
+        long[][] eqv = new long[link (head, next, sizes)][];
         int eq = 0;
-        for (Map.Entry<Long, Set<Long>> me : eqmap.entrySet()) {
-            Set<Long> v = me.getValue();
-            eqv[eq] = new long[v.size()];
-            int i = 0;
-            for (Iterator<Long> it = v.iterator(); it.hasNext(); ++i)
-                eqv[eq][i] = it.next();
-            ++eq;
+        for (int r = 0; r < count; ++r) {
+            if (head[r] >= 0 && parent[r] == r)
+                eqv[eq++] = members (r, head, next, sizes[r]);
         }
 
         // now sort the array
@@ -124,7 +243,7 @@ public class UnionFind {
                 public int compare (long[] c1, long[] c2) {
                     int d = c2.length - c1.length;
                     if (d == 0) {
-                        d = (int)(c1[0] - c2[0]);
+                        d = Long.compare(c1[0], c2[0]);
                     }
                     return d;
                 }
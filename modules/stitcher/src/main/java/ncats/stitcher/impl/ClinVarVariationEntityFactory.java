@@ -42,32 +42,19 @@ public class ClinVarVariationEntityFactory extends EntityRegistry {
 
     static final boolean LITERATURE_ONLY = true;
 
-    class ClinVarVariationParser implements BiConsumer<XmlStream, byte[]> {
-        final DocumentBuilder builder;
-
-        public int count;
-        ClinVarVariationParser () throws Exception {
-            builder = DocumentBuilderFactory.newInstance()
-                .newDocumentBuilder();
-        }
-
-        public void accept (XmlStream xs, byte[] xml) {
-            //logger.info("### processing record "+xs.getCount()+"...");
-            try {
-                Document doc = builder.parse(new ByteArrayInputStream (xml));
-                Entity ent = register (xs, doc, xml);
-                if (ent != null)
-                    ++count;
-            }
-            catch (Exception ex) {
-                logger.log(Level.SEVERE,
-                           "Can't register ClinVarVariation record:\n"
-                           +new String(xml), ex);
-            }
-        }
+    /*
+     * what's extracted from a VariationArchive record; data is the
+     * payload of the entity
+     */
+    static class Variation {
+        final Map<String, Object> data = new LinkedHashMap<>();
+        final List<Map> interps = new ArrayList<>();
+        final Set<String> genes = new TreeSet<>();
+        int conditionCount;
     }
 
-    DateFormat df = new SimpleDateFormat ("yyyy-MM-dd");
+    final ThreadLocal<DateFormat> df =
+        ThreadLocal.withInitial(() -> new SimpleDateFormat ("yyyy-MM-dd"));
 
     public ClinVarVariationEntityFactory(GraphDb graphDb) throws IOException {
         super (graphDb);
@@ -93,9 +80,10 @@ public class ClinVarVariationEntityFactory extends EntityRegistry {
             ;
     }
 
-    Entity register (XmlStream xs, Document doc, byte[] xml) throws Exception {
-        XPath xpath = XPathFactory.newInstance().newXPath();        
-        Element vcv = doc.getDocumentElement();
+    /*
+     * dom/xpath extraction only; runs on a pipeline worker
+     */
+    Variation extract (Element vcv, XPath xpath) throws Exception {
 
         if (LITERATURE_ONLY) {
             NodeList nodes = (NodeList)xpath.evaluate
@@ -104,7 +92,8 @@ public class ClinVarVariationEntityFactory extends EntityRegistry {
                 return null;
         }
 
-        Map<String, Object> data = new LinkedHashMap<>();
+        Variation variation = new Variation ();
+        Map<String, Object> data = variation.data;
         String type = vcv.getAttribute("VariationType");
         data.put("id", Long.parseLong(vcv.getAttribute("VariationID")));
         data.put("accession", vcv.getAttribute("Accession"));
@@ -116,13 +105,13 @@ public class ClinVarVariationEntityFactory extends EntityRegistry {
                  
         String value = vcv.getAttribute("DateCreated");
         if (value != null) {
-            Date date = df.parse(value);
+            Date date = df.get().parse(value);
             data.put("created", date.getTime());
         }
         
         value = vcv.getAttribute("DateLastUpdated");
         if (value != null) {
-            Date date = df.parse(value);
+            Date date = df.get().parse(value);
             data.put("updated", date.getTime());
         }
         
@@ -130,7 +119,7 @@ public class ClinVarVariationEntityFactory extends EntityRegistry {
             ("./InterpretedRecord/"
              +(type.equalsIgnoreCase("haplotype") ? "Haplotype/":"")
              +"SimpleAllele/GeneList/Gene", vcv, XPathConstants.NODESET);
-        Set<String> genes = new TreeSet<>();
+        Set<String> genes = variation.genes;
         Set<String> generefs = new TreeSet<>();
         Set<Integer> alleles = new TreeSet<>();
         for (int i = 0; i < values.getLength(); ++i) {
@@ -171,7 +160,7 @@ public class ClinVarVariationEntityFactory extends EntityRegistry {
         values = (NodeList)xpath.evaluate
             ("./InterpretedRecord/Interpretations/Interpretation",
              vcv, XPathConstants.NODESET);
-        List<Map> interps = new ArrayList<>();
+        List<Map> interps = variation.interps;
         Set<String> conditions = new TreeSet<>();
         int conditionCount = 0;
         for (int i = 0; i < values.getLength(); ++i) {
@@ -242,15 +231,24 @@ public class ClinVarVariationEntityFactory extends EntityRegistry {
         data.put("interpretations", interpretations.toArray(new String[0]));
         data.put("conditions", conditions.toArray(new String[0]));
         data.put("condition_count", conditionCount);
+        variation.conditionCount = conditionCount;
 
-        Entity ent = register (data);
+        return variation;
+    }
+
+    /*
+     * called within a batch transaction in file order
+     */
+    Entity register (Variation variation, int n) {
+        Map<String, Object> data = variation.data;
+        Entity ent = _register (data);
         if (ent != null) {
-            logger.info("++++++ "+String.format("%1$6d ", xs.getCount())
-                        +data.get("accession")+": genes="+genes
-                        +" interps="+interps.size()
-                        +" conditions="+conditionCount
+            logger.info("++++++ "+String.format("%1$6d ", n)
+                        +data.get("accession")+": genes="+variation.genes
+                        +" interps="+variation.interps.size()
+                        +" conditions="+variation.conditionCount
                         +" "+data.get("name"));
-            for (Map interp : interps) {
+            for (Map interp : variation.interps) {
                 Map attrs = new LinkedHashMap ();
                 List<String> pmids = (List)interp.get("pmids");
                 if (pmids != null && !pmids.isEmpty()) {
@@ -266,7 +264,7 @@ public class ClinVarVariationEntityFactory extends EntityRegistry {
                         if (!e.is(SOURCE_LABEL)) {
                             // don't stitch to other clinvar entity
                             logger.info("..."+ent.getId()+" -> "+r);
-                            e.stitch(ent, R_rel, r, attrs);
+                            e._stitch(ent, R_rel, r, attrs);
                         }
                     }
                 }
@@ -283,17 +281,15 @@ public class ClinVarVariationEntityFactory extends EntityRegistry {
         ds.set(Props.URI, file.toURI().toString());
 
         logger.info("############## registering entities for "+file);
-        try {
-            ClinVarVariationParser varp = new ClinVarVariationParser ();
-            try (XmlStream xs = new XmlStream
-                 (new GZIPInputStream (new FileInputStream (file)),
-                  "VariationArchive", varp)) {
-                int total = xs.start();
-                ds.set(INSTANCES, varp.count);
-                updateMeta (ds);
-                logger.info("############### "+varp.count+"/"
-                            +total+" entities registered!");
-            }
+        try (InputStream is = new GZIPInputStream
+             (new FileInputStream (file), 1<<16)) {
+            XmlRecords<Variation> records = new XmlRecords<>
+                (this, "VariationArchive", this::extract, this::register);
+            int count = records.read(is);
+            ds.set(INSTANCES, count);
+            updateMeta (ds);
+            logger.info("############### "+count+"/"
+                        +records.getRecords()+" entities registered!");
         }
         catch (Exception ex) {
             logger.log(Level.SEVERE, "Can't parse file: "+file, ex);
@@ -304,13 +300,21 @@ public class ClinVarVariationEntityFactory extends EntityRegistry {
     public static void main(String[] argv) throws Exception {
         if (argv.length < 2) {
             logger.info("Usage: "+ClinVarVariationEntityFactory.class.getName()
-                        +" DBDIR ClinVarVariationRelease_00-latest.xml.gz");
+                        +" DBDIR [threads=N] [batch=N] "
+                        +"ClinVarVariationRelease_00-latest.xml.gz");
             System.exit(1);
         }
 
         try (ClinVarVariationEntityFactory cvv =
              new ClinVarVariationEntityFactory (argv[0])) {
-            cvv.register(new File (argv[1]));
+            for (int i = 1; i < argv.length; ++i) {
+                if (argv[i].startsWith("threads="))
+                    cvv.setThreads(Integer.parseInt(argv[i].substring(8)));
+                else if (argv[i].startsWith("batch="))
+                    cvv.setBatchSize(Integer.parseInt(argv[i].substring(6)));
+                else
+                    cvv.register(new File (argv[i]));
+            }
         }
     }
 
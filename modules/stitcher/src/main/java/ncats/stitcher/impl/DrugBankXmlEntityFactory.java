@@ -3,6 +3,7 @@ package ncats.stitcher.impl;
 import java.io.*;
 import java.util.*;
 import java.util.zip.*;
+import java.util.function.Consumer;
 import java.util.Base64;
 import java.net.URL;
 
@@ -85,14 +86,26 @@ public class DrugBankXmlEntityFactory extends MoleculeEntityFactory {
         add (T_Keyword, "groups");
     }
 
-    void register (Map<String, Object> payload, int total) {
+    void register (Map<String, Object> payload, Structure struc, int total) {
         System.out.println("+++++ "+payload.get("drugbank-id")+" "
                            +(count+1)+"/"+total+" +++++");
-        register (payload);
+        register (payload, struc);
         ++count;
     }
 
     void parseXml (InputStream is) throws Exception {
+        final int[] total = {0};
+        try (Pipeline<Map<String, Object>, Structure> pipeline = pipeline
+             (this::structure, (p, struc) -> register (p, struc, ++total[0]))) {
+            parseXml (is, pipeline::put);
+        }
+    }
+
+    /*
+     * each drug is handed to the consumer as its own copy of payload
+     */
+    void parseXml (InputStream is, Consumer<Map<String, Object>> consumer)
+        throws Exception {
         XMLEventReader events =
             XMLInputFactory.newInstance().createXMLEventReader(is);
         
@@ -101,7 +114,6 @@ public class DrugBankXmlEntityFactory extends MoleculeEntityFactory {
         Map<String, Object> payload = new TreeMap<>();
         Map<String, Object> props = new TreeMap<>();
         StringBuilder snippet = new StringBuilder ();
-        int total = 0;
         for (XMLEvent ev; events.hasNext(); ) {
             ev = events.nextEvent();
             if (ev.isStartElement()) {
@@ -170,7 +182,7 @@ public class DrugBankXmlEntityFactory extends MoleculeEntityFactory {
                 else if (Drug.equals(name) && Root.equals(parent.getName())) {
                     String xml = Util.encode64(snippet.toString(), true);
                     payload.put("xml", xml);
-                    register (payload, ++total);
+                    consumer.accept(new TreeMap<>(payload));
                     //System.out.println(payload);
                     //System.out.println(Util.decode64(xml, true));
                 }
@@ -277,7 +289,7 @@ public class DrugBankXmlEntityFactory extends MoleculeEntityFactory {
         if (argv.length < 2) {
             System.err.println("Usage: "
                                +DrugBankXmlEntityFactory.class.getName()
-                               +" DBDIR [cache=DIR] FILE...");
+                               +" DBDIR [cache=DIR] [threads=N] FILE...");
             System.exit(1);
         }
 
@@ -291,6 +303,10 @@ public class DrugBankXmlEntityFactory extends MoleculeEntityFactory {
                     if (name.equalsIgnoreCase("cache")) {
                         mef.setCache(argv[i].substring(pos+1));
                     }
+                    else if (name.equalsIgnoreCase("threads")) {
+                        mef.setThreads(Integer.parseInt
+                                       (argv[i].substring(pos+1)));
+                    }
                     else if (name.equalsIgnoreCase("name")) {
                         sourceName = argv[i].substring(pos+1);
                         System.out.println(sourceName);
@@ -956,7 +956,9 @@ public class GARDEntityFactory extends EntityRegistry {
         };
 
         logger.info("######### generating strongly connected components...");
-        for (Iterator<Component> it = connectedComponents (2, rule1);
+        // rule1 only reads the entities so it's safe to scan in parallel
+        for (Iterator<Component> it =
+                 connectedComponents (2, rule1, getThreads());
              it.hasNext();) {
             Component comp = it.next();
             System.out.println("--");
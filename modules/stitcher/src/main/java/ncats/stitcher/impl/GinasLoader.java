@@ -43,7 +43,10 @@ public class GinasLoader extends MoleculeEntityFactory {
     NAME_TYPE   cd      Code
      */
 
-    static protected MolImporter _mi = new MolImporter();
+    // readJsonRecord runs on the pipeline workers and MolImporter
+    // isn't thread safe
+    static protected final ThreadLocal<MolImporter> _mi =
+        ThreadLocal.withInitial(MolImporter::new);
     static protected ObjectMapper _mapper = new ObjectMapper();
 
     static String[] citeSRS = {
@@ -72,6 +75,38 @@ public class GinasLoader extends MoleculeEntityFactory {
     };
 
 
+    // the fields of a record used by readJsonRecord
+    static final String[] FIELDS = {
+        "substanceClass", "structure", "names.name", "names.preferred",
+        "codes.type", "codes.codeSystem", "codes.code",
+        "relationships.type", "relationships.relatedSubstance.approvalID",
+        "mixture.components.substance.approvalID", "tags",
+        "references.citation"
+    };
+
+    /*
+     * a decoded record; linked and claimed are filled in by the writer
+     * with the related substances it could link to right away
+     */
+    static class Substance {
+        final Molecule mol;
+        final String unii;
+        boolean existing; // loaded by an earlier run
+        Map<RelationshipType, Set<String>> linked = new HashMap<>();
+        Map<RelationshipType, Set<Long>> claimed = new HashMap<>();
+
+        Substance (Molecule mol) {
+            this.mol = mol;
+            this.unii = mol.getProperty(StitchKey.I_UNII.name());
+        }
+
+        String[] related (RelationshipType type) {
+            String names = mol.getProperty(type.name());
+            return names != null && names.length() > 0
+                ? names.split("\n") : new String[0];
+        }
+    }
+
     public GinasLoader(String dir) throws IOException {
         super (dir);
     }
@@ -100,7 +135,7 @@ public class GinasLoader extends MoleculeEntityFactory {
                             stereoCenters: 2,
                             definedStereo: 2,
 */
-            cmpd = _mi.importMol(node2.get("molfile").asText());
+            cmpd = _mi.get().importMol(node2.get("molfile").asText());
 
             // add source value that gets computed into racemate
             if (node2.get("stereochemistry").asText().equals("RACEMIC") &&
@@ -109,7 +144,7 @@ public class GinasLoader extends MoleculeEntityFactory {
                 molecule = molecule.replace("@@","||");
                 molecule = molecule.replace("@","@@");
                 molecule = molecule.replace("||","@");
-                cmpd = _mi.importMol(cmpd.exportToFormat("smiles") + "." + molecule);
+                cmpd = _mi.get().importMol(cmpd.exportToFormat("smiles") + "." + molecule);
             }
         } else {
             cmpd = new Molecule();
@@ -210,7 +245,7 @@ public class GinasLoader extends MoleculeEntityFactory {
     }
 
     static GinasLoader load (String[] argv) throws Exception {
-        // argv = neo4j.db ginas filename
+        // argv = neo4j.db ginas filename [threads=N] [batch=N]
         String filename = argv[2];
         File file = new File (argv[2]);
         if (!file.exists()) {
@@ -229,6 +264,15 @@ public class GinasLoader extends MoleculeEntityFactory {
             return null;
         }
 
+        for (int i = 3; i < argv.length; ++i) {
+            if (argv[i].startsWith("threads="))
+                gl.setThreads(Integer.parseInt(argv[i].substring(8)));
+            else if (argv[i].startsWith("batch="))
+                gl.setBatchSize(Integer.parseInt(argv[i].substring(6)));
+            else
+                System.err.println("Unknown argument: "+argv[i]);
+        }
+
         gl.add(StitchKey.I_UNII, StitchKey.I_UNII.name());
         gl.add(StitchKey.N_Name, StitchKey.N_Name.name());
         gl.add(StitchKey.I_CAS, StitchKey.I_CAS.name());
@@ -253,90 +297,108 @@ public class GinasLoader extends MoleculeEntityFactory {
 
         String baseUrl = "http://tripod.nih.gov/ginas/app/api/v1/substances";
 
-        BufferedReader br = new BufferedReader(new InputStreamReader
-                                               (new GZIPInputStream(new FileInputStream(filename)), "UTF-8"));
-        String line = br.readLine();
-        int count = 0;
-        while (line != null) { // WORKED: 18MXK3D6DB      ab2eaaa2-c135-4c8d-b525-c3e8ea370eda    {"st
-            String unii = line.substring(8, line.indexOf('\t'));
-            line = line.substring(line.indexOf('\t')+1);
-            String uuid = line.substring(0, line.indexOf('\t'));
-            String fullUrl = baseUrl+"("+uuid+")?view=full";
-            line = line.substring(line.indexOf('\t')+1);
-
-            JsonNode json = _mapper.readTree(line);
-            try {
-                Molecule mol = readJsonRecord(json, unii, fullUrl);
-                System.out.println("+++++ " + (count + 1) + " +++++");
-                Long nodeId;
-                if (loaded.containsKey(unii)) {
-                    System.out.println("Already loaded: "+unii);
-                    nodeId = loaded.get(unii);
-                    for (RelationshipType type: relatedSubstances.keySet()) {
-                        if (mol.getProperty(type.name()) != null
-                            && mol.getProperty(type.name()).length() > 0) {
-                            for (String nodeName: mol.getProperty(type.name()).split("\n")) {
-                                if (!loaded.containsKey(nodeName)) {
-                                    relatedSubstances.get(type).put(nodeId, nodeName);
-                                }
-                            }
+        /*
+         * the writer only touches the graph since a failed batch is
+         * replayed; loaded and relatedSubstances are updated once the
+         * record is committed, so a link the writer couldn't make
+         * (e.g., to a substance in the same batch) ends up in
+         * relatedSubstances and is made at the end
+         */
+        final GinasLoader ginas = gl;
+        JsonLines<Substance> records = new JsonLines<Substance>
+            (ginas, (columns, json) -> {
+                String unii = columns[0].substring(8);
+                String fullUrl = baseUrl+"("+columns[1]+")?view=full";
+                return new Substance (readJsonRecord(json, unii, fullUrl));
+            }, (sub, n) -> {
+                sub.linked.clear();
+                sub.claimed.clear();
+                sub.existing = loaded.containsKey(sub.unii);
+                if (sub.existing) {
+                    for (RelationshipType type: relatedSubstances.keySet())
+                        sub.linked.put(type, new HashSet<>());
+                    return Entity._getEntity
+                        (ginas.gdb.getNodeById(loaded.get(sub.unii)));
+                }
+
+                Entity ent = ginas.register(sub.mol);
+                for (RelationshipType type: relatedSubstances.keySet()) {
+                    Set<String> linked = new HashSet<>();
+                    for (String nodeName: sub.related(type)) {
+                        if (loaded.containsKey(nodeName)) {
+                            ent._node().createRelationshipTo(
+                                ginas.gdb.getNodeById(loaded.get(nodeName)), type);
+                            linked.add(nodeName);
                         }
                     }
-                } else {
-                    try (Transaction tx = gl.gdb.beginTx()) {
-                        Entity ent = gl.register(mol);
-                        nodeId = ent.getId();
-                        loaded.put(unii, nodeId);
-                        count++;
-                    
-                        for (RelationshipType type: relatedSubstances.keySet()) {
-                            if (mol.getProperty(type.name()) != null
-                                && mol.getProperty(type.name()).length() > 0) {
-                                for (String nodeName: mol.getProperty(type.name()).split("\n")) {
-                                    if (loaded.containsKey(nodeName)) {
-                                        ent._node().createRelationshipTo(
-                                                                         gl.gdb.getNodeById(loaded.get(nodeName)), type);
-                                    } else {
-                                        relatedSubstances.get(type).put(nodeId, nodeName);
-                                    }
-                                }
-                            }
-                            if (relatedSubstances.get(type).containsValue(unii)) {
-                                Set<Long> keysToDrop = new HashSet<>();
-                                for (Long oNodeId : relatedSubstances.get(type).keySet())
-                                    if (relatedSubstances.get(type).get(oNodeId).equals(unii)) {
-                                        Node oNode = gl.gdb.getNodeById(oNodeId);
-                                        oNode.createRelationshipTo(ent._node(), type);
-                                        keysToDrop.add(oNodeId);
-                                    }
-                                for (Long oNodeId : keysToDrop)
-                                    relatedSubstances.get(type).remove(oNodeId);
-                            }
+                    sub.linked.put(type, linked);
+
+                    Set<Long> claimed = new HashSet<>();
+                    for (Map.Entry<Long, String> me
+                             : relatedSubstances.get(type).entrySet()) {
+                        if (me.getValue().equals(sub.unii)) {
+                            Node oNode = ginas.gdb.getNodeById(me.getKey());
+                            oNode.createRelationshipTo(ent._node(), type);
+                            claimed.add(me.getKey());
                         }
-                        tx.success();
+                    }
+                    sub.claimed.put(type, claimed);
+                }
+                return ent;
+            });
+        // prints are here as well since the writer may be replayed
+        records.setColumn(2).setFields(FIELDS).setCommitted((sub, ent, n) -> {
+                System.out.println("+++++ " + n + " +++++");
+                if (sub.existing)
+                    System.out.println("Already loaded: "+sub.unii);
+                long nodeId = ent.getId();
+                loaded.put(sub.unii, nodeId);
+                for (RelationshipType type: relatedSubstances.keySet()) {
+                    Map<Long, String> related = relatedSubstances.get(type);
+                    for (Long oNodeId : sub.claimed.getOrDefault
+                             (type, Collections.emptySet()))
+                        related.remove(oNodeId, sub.unii);
+                    for (String nodeName: sub.related(type)) {
+                        // an earlier run already linked what it had
+                        if (sub.existing && loaded.containsKey(nodeName))
+                            continue;
+                        if (!sub.linked.get(type).contains(nodeName))
+                            related.put(nodeId, nodeName);
                     }
                 }
-            } catch (Exception ex) {ex.printStackTrace();}
-            //if (count > 40) break; // TODO
-            line = br.readLine();
+            });
+        try (InputStream is = new GZIPInputStream
+             (new FileInputStream(filename), 1<<16)) {
+            records.read(is);
         }
+        int count = records.getRegistered();
         System.out.println("records loaded: "+count);
 
+        /*
+         * substances that were already loaded (and so weren't written)
+         * still need links to the ones that weren't
+         */
         // link cmpds to active moieties
         count = 0;
-        for (RelationshipType type: relatedSubstances.keySet()) {
-            for (Long nodeId : relatedSubstances.get(type).keySet()) {
-                try (Transaction tx = gl.gdb.beginTx()) {
-                    Node node = gl.gdb.getNodeById(nodeId);
-                    String unii = relatedSubstances.get(type).get(nodeId);
-                    Node oNode = gl.gdb.findNode(DynamicLabel.label(gl.getDataSource().getName()), Entity.ID, unii);
-                    if (oNode != null) {
-                        node.createRelationshipTo(oNode, type);
-                        System.out.println("Entry " + count + " Stitched together active moiety: " + nodeId + ":" + unii + ":" + oNode.toString());
-                    } else {
-                        System.out.println("Entry " + count + " Failed to stitch together active moiety: " + nodeId + ":" + unii);
-                    }
-                    count++;
+        try (Batch batch = gl.batch()) {
+            for (RelationshipType type: relatedSubstances.keySet()) {
+                for (Map.Entry<Long, String> me
+                         : relatedSubstances.get(type).entrySet()) {
+                    final int entry = count++;
+                    String unii = me.getValue();
+                    batch.add(() -> {
+                            Node node = ginas.gdb.getNodeById(me.getKey());
+                            Node oNode = ginas.gdb.findNode(DynamicLabel.label(ginas.getDataSource().getName()), Entity.ID, unii);
+                            if (oNode != null)
+                                node.createRelationshipTo(oNode, type);
+                            return oNode;
+                        }, oNode -> {
+                            if (oNode != null) {
+                                System.out.println("Entry " + entry + " Stitched together active moiety: " + me.getKey() + ":" + unii + ":" + oNode.toString());
+                            } else {
+                                System.out.println("Entry " + entry + " Failed to stitch together active moiety: " + me.getKey() + ":" + unii);
+                            }
+                        });
                 }
             }
         }
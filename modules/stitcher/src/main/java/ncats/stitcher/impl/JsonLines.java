@@ -0,0 +1,220 @@
+package ncats.stitcher.impl;
+
+import java.io.*;
+import java.util.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import ncats.stitcher.*;
+
+/**
+ * Parallel ingest of json lines, one record per line and possibly
+ * preceded by tab delimited columns (e.g., the UNII\tUUID\tJSON of a
+ * GSRS dump). Each record is decoded on the registry's pipeline workers
+ * (see EntityRegistry.setThreads) with Jackson's streaming parser into
+ * a tree of only the fields given to setFields; everything else is
+ * skipped without being built. The writer gets the decoded records on
+ * the reading thread in input order within batched transactions (see
+ * EntityRegistry.setBatchSize). Since a failed batch is replayed, the
+ * writer should only write to the graph; any bookkeeping in memory
+ * belongs in setCommitted, which sees each record once it's committed.
+ */
+public class JsonLines<R> {
+    static final Logger logger = Logger.getLogger(JsonLines.class.getName());
+
+    public interface Decoder<R> {
+        /*
+         * runs on a worker so it mustn't touch the graph; columns are
+         * the ones before the json. returns null to skip the record
+         */
+        R decode (String[] columns, JsonNode json) throws Exception;
+    }
+
+    public interface Writer<R> {
+        /*
+         * called within the batch's transaction and possibly more than
+         * once if the batch is replayed; returns null if nothing was
+         * registered
+         */
+        Entity write (R record, int n);
+    }
+
+    public interface Committed<R> {
+        /*
+         * called once the record's transaction has committed with what
+         * the writer returned for it; never for a dropped record
+         */
+        void committed (R record, Entity ent, int n);
+    }
+
+    /*
+     * field names to keep at each level of a record; arrays are
+     * transparent, so "names.name" keeps the name of every element
+     * of names
+     */
+    static class Fields {
+        final Map<String, Fields> children = new HashMap<>();
+        boolean all; // keep the whole value
+
+        void add (String path) {
+            Fields f = this;
+            for (String name : path.split("\\.")) {
+                Fields child = f.children.get(name);
+                if (child == null)
+                    f.children.put(name, child = new Fields ());
+                f = child;
+            }
+            f.all = true;
+        }
+    }
+
+    final EntityRegistry registry;
+    final Decoder<R> decoder;
+    final Writer<R> writer;
+    Committed<R> committed;
+    final ObjectMapper mapper = new ObjectMapper ();
+    Fields fields = new Fields ();
+    int column;
+    int records, registered, skipped;
+
+    public JsonLines (EntityRegistry registry, Decoder<R> decoder,
+                      Writer<R> writer) {
+        this.registry = registry;
+        this.decoder = decoder;
+        this.writer = writer;
+    }
+
+    /*
+     * dotted paths of the fields to decode; all of them if none
+     */
+    public JsonLines<R> setFields (String... paths) {
+        fields = new Fields ();
+        for (String p : paths)
+            fields.add(p);
+        return this;
+    }
+
+    /*
+     * the json starts at this (0-based) tab delimited column
+     */
+    public JsonLines<R> setColumn (int column) {
+        if (column < 0)
+            throw new IllegalArgumentException ("Bogus column: "+column);
+        this.column = column;
+        return this;
+    }
+    public int getColumn () { return column; }
+
+    public JsonLines<R> setCommitted (Committed<R> committed) {
+        this.committed = committed;
+        return this;
+    }
+
+    JsonNode read (JsonParser p, Fields fields) throws IOException {
+        if (fields.all || fields.children.isEmpty())
+            return mapper.readTree(p);
+
+        switch (p.getCurrentToken()) {
+        case START_ARRAY:
+            ArrayNode array = mapper.createArrayNode();
+            while (p.nextToken() != JsonToken.END_ARRAY)
+                array.add(read (p, fields));
+            return array;
+
+        case START_OBJECT:
+            ObjectNode obj = mapper.createObjectNode();
+            while (p.nextToken() == JsonToken.FIELD_NAME) {
+                String name = p.getCurrentName();
+                Fields f = fields.children.get(name);
+                p.nextToken();
+                if (f != null)
+                    obj.set(name, read (p, f));
+                else
+                    p.skipChildren();
+            }
+            return obj;
+
+        default: // scalar where we expected structure
+            return mapper.readTree(p);
+        }
+    }
+
+    R decode (String line) {
+        String[] columns = new String[column];
+        int pos = 0;
+        for (int i = 0; i < column; ++i) {
+            int next = line.indexOf('\t', pos);
+            if (next < 0) {
+                logger.warning("Expecting json at column "+(column+1)
+                               +": "+abbrev (line));
+                return null;
+            }
+            columns[i] = line.substring(pos, next);
+            pos = next+1;
+        }
+
+        try (JsonParser p = mapper.getFactory()
+             .createParser(pos > 0 ? line.substring(pos) : line)) {
+            if (p.nextToken() == null) {
+                logger.warning("No json: "+abbrev (line));
+                return null;
+            }
+            return decoder.decode(columns, read (p, fields));
+        }
+        catch (Exception ex) {
+            logger.log(Level.SEVERE, "Can't decode record: "
+                       +abbrev (line), ex);
+            return null;
+        }
+    }
+
+    static String abbrev (String line) {
+        return line.length() > 256 ? line.substring(0, 256)+"..." : line;
+    }
+
+    /*
+     * returns the number of records registered; is isn't closed
+     */
+    public int read (InputStream is) throws IOException {
+        records = registered = skipped = 0;
+        BufferedReader br = new BufferedReader
+            (new InputStreamReader (is, "utf8"), 1<<16);
+        try (EntityRegistry.Batch batch = registry.batch();
+             Pipeline<String, R> pipeline = registry.pipeline
+             (this::decode, (line, rec) -> {
+                 ++records;
+                 if (rec == null) {
+                     ++skipped;
+                     return;
+                 }
+                 final int n = records;
+                 batch.add(() -> writer.write(rec, n), ent -> {
+                         if (ent != null) {
+                             ++registered;
+                             if (committed != null)
+                                 committed.committed(rec, ent, n);
+                         }
+                     });
+             })) {
+            for (String line; (line = br.readLine()) != null; ) {
+                if (!line.isEmpty())
+                    pipeline.put(line);
+            }
+        }
+        logger.info(records+" json record(s) read; "+registered
+                    +" registered and "+skipped+" skipped");
+
+        return registered;
+    }
+
+    public int getRecords () { return records; }
+    public int getRegistered () { return registered; }
+    public int getSkipped () { return skipped; }
+}
@@ -71,7 +71,12 @@ public class MapEntityFactory extends EntityRegistry {
                            +" entities!");
         }
         else {
-            instances = register (ds.openStream(), delim, header);
+            LineTokenizer tokenizer = new LineTokenizer (delim.charAt(0));
+            if (threads > 0 && !gzipped (file))
+                tokenizer.setFile(file, threads);
+            else
+                tokenizer.setInputStream(ds.openStream());
+            instances = register (tokenizer, header);
             ds.set(PROPERTIES, header == null ? this.header : header);
             ds.set(INSTANCES, instances);
             updateMeta (ds);
@@ -92,7 +97,17 @@ public class MapEntityFactory extends EntityRegistry {
         throws IOException {
         LineTokenizer tokenizer = new LineTokenizer (delim.charAt(0));
         tokenizer.setInputStream(is);
+        return register (tokenizer, header);
+    }
+
+    static boolean gzipped (File file) throws IOException {
+        try (InputStream is = new FileInputStream (file)) {
+            return is.read() == 0x1f && is.read() == 0x8b;
+        }
+    }
 
+    public int register (LineTokenizer tokenizer, String... header)
+        throws IOException {
         boolean needIDField = false; // If there are multiple entries for a given ID, subsequent row overwrite previous ones
         // one hack solution is to not include an id field in the config and use count instead
         if (this.idField == null) {
@@ -101,40 +116,42 @@ public class MapEntityFactory extends EntityRegistry {
         }
         
         int count = 0;
-        while (tokenizer.hasNext()) {
-            String[] toks = tokenizer.next();
-
-            if (header == null) {
-                this.header = header = toks;
-                logger.info("## HEADER: ");
-                for (int i = 0; i < header.length; ++i)
-                    logger.info("  "+i+": \""+header[i]+"\"");
-            }
-            else if (header.length != toks.length) {
-                logger.warning(tokenizer.getLineCount()
-                               + ": mismatch token count; expecting "
-                               +header.length+" but got "+toks.length+"!");
-            }
-            else {
-                Map<String, Object> row = new HashMap<String, Object>();
-                for (int i = 0; i < toks.length; ++i) {
-                    if (toks[i] != null) {
-                        String[] values = toks[i].split("\\|");
-                        if (values.length > 1) {
-                            row.put(header[i], values);
-                        }
-                        else {
-                            row.put(header[i], toks[i]);
+        try (Batch batch = batch ()) {
+            while (tokenizer.hasNext()) {
+                String[] toks = tokenizer.next();
+
+                if (header == null) {
+                    this.header = header = toks;
+                    logger.info("## HEADER: ");
+                    for (int i = 0; i < header.length; ++i)
+                        logger.info("  "+i+": \""+header[i]+"\"");
+                }
+                else if (header.length != toks.length) {
+                    logger.warning(tokenizer.getLineCount()
+                                   + ": mismatch token count; expecting "
+                                   +header.length+" but got "+toks.length+"!");
+                }
+                else {
+                    Map<String, Object> row = new HashMap<String, Object>();
+                    for (int i = 0; i < toks.length; ++i) {
+                        if (toks[i] != null) {
+                            String[] values = toks[i].split("\\|");
+                            if (values.length > 1) {
+                                row.put(header[i], values);
+                            }
+                            else {
+                                row.put(header[i], toks[i]);
+                            }
                         }
                     }
-                }
 
-                if (!row.isEmpty()) {
-                    if (needIDField)
-                        row.put(this.idField, String.valueOf(count));
-                    Entity ent = register (row);
-                    if (ent != null)
-                        ++count;
+                    if (!row.isEmpty()) {
+                        if (needIDField)
+                            row.put(this.idField, String.valueOf(count));
+                        Entity ent = batch.register(row);
+                        if (ent != null)
+                            ++count;
+                    }
                 }
             }
         }
@@ -53,9 +53,13 @@ public class MoleculeEntityFactory extends EntityRegistry {
     }
 
     public Entity register (final Molecule mol) {
+        return register (mol, structure (mol));
+    }
+
+    public Entity register (final Molecule mol, final Structure struc) {
         // execute in transaction context
         try (Transaction tx = gdb.beginTx()) {
-            Entity e = _register (mol);
+            Entity e = _register (mol, struc);
             tx.success();
             firePropertyChange ("entity", mol, e);
             
@@ -64,13 +68,25 @@ public class MoleculeEntityFactory extends EntityRegistry {
     }
 
     public Entity _register (final Molecule mol) {
+        return _register (mol, structure (mol));
+    }
+
+    @Override
+    protected Structure structure (Molecule mol) {
+        return mol.getAtomCount() > 0 ? super.structure(mol) : null;
+    }
+
+    /*
+     * struc is the result of structure(mol)
+     */
+    public Entity _register (final Molecule mol, final Structure struc) {
         String idval =  null;
         // add unique identifier to node (source is already present as label?)
         if (idField != null) {
             idval = mol.getProperty(idField);
         }
 
-        Entity ent = Entity._getEntity(_createNode ());
+        Entity ent = _newEntity ();
         DefaultPayload payload = new DefaultPayload (getDataSource ());
 
         if (idval != null) {
@@ -219,8 +235,8 @@ public class MoleculeEntityFactory extends EntityRegistry {
             logger.warning("Can't export structure as smiles!");
         }
 
-        if (mol.getAtomCount() > 0)
-            lychify (ent, mol);
+        if (struc != null)
+            _lychify (ent, struc);
 
         ent._add(payload);
 
@@ -237,9 +253,17 @@ public class MoleculeEntityFactory extends EntityRegistry {
     public int register (InputStream is) throws IOException {
         int count = 0;
         MolImporter mi = new MolImporter (is);  
-        for (Molecule mol; (mol = mi.read()) != null; ++count) {
-            System.out.println("+++++ "+(count+1)+" +++++");
-            register (mol);
+        try (Batch batch = batch ();
+             Pipeline<Molecule, Structure> pipeline = pipeline
+             (this::structure, (mol, struc) -> {
+                 // listeners only hear about entities that committed
+                 batch.add(() -> _register (mol, struc),
+                           e -> firePropertyChange ("entity", mol, e));
+             })) {
+            for (Molecule mol; (mol = mi.read()) != null; ++count) {
+                System.out.println("+++++ "+(count+1)+" +++++");
+                pipeline.put(mol);
+            }
         }
         mi.close();
         logger.info("$$$ "+count+" entities registered!");
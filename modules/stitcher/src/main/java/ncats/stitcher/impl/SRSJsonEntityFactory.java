@@ -11,6 +11,7 @@ import java.security.DigestInputStream;
 import ncats.stitcher.*;
 import static ncats.stitcher.StitchKey.*;
 import chemaxon.struc.Molecule;
+import com.fasterxml.jackson.databind.JsonNode;
 import ncats.stitcher.calculators.events.GSRSEventParser;
 
 public class SRSJsonEntityFactory extends MoleculeEntityFactory {
@@ -60,74 +61,169 @@ public class SRSJsonEntityFactory extends MoleculeEntityFactory {
         add (T_Keyword, "Class");
     }
 
-    void register (String line, int total) {
-        System.out.println("+++++ "+(count+1)+"/"+total+" +++++");
+    /*
+     * json decoding and structure hashing; runs on a pipeline worker
+     */
+    static class Record {
+        Object vobj;
+        Structure struc;
+    }
+
+    Record parse (String line) {
+        Record rec = new Record ();
         String[] toks = line.split("\t");
         if (toks.length < 2) {
-            logger.warning(total+": Expecting 3 fields, but instead got "
+            logger.warning("Expecting 3 fields, but instead got "
                            +toks.length+";\n"+line);
-            return;
+            return rec;
         }
             
         //logger.info("JSON: "+toks[2]);
-        Object vobj = Util.fromJson(toks[2]);
-        if (vobj == null) {
+        rec.vobj = Util.fromJson(toks[2]);
+        if (rec.vobj == null) {
             logger.warning("Can't parse json: "+toks[2]);
         }
-        else if (vobj instanceof Molecule) {
+        else if (rec.vobj instanceof Molecule) {
+            rec.struc = structure ((Molecule)rec.vobj);
+        }
+        return rec;
+    }
+
+    /*
+     * json is only the Util.SRS_FIELDS of a record
+     */
+    Record decode (String[] columns, JsonNode json) {
+        Record rec = new Record ();
+        rec.vobj = Util.fromJson(json);
+        if (rec.vobj == null) {
+            logger.warning("Can't parse json: "+String.join("\t", columns));
+        }
+        else if (rec.vobj instanceof Molecule) {
+            rec.struc = structure ((Molecule)rec.vobj);
+        }
+        return rec;
+    }
+
+    void register (String line, int total) {
+        Record rec = parse (line);
+        registered (rec, register (rec, total), total);
+    }
+
+    /*
+     * graph writes only, so it can be replayed within a batch; see
+     * registered for the rest
+     */
+    Entity register (Record rec, int total) {
+        Object vobj = rec.vobj;
+        if (vobj == null) {
+            return null;
+        }
+
+        Entity ent;
+        if (vobj instanceof Molecule) {
             Molecule mol = (Molecule)vobj;
             for (int i = 0; i < mol.getPropertyCount(); ++i) {
                 String prop = mol.getPropertyKey(i);
                 properties.add(prop);
             }
             
-            Entity ent = register (mol);
-            String relationships = mol.getProperty(RELATIONSHIPS);
-            if (relationships != null && relationships.length() > 0) {
-                String[] rels = relationships.split("\n");
-                for (String rel : rels) {
-                    processGSRSRel(ent, rel, false);
-                }
-            }
-
-            ++count;
+            ent = register (mol, rec.struc);
         }
         else { // not chemical
             Map<String, Object> map = (Map)vobj;
             properties.addAll(map.keySet());
             
-            Entity ent = register (map);
-            vobj = map.get(RELATIONSHIPS);
+            ent = register (map);
+        }
+
+        for (String rel : relationships (rec))
+            processGSRSRel(ent, rel, false);
+        
+        return ent;
+    }
+
+    /*
+     * bookkeeping for a record once its entity is committed
+     */
+    void registered (Record rec, Entity ent, int total) {
+        if (ent == null)
+            return;
+
+        System.out.println("+++++ "+(count+1)+"/"+total+" +++++");
+        
+        if (rec.vobj instanceof Map) {
+            Map<String, Object> map = (Map)rec.vobj;
+            Object vobj = map.get(RELATIONSHIPS);
+            String unii = (String)map.get("UNII");
+            if (vobj != null && !vobj.getClass().isArray()
+                && unii != null && ((String)vobj).contains(unii)) {
+                activeMoieties.put(unii, ent);
+            }
+        }
+
+        for (String rel : relationships (rec)) {
+            if (parseGSRSRel (rel) != null) {
+                Set<Entity> ents = unresolved.get(rel);
+                if (ents == null)
+                    unresolved.put(rel, ents = new HashSet<>());
+                ents.add(ent);
+            }
+        }
+        ++count;
+    }
+
+    /*
+     * relationships of the record to resolve; a non-chemical record
+     * that refers to itself is an active moiety instead
+     */
+    List<String> relationships (Record rec) {
+        List<String> rels = new ArrayList<>();
+        if (rec.vobj instanceof Molecule) {
+            String relationships =
+                ((Molecule)rec.vobj).getProperty(RELATIONSHIPS);
+            if (relationships != null && relationships.length() > 0)
+                rels.addAll(Arrays.asList(relationships.split("\n")));
+        }
+        else if (rec.vobj instanceof Map) {
+            Map<String, Object> map = (Map)rec.vobj;
+            Object vobj = map.get(RELATIONSHIPS);
             if (vobj != null) {
                 String unii = (String)map.get("UNII");
                 if (vobj.getClass().isArray()) {
-                    for (int i = 0; i < Array.getLength(vobj); ++i) {
-                        processGSRSRel(ent, (String)Array.get(vobj, i), false);
-                    }
+                    for (int i = 0; i < Array.getLength(vobj); ++i)
+                        rels.add((String)Array.get(vobj, i));
                 }
-                else if (unii != null && ((String)vobj).contains(unii)) {
-                    activeMoieties.put(unii, ent);
-                }
-                else {
-                    processGSRSRel(ent, (String)vobj, false);
+                else if (unii == null || !((String)vobj).contains(unii)) {
+                    rels.add((String)vobj);
                 }
             }
-            ++count;
         }
+        return rels;
     }
 
-    private void processGSRSRel(Entity ent, String rel, boolean force) {
+    /*
+     * type and id of a relationship we stitch on; null otherwise
+     */
+    static String[] parseGSRSRel (String rel) {
         String entry[] = rel.split("\\|");
-        String type = entry[0];
         if (entry.length == 1) {
             System.err.println("oops");
-            return;
+            return null;
         }
+        return mappedRels.containsKey(entry[0]) ? entry : null;
+    }
+
+    /*
+     * stitches to the active moieties known so far or, if forced, to
+     * every entity with the referenced UNII; graph writes only
+     */
+    private void processGSRSRel(Entity ent, String rel, boolean force) {
+        String entry[] = parseGSRSRel (rel);
+        if (entry == null)
+            return;
+        String type = entry[0];
         String id = entry[1];
-        StitchKey link;
-        if (mappedRels.containsKey(type))
-            link = mappedRels.get(type);
-        else return;
+        StitchKey link = mappedRels.get(type);
         Map<String, Object> attrs = new HashMap<>();
         attrs.put(type, id);
         if (activeMoieties.containsKey(id)) {
@@ -135,7 +231,8 @@ public class SRSJsonEntityFactory extends MoleculeEntityFactory {
             // create manual stitch from ent -> e
             if (!ent.equals(e))
                 ent.stitch(e, link, id, attrs);
-        } if (force) {
+        }
+        if (force) {
             int cnt = 0;
             for (Iterator<Entity> it = find (I_UNII, id);
                  it.hasNext(); ++cnt) {
@@ -147,11 +244,6 @@ public class SRSJsonEntityFactory extends MoleculeEntityFactory {
             if (cnt == 0)
                 logger.warning("** Unknown reference to "+type+": "
                         +id+":"+rel);
-        } else {
-            Set<Entity> ents = unresolved.get(rel);
-            if (ents == null)
-                unresolved.put(rel, ents = new HashSet<>());
-            ents.add(ent);
         }
     }
 
@@ -160,23 +252,26 @@ public class SRSJsonEntityFactory extends MoleculeEntityFactory {
         count = 0;
         unresolved.clear();
         activeMoieties.clear();
-        
-        BufferedReader br = new BufferedReader (new InputStreamReader (is));
-        int ln = 0;
-        for (String line; (line = br.readLine()) != null; ++ln) {
-            try {
-                register (line, ln+1);
-            }
-            catch (Exception ex) {
-                logger.log(Level.SEVERE, "can't register entry: "+line, ex);
-            }
-        }
-        br.close();
+
+        // activeMoieties and unresolved only see committed entities,
+        // so a replayed batch can't leave stale ones behind
+        JsonLines<Record> records = new JsonLines<Record>
+            (this, this::decode, this::register);
+        records.setColumn(2).setFields(Util.SRS_FIELDS)
+            .setCommitted((rec, ent, n) -> registered (rec, ent, n));
+        records.read(is);
+        is.close();
 
         logger.info("## "+unresolved.size()+" unresolved active moieties!");
-        for (Map.Entry<String, Set<Entity>> me : unresolved.entrySet()) {
-            for (Entity ent : me.getValue())
-                processGSRSRel(ent, me.getKey(), true);
+        try (Batch batch = batch ()) {
+            for (Map.Entry<String, Set<Entity>> me : unresolved.entrySet()) {
+                final String rel = me.getKey();
+                for (Entity ent : me.getValue()) {
+                    batch.add(() -> {
+                            processGSRSRel(ent, rel, true);
+                            return ent;
+                        });
+                }
 //            String rel = me.getKey();
 //            String entry[] = rel.split("\\|");
 //            String type = entry[0];
@@ -204,6 +299,7 @@ public class SRSJsonEntityFactory extends MoleculeEntityFactory {
 //                    logger.warning("** Unknown reference to active moiety: "
 //                                   +id+":"+me.getKey());
 //            }
+            }
         }
 
         return count;
@@ -212,7 +308,7 @@ public class SRSJsonEntityFactory extends MoleculeEntityFactory {
     public static void main (String[] argv) throws Exception {
         if (argv.length < 2) {
             System.err.println("Usage: "+SRSJsonEntityFactory.class.getName()
-                               +" DBDIR [cache=DIR] FILE...");
+                               +" DBDIR [cache=DIR] [threads=N] FILE...");
             System.exit(1);
         }
 
@@ -226,6 +322,10 @@ public class SRSJsonEntityFactory extends MoleculeEntityFactory {
                     if (name.equalsIgnoreCase("cache")) {
                         mef.setCache(argv[i].substring(pos+1));
                     }
+                    else if (name.equalsIgnoreCase("threads")) {
+                        mef.setThreads(Integer.parseInt
+                                       (argv[i].substring(pos+1)));
+                    }
                     else if (name.equalsIgnoreCase("name")) {
                         sourceName = argv[i].substring(pos+1);
                         System.out.println(sourceName);
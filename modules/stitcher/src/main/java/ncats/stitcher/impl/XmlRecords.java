@@ -0,0 +1,120 @@
+package ncats.stitcher.impl;
+
+import java.io.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathFactory;
+import org.w3c.dom.Element;
+
+import ncats.stitcher.*;
+
+/**
+ * Parallel ingest of the records in a large xml dump. XmlStream splits
+ * the records out of the input, each record is DOM parsed and handed to
+ * the extractor on the registry's pipeline workers (see
+ * EntityRegistry.setThreads), and the writer gets the extracted records
+ * on the reading thread in file order within batched transactions (see
+ * EntityRegistry.setBatchSize).
+ */
+public class XmlRecords<R> {
+    static final Logger logger = Logger.getLogger(XmlRecords.class.getName());
+
+    public interface Extractor<R> {
+        /*
+         * runs on a worker so it mustn't touch the graph; returns null
+         * to skip the record
+         */
+        R extract (Element record, XPath xpath) throws Exception;
+    }
+
+    public interface Writer<R> {
+        /*
+         * called within the batch's transaction and possibly more than
+         * once if the batch is replayed; returns null if nothing was
+         * registered
+         */
+        Entity write (R record, int n);
+    }
+
+    static class Parser {
+        final DocumentBuilder builder;
+        final XPath xpath = XPathFactory.newInstance().newXPath();
+        Parser () {
+            try {
+                builder = DocumentBuilderFactory.newInstance()
+                    .newDocumentBuilder();
+            }
+            catch (Exception ex) {
+                throw new RuntimeException (ex);
+            }
+        }
+    }
+
+    final EntityRegistry registry;
+    final String tag;
+    final Extractor<R> extractor;
+    final Writer<R> writer;
+    // DocumentBuilder and XPath aren't thread safe
+    final ThreadLocal<Parser> parser = ThreadLocal.withInitial(Parser::new);
+    int records, registered, skipped;
+
+    public XmlRecords (EntityRegistry registry, String tag,
+                       Extractor<R> extractor, Writer<R> writer) {
+        this.registry = registry;
+        this.tag = tag;
+        this.extractor = extractor;
+        this.writer = writer;
+    }
+
+    R extract (byte[] xml) {
+        Parser p = parser.get();
+        try {
+            Element record = p.builder.parse
+                (new ByteArrayInputStream (xml)).getDocumentElement();
+            return extractor.extract(record, p.xpath);
+        }
+        catch (Exception ex) {
+            logger.log(Level.SEVERE, "Can't parse "+tag+" record:\n"
+                       +new String (xml), ex);
+            return null;
+        }
+    }
+
+    /*
+     * returns the number of records registered; is isn't closed
+     */
+    public int read (InputStream is) throws IOException {
+        records = registered = skipped = 0;
+        try (EntityRegistry.Batch batch = registry.batch();
+             Pipeline<byte[], R> pipeline = registry.pipeline
+             (this::extract, (xml, rec) -> {
+                 ++records;
+                 if (rec == null) {
+                     ++skipped;
+                     return;
+                 }
+                 final int n = records;
+                 // counted once committed; a batch may be replayed
+                 batch.add(() -> writer.write(rec, n), ent -> {
+                         if (ent != null)
+                             ++registered;
+                     });
+             })) {
+            XmlStream xs = new XmlStream
+                (is, tag, (_xs, xml) -> pipeline.put(xml));
+            xs.start();
+        }
+        logger.info(records+" "+tag+" record(s) read; "+registered
+                    +" registered and "+skipped+" skipped");
+
+        return registered;
+    }
+
+    public int getRecords () { return records; }
+    public int getRegistered () { return registered; }
+    public int getSkipped () { return skipped; }
+}
@@ -3,22 +3,28 @@ package ncats.stitcher.impl;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.FilterInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.FileInputStream;
-import java.io.InputStream;
+import java.util.Arrays;
 import java.util.function.BiConsumer;
 import java.util.zip.GZIPInputStream;
-import java.util.logging.Level;
 import java.util.logging.Logger;
 
+/**
+ * Splits the records enclosed by a tag out of an xml stream as it's
+ * read, each one handed to the consumer as a standalone document.
+ * Bytes are scanned a buffer at a time and the bytes of a record are
+ * copied in bulk; nested elements with the same tag aren't supported.
+ */
 public class XmlStream extends FilterInputStream {
     static final Logger logger = Logger.getLogger(XmlStream.class.getName());
     static final byte[] TAG_XML = "<?xml version=\"1.0\"?>\n".getBytes();
     
-    ByteArrayOutputStream buf = new ByteArrayOutputStream (1024);
+    byte[] buf = new byte[1<<16];
+    int size; // bytes in buf
     int start, stop, count;
     BiConsumer<XmlStream, byte[]> consumer;
     boolean done;
+    final byte[] one = new byte[1];
 
     byte[] startTag;
     byte[] endTag;
@@ -51,18 +57,20 @@ public class XmlStream extends FilterInputStream {
     void clear () {
         start = 0;
         stop = 0;
-        buf.reset();
-        try {
-            buf.write(TAG_XML);
-        }
-        catch (IOException ex) {
-            logger.log(Level.SEVERE, "Can't write xml", ex);
-        }
+        size = 0;
+        write (TAG_XML, 0, TAG_XML.length);
+    }
+
+    void write (byte[] b, int off, int len) {
+        if (size + len > buf.length)
+            buf = Arrays.copyOf(buf, Math.max(size+len, 2*buf.length));
+        System.arraycopy(b, off, buf, size, len);
+        size += len;
     }
     
     void publish () {
-        if (buf.size() > TAG_XML.length) {
-            byte[] xml = buf.toByteArray();
+        if (size > TAG_XML.length) {
+            byte[] xml = Arrays.copyOf(buf, size);
             if (consumer != null)
                 consumer.accept(this, xml);
             ++count;
@@ -70,24 +78,47 @@ public class XmlStream extends FilterInputStream {
     }
     
     void add (byte b) {
-        boolean intag = start < startTag.length
-            && (b == startTag[start]
-                || (start+1 == startTag.length && b == ' '));
-        if (start == startTag.length || intag) {
-            buf.write(b);
-            if (stop < endTag.length && b == endTag[stop]) {
-                if (++stop == endTag.length) {
+        one[0] = b;
+        add (one, 0, 1);
+    }
+
+    void add (byte[] b, int off, int len) {
+        for (int i = off, end = off+len; i < end; ) {
+            if (start < startTag.length) {
+                // still matching the start tag; the last byte can also
+                // be a space when the tag has attributes
+                byte c = b[i++];
+                if (c == startTag[start]
+                    || (start+1 == startTag.length && c == ' ')) {
+                    one[0] = c;
+                    write (one, 0, 1);
+                    ++start;
+                }
+                else if (start > 0) {
+                    clear ();
+                    if (c == startTag[0]) {
+                        one[0] = c;
+                        write (one, 0, 1);
+                        start = 1;
+                    }
+                }
+            }
+            else {
+                // within a record; copy up to and including the end tag
+                int from = i;
+                while (i < end && stop < endTag.length) {
+                    byte c = b[i++];
+                    if (c == endTag[stop])
+                        ++stop;
+                    else
+                        stop = c == endTag[0] ? 1 : 0;
+                }
+                write (b, from, i - from);
+                if (stop == endTag.length) {
                     publish ();
                     clear ();
                 }
             }
-            else stop = 0;
-            
-            if (intag)
-                ++start;
-        }
-        else {
-            clear ();
         }
     }
 
@@ -116,8 +147,7 @@ public class XmlStream extends FilterInputStream {
         if (isDone ()) return -1;
         int nb = super.read(b);
         if (nb != -1) {
-            for (int i = 0; i < nb; ++i)
-                add (b[i]);
+            add (b, 0, nb);
         }
         else {
             publish ();
@@ -130,8 +160,7 @@ public class XmlStream extends FilterInputStream {
         if (isDone ()) return -1;
         int nb = super.read(b, off, len);
         if (nb != -1) {
-            for (int i = 0; i < nb; ++i)
-                add (b[off+i]);
+            add (b, off, nb);
         }
         else {
             publish ();
@@ -142,7 +171,7 @@ public class XmlStream extends FilterInputStream {
     public int getCount () { return count; }
     public int start () throws IOException {
         count = 0;
-        byte[] buf = new byte[1024];
+        byte[] buf = new byte[1<<16];
         for (int nb; (nb = read (buf, 0, buf.length)) != -1; )
             ;
         
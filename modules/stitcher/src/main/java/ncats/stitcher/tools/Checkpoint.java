@@ -0,0 +1,95 @@
+package ncats.stitcher.tools;
+
+import java.util.*;
+import java.io.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+/**
+ * Append-only record of the components a stitch run has finished, one
+ * line per component: component id, completion time and the ids of the
+ * stitch nodes it produced (for the record only; stale stitches are
+ * found from the graph). Later lines win, and a partial line left by a
+ * crash is ignored, so a run can simply be restarted with the same
+ * file.
+ */
+public class Checkpoint implements AutoCloseable {
+    static final Logger logger = Logger.getLogger(Checkpoint.class.getName());
+
+    public static class Entry {
+        public final long component;
+        public final long time;
+
+        Entry (long component, long time) {
+            this.component = component;
+            this.time = time;
+        }
+    }
+
+    final File file;
+    final Map<Long, Entry> entries = new ConcurrentHashMap<>();
+    final PrintStream ps;
+
+    public Checkpoint (File file) throws IOException {
+        if (file.exists()) {
+            try (BufferedReader br = new BufferedReader
+                 (new FileReader (file))) {
+                int lines = 0;
+                for (String line; (line = br.readLine()) != null; ++lines) {
+                    Entry e = parse (line);
+                    if (e != null)
+                        entries.put(e.component, e);
+                    else
+                        logger.warning(file+":"+(lines+1)
+                                       +": bogus checkpoint \""+line+"\"");
+                }
+            }
+            logger.info(file+": "+entries.size()
+                        +" component(s) checkpointed");
+        }
+        this.file = file;
+        ps = new PrintStream (new FileOutputStream (file, true), false);
+    }
+
+    static Entry parse (String line) {
+        // keep the empty stitch list of a component without stitches
+        String[] toks = line.split("\t", -1);
+        if (toks.length != 3)
+            return null;
+        try {
+            return new Entry (Long.parseLong(toks[0]),
+                              Long.parseLong(toks[1]));
+        }
+        catch (NumberFormatException ex) {
+            return null;
+        }
+    }
+
+    public File getFile () { return file; }
+    public int size () { return entries.size(); }
+
+    /*
+     * has the component been done at or after the given time?
+     */
+    public boolean isDone (long component, long since) {
+        Entry e = entries.get(component);
+        return e != null && e.time >= since;
+    }
+
+    public synchronized void done (long component, long[] stitches) {
+        Entry e = new Entry (component, System.currentTimeMillis());
+        StringBuilder sb = new StringBuilder ();
+        sb.append(component+"\t"+e.time+"\t");
+        for (int i = 0; i < stitches.length; ++i) {
+            if (i > 0) sb.append(',');
+            sb.append(stitches[i]);
+        }
+        ps.println(sb);
+        ps.flush();
+        entries.put(component, e);
+    }
+
+    public void close () {
+        ps.close();
+    }
+}
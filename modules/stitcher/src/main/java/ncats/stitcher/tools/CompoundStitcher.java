@@ -3,12 +3,23 @@ package ncats.stitcher.tools;
 import ncats.stitcher.*;
 import ncats.stitcher.calculators.CalculatorFactory;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.*;
+import java.io.File;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
 import java.util.function.Consumer;
+import java.util.function.ToLongFunction;
+import java.util.stream.Collectors;
 import java.util.logging.Logger;
+import java.util.logging.Level;
 import java.net.URI;
 
+import org.neo4j.graphdb.Transaction;
+
 public class CompoundStitcher implements Consumer<Stitch> {
     ArrayList<Stitch> stitches = new ArrayList();
 
@@ -54,6 +65,8 @@ public class CompoundStitcher implements Consumer<Stitch> {
     
     final EntityFactory ef;
     final DataSourceFactory dsf;
+    int threads = 1;
+    Checkpoint checkpoint;
 
     public CompoundStitcher(EntityFactory ef){
         this.ef = ef;
@@ -65,40 +78,274 @@ public class CompoundStitcher implements Consumer<Stitch> {
     }
 
     public void shutdown () {
+        if (checkpoint != null)
+            checkpoint.close();
         ef.shutdown();
     }
 
+    public CompoundStitcher setThreads (int threads) {
+        this.threads = threads;
+        return this;
+    }
+    public int getThreads () { return threads; }
+
+    public CompoundStitcher setCheckpoint (Checkpoint checkpoint) {
+        this.checkpoint = checkpoint;
+        return this;
+    }
+    public Checkpoint getCheckpoint () { return checkpoint; }
+
     public void stitch (int version, Long... components) throws Exception {
-        DataSource dsource = dsf.register("stitch_v"+version);
-        int count = 1;
+        List<Long> comps = new ArrayList<>();
         if (components == null || components.length == 0) {
             // do all components
             logger.info("Untangle all components...");
-            List<Long> comps = new ArrayList<>();
-            int total = ef.components(comps);
-            logger.info("### "+total+" components!");
-            for (Long cid : comps) {
-                logger.info("################ UNTANGLE COMPONENT "+cid
-                            +" of size "+ef.entity(cid).get(Props.RANK)
-                            +"... "+count+"/"+total);
-                Component comp = ef.component(cid);
-                logger.info("Stitching component "+cid);
-                ef.untangle(new StitcherUntangleCompoundComponent
-                            (dsource, comp), this);
-                ++count;
-            }
+            ef.components(comps);
         }
         else {
-            for (Long cid : components) {
-                logger.info("################ UNTANGLE COMPONENT "+cid
-                            +" of size "+ef.entity(cid).get(Props.RANK)
-                            +"... "+count+"/"+components.length);
-                Component comp = ef.component(cid);
-                logger.info("Stitching component "+comp.getId());
-                ef.untangle(new StitcherUntangleCompoundComponent
-                            (dsource, comp), this);
-                ++count;
+            comps.addAll(Arrays.asList(components));
+        }
+        logger.info("### "+comps.size()+" components!");
+        stitch (version, comps, cid -> 0l);
+    }
+
+    /*
+     * only re-stitch components with entities created or updated since
+     * the given time, e.g., GraphDb.getLastUpdated() prior to a reload
+     */
+    public void restitch (int version, long since) throws Exception {
+        List<Long> comps = new ArrayList<>();
+        for (long cid : ef.componentsUpdatedSince(since))
+            comps.add(cid);
+        logger.info("### "+comps.size()+" components updated since "
+                    +new Date (since)+"!");
+        stitch (version, comps, cid -> since);
+    }
+
+    /*
+     * re-stitch the components left dirty by commits since they were
+     * last stitched (see GraphDb.getChangeFeed)
+     */
+    public void restitchChanged (int version) throws Exception {
+        ChangeFeed feed = ef.getGraphDb().getChangeFeed();
+        Map<Long, Long> pending = feed.pending();
+        Map<Long, Long> changed = new HashMap<>(); // current root
+        Map<Long, Long> roots = new HashMap<>();
+        for (Map.Entry<Long, Long> me : pending.entrySet()) {
+            Long root = ef.root(me.getKey());
+            if (root != null) {
+                changed.merge(root, me.getValue(), Math::max);
+                roots.put(me.getKey(), root);
+            }
+        }
+        logger.info("### "+changed.size()+" dirty components!");
+        
+        Set<Long> failed = stitch (version, new ArrayList<>(changed.keySet()),
+                                   cid -> changed.get(cid));
+        for (Map.Entry<Long, Long> me : pending.entrySet()) {
+            Long root = roots.get(me.getKey());
+            if (root == null || !failed.contains(root))
+                feed.acknowledge(me.getKey(), me.getValue());
+        }
+        feed.compact();
+    }
+
+    /*
+     * returns the components that failed
+     */
+    Set<Long> stitch (int version, List<Long> comps,
+                      ToLongFunction<Long> since) throws Exception {
+        DataSource dsource = dsf.register("stitch_v"+version);
+        if (checkpoint != null) {
+            int total = comps.size();
+            comps = comps.stream()
+                .filter(cid -> !checkpoint.isDone
+                        (cid, since.applyAsLong(cid)))
+                .collect(Collectors.toList());
+            logger.info("### "+(total - comps.size())+" components already "
+                        +"done according to "+checkpoint.getFile());
+        }
+        
+        if (threads > 1)
+            return untangle (dsource, comps);
+        
+        int count = 1;
+        for (Long cid : comps) {
+            logger.info("################ UNTANGLE COMPONENT "+cid
+                        +" of size "+ef.entity(cid).get(Props.RANK)
+                        +"... "+count+"/"+comps.size());
+            write (dsource, untangle (dsource, cid));
+            ++count;
+        }
+        return Collections.emptySet();
+    }
+
+    /*
+     * stitches of a component, as untangled
+     */
+    static class Untangled implements BiConsumer<Long, long[]> {
+        final Long cid;
+        final Set<Long> nodes;
+        final List<Long> roots = new ArrayList<>();
+        final List<long[]> members = new ArrayList<>();
+
+        Untangled (Long cid, Set<Long> nodes) {
+            this.cid = cid;
+            this.nodes = nodes;
+        }
+
+        public void accept (Long root, long[] member) {
+            roots.add(root);
+            members.add(member);
+        }
+    }
+
+    Untangled untangle (DataSource dsource, Long cid) {
+        Component comp = ef.snapshot(cid);
+        logger.info("Stitching component "+comp.getId());
+        Untangled u = new Untangled (cid, comp.nodeSet());
+        new StitcherUntangleCompoundComponent (dsource, comp).untangle(ef, u);
+        return u;
+    }
+
+    /*
+     * the component's stitches are replaced in a single transaction
+     * which isn't recorded as a change
+     */
+    void write (DataSource dsource, Untangled u) {
+        GraphDb graphDb = ef.getGraphDb();
+        long[] stitches = new long[u.roots.size()];
+        graphDb.getChangeFeed().mute(true);
+        try (Transaction tx = graphDb.graphDb().beginTx()) {
+            for (int i = 0; i < stitches.length; ++i) {
+                Stitch stitch = ef.createStitch
+                    (dsource, u.roots.get(i), u.members.get(i));
+                accept (stitch);
+                stitches[i] = stitch.getId();
+            }
+
+            // anything else of this source over the members is stale
+            Set<Long> keep = new HashSet<>();
+            for (long id : stitches)
+                keep.add(id);
+            for (long id : ef.stitches(dsource, u.nodes)) {
+                if (!keep.contains(id)) {
+                    graphDb.getNode(id)._delete();
+                    logger.info("Stale stitch "+id+" of component "
+                                +u.cid+" deleted");
+                }
             }
+            tx.success();
+        }
+        finally {
+            graphDb.getChangeFeed().mute(false);
+        }
+        
+        if (checkpoint != null)
+            checkpoint.done(u.cid, stitches);
+    }
+
+    /*
+     * components are untangled concurrently, largest first, while the
+     * resulting stitches (and their events) are written by a single
+     * thread; workers block once the writer falls too far behind
+     */
+    Set<Long> untangle (DataSource dsource, List<Long> comps)
+        throws InterruptedException {
+        Map<Long, Integer> sizes = new HashMap<>();
+        for (Long cid : comps) {
+            Integer rank = (Integer)ef.entity(cid).get(Props.RANK);
+            sizes.put(cid, rank != null ? rank : 1);
+        }
+        comps = new ArrayList<>(comps);
+        Collections.sort(comps, (a, b) -> sizes.get(b) - sizes.get(a));
+
+        Progress progress = new Progress
+            (comps.size(), sizes.values().stream()
+             .mapToLong(Integer::longValue).sum());
+        List<Long> failed = Collections.synchronizedList(new ArrayList<>());
+        
+        ThreadPoolExecutor writer = new ThreadPoolExecutor
+            (1, 1, 0l, TimeUnit.MILLISECONDS,
+             new ArrayBlockingQueue<>(64*threads), (r, executor) -> {
+                try {
+                    executor.getQueue().put(r);
+                }
+                catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        logger.info("Untangling "+comps.size()+" components with "
+                    +threads+" threads...");
+        for (Long cid : comps) {
+            workers.submit(() -> {
+                    Untangled u;
+                    try {
+                        u = untangle (dsource, cid);
+                    }
+                    catch (Exception ex) {
+                        logger.log(Level.SEVERE,
+                                   "Can't untangle component "+cid, ex);
+                        failed.add(cid);
+                        return;
+                    }
+                    
+                    writer.execute(() -> {
+                            try {
+                                write (dsource, u);
+                            }
+                            catch (Exception ex) {
+                                logger.log(Level.SEVERE, "Can't stitch "
+                                           +"component "+cid, ex);
+                                failed.add(cid);
+                            }
+                            progress.done(cid, sizes.get(cid));
+                        });
+                });
+        }
+        
+        workers.shutdown();
+        workers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        writer.shutdown();
+        writer.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        
+        if (!failed.isEmpty())
+            logger.warning(failed.size()+" component(s) failed: "+failed);
+        return new HashSet<>(failed);
+    }
+
+    static class Progress {
+        final int total;
+        final long work;
+        final long start = System.currentTimeMillis();
+        int count;
+        long done;
+
+        Progress (int total, long work) {
+            this.total = total;
+            this.work = work;
+        }
+
+        /*
+         * only called by the writer
+         */
+        void done (Long cid, int size) {
+            ++count;
+            done += size;
+            long elapsed = System.currentTimeMillis() - start;
+            long eta = (long)((double)elapsed * (work - done) / done);
+            logger.info(String.format
+                        ("################ COMPONENT %1$d of size %2$d... "
+                         +"%3$d/%4$d (%5$.1f%%) elapsed %6$s, ETA %7$s",
+                         cid, size, count, total, 100.*done/work,
+                         format (elapsed), format (eta)));
+        }
+
+        static String format (long millis) {
+            long s = millis / 1000l;
+            return String.format("%1$d:%2$02d:%3$02d",
+                                 s / 3600, (s / 60) % 60, s % 60);
         }
     }
 
@@ -119,7 +366,8 @@ public class CompoundStitcher implements Consumer<Stitch> {
     public static void main (String[] argv) throws Exception {
         if (argv.length < 2) {
             System.err.println("Usage: "+CompoundStitcher.class.getName()
-                               +" DB VERSION [COMPONENTS...]");
+                               +" DB VERSION [threads=N] [checkpoint=FILE] "
+                               +"[since=MILLIS|changed] [COMPONENTS...]");
             System.exit(1);
         }
 
@@ -127,9 +375,28 @@ public class CompoundStitcher implements Consumer<Stitch> {
         int version = Integer.parseInt(argv[1]);
 
         List<Long> comps = new ArrayList<>();
-        for (int i = 2; i < argv.length; ++i)
-            comps.add(Long.parseLong(argv[i]));
-        cs.stitch(version, comps.toArray(new Long[0]));
+        Long since = null;
+        boolean changed = false;
+        for (int i = 2; i < argv.length; ++i) {
+            if (argv[i].startsWith("threads="))
+                cs.setThreads(Integer.parseInt(argv[i].substring(8)));
+            else if (argv[i].startsWith("checkpoint="))
+                cs.setCheckpoint
+                    (new Checkpoint (new File (argv[i].substring(11))));
+            else if (argv[i].startsWith("since="))
+                since = Long.parseLong(argv[i].substring(6));
+            else if ("changed".equals(argv[i]))
+                changed = true;
+            else
+                comps.add(Long.parseLong(argv[i]));
+        }
+        
+        if (changed)
+            cs.restitchChanged(version);
+        else if (since != null)
+            cs.restitch(version, since);
+        else
+            cs.stitch(version, comps.toArray(new Long[0]));
 
         cs.shutdown();
     }
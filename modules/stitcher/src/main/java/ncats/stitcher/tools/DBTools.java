@@ -432,6 +432,9 @@ public class DBTools {
                     dbt.values();
                 }
             }
+            else if ("counts".equalsIgnoreCase(cmd)) {
+                dbt.ef.updateStitchValueCounts();
+            }
             else if ("path".equalsIgnoreCase(cmd)) {
                 if (argv.length > 3) {
                     Set<StitchKey> keys = EnumSet.noneOf(StitchKey.class);
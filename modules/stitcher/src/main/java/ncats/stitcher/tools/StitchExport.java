@@ -0,0 +1,58 @@
+package ncats.stitcher.tools;
+
+import java.util.*;
+import java.io.*;
+import java.util.zip.GZIPOutputStream;
+import java.util.logging.Logger;
+import java.util.logging.Level;
+
+import ncats.stitcher.*;
+
+/*
+ * dump the stitches of a version as newline delimited json
+ */
+public class StitchExport {
+    static final Logger logger =
+        Logger.getLogger(StitchExport.class.getName());
+
+    public static void main (String[] argv) throws Exception {
+        if (argv.length < 2) {
+            System.err.println("Usage: "+StitchExport.class.getName()
+                               +" DB VERSION [window=N] [OUTFILE]");
+            System.err.println("OUTFILE ending in .gz is compressed; "
+                               +"stdout if not specified");
+            System.exit(1);
+        }
+
+        GraphDb graphDb = GraphDb.getInstance(argv[0]);
+        try {
+            Exporter exporter = new Exporter (graphDb);
+            int version = Integer.parseInt(argv[1]);
+            String out = null;
+            for (int i = 2; i < argv.length; ++i) {
+                if (argv[i].startsWith("window="))
+                    exporter.setWindow
+                        (Integer.parseInt(argv[i].substring(7)));
+                else
+                    out = argv[i];
+            }
+
+            OutputStream os = out != null
+                ? new FileOutputStream (out) : System.out;
+            if (out != null && out.endsWith(".gz"))
+                os = new GZIPOutputStream (os, 1<<16);
+            try (OutputStream bos = new BufferedOutputStream (os, 1<<16)) {
+                long count = exporter.export(bos, "S_STITCH_V"+version);
+                logger.info(count+" stitch(es) exported"
+                            +(out != null ? " to "+out : ""));
+            }
+        }
+        catch (Exception ex) {
+            logger.log(Level.SEVERE, "Export failed", ex);
+            throw ex;
+        }
+        finally {
+            graphDb.shutdown();
+        }
+    }
+}
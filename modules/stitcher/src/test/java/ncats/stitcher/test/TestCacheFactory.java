@@ -14,6 +14,8 @@ import org.junit.Rule;
 import org.junit.rules.TemporaryFolder;
 import org.junit.rules.TestName;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertArrayEquals;
 
 public class TestCacheFactory {
     static final Logger logger =
@@ -51,4 +53,32 @@ public class TestCacheFactory {
         }
         cache.shutdown();
     }
+
+    @Test
+    public void testGetOrElse () throws Exception {
+        File dir = tmpDir.newFolder();
+        CacheFactory cache = CacheFactory.getInstance(dir);
+        final String[] hk = {"L1", "L2", "L3", "L4"};
+        for (int i = 0; i < 1000; ++i) {
+            final int n = i;
+            cache.getOrElse("lychi"+i, new Callable<String[]> () {
+                    public String[] call () {
+                        return new String[]{hk[0]+n, hk[1]+n, hk[2]+n};
+                    }
+                });
+        }
+        assertEquals (1000, cache.size());
+        assertEquals (1000l, cache.getMisses());
+        cache.shutdown();
+
+        cache = CacheFactory.getInstance(dir);
+        String[] value = cache.getOrElse("lychi42", new Callable<String[]> () {
+                public String[] call () {
+                    return hk;
+                }
+            });
+        assertArrayEquals (new String[]{"L142", "L242", "L342"}, value);
+        assertEquals (1l, cache.getHits());
+        cache.shutdown();
+    }
 }
@@ -0,0 +1,32 @@
+package ncats.stitcher.test;
+
+import java.io.*;
+
+import ncats.stitcher.tools.Checkpoint;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class TestCheckpoint {
+    @Test
+    public void testResume () throws IOException {
+        File file = File.createTempFile("checkpoint", ".txt");
+        file.deleteOnExit();
+        try (Checkpoint cp = new Checkpoint (file)) {
+            cp.done(1l, new long[]{10l, 11l});
+            cp.done(2l, new long[0]); // no stitches
+        }
+        try (PrintStream ps = new PrintStream
+             (new FileOutputStream (file, true))) {
+            ps.print("3\t12"); // partial line left by a crash
+        }
+
+        try (Checkpoint cp = new Checkpoint (file)) {
+            assertEquals (2, cp.size());
+            assertTrue (cp.isDone(1l, 0l));
+            assertTrue (cp.isDone(2l, 0l));
+            assertFalse (cp.isDone(3l, 0l));
+            assertFalse (cp.isDone(2l, Long.MAX_VALUE));
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package ncats.stitcher.test;
+
+import java.util.*;
+
+import ncats.stitcher.GraphDb;
+import ncats.stitcher.StitchKey;
+import ncats.stitcher.DataSource;
+import ncats.stitcher.Component;
+import ncats.stitcher.impl.MapEntityFactory;
+
+import org.junit.Test;
+import org.junit.Rule;
+import org.junit.rules.TestName;
+import static org.junit.Assert.*;
+
+public class TestComponentSnapshot {
+    @Rule public TestName name = new TestName();
+
+    static final StitchKey[] KEYS = {
+        StitchKey.I_CAS, StitchKey.I_UNII, StitchKey.N_Name
+    };
+
+    static Map<String, Object> record (String... kv) {
+        Map<String, Object> map = new HashMap<>();
+        for (int i = 0; i < kv.length; i += 2)
+            map.put(kv[i], kv[i+1]);
+        return map;
+    }
+
+    static Set<String> cliques (Component comp) {
+        final Set<String> cliques = new TreeSet<>();
+        comp.cliques(clique -> {
+                cliques.add(clique.nodeSet()+" "+clique.values().keySet());
+                return true;
+            }, KEYS);
+        return cliques;
+    }
+
+    @Test
+    public void testSnapshot () throws Exception {
+        GraphDb graphDb = GraphDb.createTempDb(name.getMethodName());
+        try {
+            MapEntityFactory reg = new MapEntityFactory (graphDb);
+            DataSource source = reg.getDataSourceFactory()
+                .register(name.getMethodName());
+            reg.setDataSource(source);
+            for (StitchKey k : KEYS)
+                reg.add(k, k.name());
+
+            for (int i = 0; i < 3; ++i)
+                reg.register(record ("I_CAS", "cas-1", "I_UNII", "unii-1",
+                                     "N_Name", "name-1"));
+            reg.register(record ("I_CAS", "cas-1", "N_Name", "name-2"));
+            reg.register(record ("N_Name", "name-2"));
+
+            List<Long> comps = new ArrayList<>();
+            assertEquals ("Expecting one component", 1, reg.components(comps));
+            Component comp = reg.component(comps.get(0));
+            Component snapshot = reg.snapshot(comps.get(0));
+
+            assertEquals (5, comp.size());
+            assertEquals (comp.nodeSet(), snapshot.nodeSet());
+            for (StitchKey key : KEYS) {
+                Map<Object, Integer> values = comp.values(key);
+                assertFalse (key+" has no values", values.isEmpty());
+                assertEquals (key+" values", values, snapshot.values(key));
+                assertEquals (key+" stats", comp.stats(key),
+                              snapshot.stats(key));
+                for (Object v : values.keySet())
+                    assertArrayEquals (key+"="+v+" nodes", comp.nodes(key, v),
+                                       snapshot.nodes(key, v));
+            }
+            assertEquals (cliques (comp), cliques (snapshot));
+        }
+        finally {
+            graphDb.shutdown();
+        }
+    }
+}
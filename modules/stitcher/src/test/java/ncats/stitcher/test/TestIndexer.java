@@ -0,0 +1,130 @@
+package ncats.stitcher.test;
+
+import java.util.*;
+
+import ncats.stitcher.GraphDb;
+import ncats.stitcher.Indexer;
+import ncats.stitcher.Entity;
+import ncats.stitcher.AuxNodeType;
+import ncats.stitcher.StitchKey;
+import ncats.stitcher.DataSource;
+import ncats.stitcher.impl.MapEntityFactory;
+
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.GraphDatabaseService;
+
+import org.junit.Test;
+import org.junit.Rule;
+import org.junit.rules.TestName;
+import static org.junit.Assert.*;
+
+public class TestIndexer {
+    @Rule public TestName name = new TestName();
+
+    static final StitchKey[] KEYS = {
+        StitchKey.I_CAS, StitchKey.I_UNII, StitchKey.N_Name
+    };
+    static final String LABEL = "S_STITCH_V1";
+
+    static Map<String, Object> record (String... kv) {
+        Map<String, Object> map = new HashMap<>();
+        for (int i = 0; i < kv.length; i += 2)
+            map.put(kv[i], kv[i+1]);
+        return map;
+    }
+
+    static void stitch (MapEntityFactory reg, DataSource ds) {
+        List<Long> comps = new ArrayList<>();
+        reg.components(comps);
+        for (Long id : comps)
+            reg.createStitch(ds, reg.component(id));
+    }
+
+    static Indexer ready (Indexer indexer) throws Exception {
+        for (int i = 0; i < 600 && !indexer.isReady(); ++i)
+            Thread.sleep(100);
+        assertTrue ("Index isn't ready", indexer.isReady());
+        return indexer;
+    }
+
+    static int total (Indexer indexer, String key, Object value)
+        throws Exception {
+        return indexer.filter(Collections.singletonMap(key, value),
+                              null, 0, 10).total;
+    }
+
+    /*
+     * Indexer.filter must match EntityFactory.filter over the legacy
+     * node index, which has the stitch payloads too
+     */
+    static void assertSameFilter (MapEntityFactory reg, Indexer indexer,
+                                  String key, String value)
+        throws Exception {
+        Set<Long> expected = new TreeSet<>();
+        for (Entity e : reg.filter(key, "'"+value+"'", LABEL))
+            expected.add(e.getId());
+
+        Map<String, Object> values = new HashMap<>();
+        values.put(key, value);
+        Set<Long> actual = new TreeSet<>();
+        for (long id : indexer.filter
+                 (values, Collections.singleton(LABEL), 0, 100).ids)
+            actual.add(id);
+        assertEquals (key+"="+value, expected, actual);
+    }
+
+    @Test
+    public void testFilter () throws Exception {
+        GraphDb graphDb = GraphDb.createTempDb(name.getMethodName());
+        try {
+            MapEntityFactory reg = new MapEntityFactory (graphDb);
+            reg.setDataSource(reg.getDataSourceFactory()
+                              .register(name.getMethodName()));
+            for (StitchKey k : KEYS)
+                reg.add(k, k.name());
+
+            reg.register(record ("I_CAS", "cas-1", "I_UNII", "unii-1",
+                                 "N_Name", "name-1"));
+            reg.register(record ("I_CAS", "cas-1", "N_Name", "name-2"));
+            reg.register(record ("N_Name", "name-3"));
+            DataSource ds = reg.getDataSourceFactory().register("stitch_v1");
+            stitch (reg, ds);
+
+            // empty index gets rebuilt
+            Indexer indexer = ready (graphDb.getIndexer(1));
+            String[][] filters = {
+                {"I_CAS", "cas-1"},
+                {"I_UNII", "unii-1"},
+                {"N_Name", "name-2"},
+                {"N_Name", "name-3"},
+                {"N_Name", "bogus"}
+            };
+            for (String[] f : filters)
+                assertSameFilter (reg, indexer, f[0], f[1]);
+            assertEquals (1, total (indexer, "I_CAS", "cas-1"));
+
+            // new stitches reach the index on commit
+            reg.register(record ("I_UNII", "unii-4", "N_Name", "name-4"));
+            stitch (reg, ds);
+            assertSameFilter (reg, indexer, "I_UNII", "unii-4");
+            assertSameFilter (reg, indexer, "N_Name", "name-4");
+
+            // and so do changes to a payload
+            GraphDatabaseService gdb = graphDb.graphDb();
+            try (Transaction tx = gdb.beginTx()) {
+                for (Node n : gdb.getAllNodes()) {
+                    if (n.hasLabel(AuxNodeType.DATA)
+                        && "name-3".equals(n.getProperty("N_Name", null)))
+                        n.setProperty("N_Name", "name-5");
+                }
+                tx.success();
+            }
+            assertEquals (0, total (indexer, "N_Name", "name-3"));
+            assertEquals (1, total (indexer, "N_Name", "name-5"));
+        }
+        finally {
+            graphDb.shutdown();
+        }
+    }
+}
@@ -42,5 +42,31 @@ public class TestLineTokenizer {
             assertEquals("number of lines", 2320, lines);
         }
     }
-           
+
+    @Test
+    public void testParallel () throws IOException {
+        File file = File.createTempFile("tokenizer", ".txt");
+        file.deleteOnExit();
+        // enough records for several chunks; quoted fields span lines
+        try (PrintStream ps = new PrintStream (new FileOutputStream (file))) {
+            for (int i = 0; i < 300000; ++i)
+                ps.print(i+"\t\"quoted\tvalue\nline "+i+"\"\t\tlast"
+                         +(i % 2 == 0 ? "\r\n" : "\n"));
+        }
+
+        LineTokenizer seq = new LineTokenizer ();
+        seq.setFile(file, 0);
+        LineTokenizer par = new LineTokenizer ();
+        par.setFile(file, 4);
+        int lines = 0;
+        for (; seq.hasNext(); ++lines) {
+            assertTrue ("parallel tokenizer ended early", par.hasNext());
+            String[] tokens = par.next();
+            assertArrayEquals ("tokens at line "+lines, seq.next(), tokens);
+            assertEquals ("line count", seq.getLineCount(),
+                          par.getLineCount());
+        }
+        assertFalse (par.hasNext());
+        assertEquals ("number of lines", 300000, lines);
+    }
 }
@@ -0,0 +1,89 @@
+package ncats.stitcher.test;
+
+import java.util.*;
+
+import ncats.stitcher.GraphDb;
+import ncats.stitcher.Entity;
+import ncats.stitcher.StitchKey;
+import ncats.stitcher.impl.MapEntityFactory;
+
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.GraphDatabaseService;
+
+import org.junit.Test;
+import org.junit.Rule;
+import org.junit.rules.TestName;
+import static org.junit.Assert.*;
+
+public class TestTraversal {
+    @Rule public TestName name = new TestName();
+
+    static Map<String, Object> record (String... kv) {
+        Map<String, Object> map = new HashMap<>();
+        for (int i = 0; i < kv.length; i += 2)
+            map.put(kv[i], kv[i+1]);
+        return map;
+    }
+
+    static Set<String> values (Entity start) {
+        final Set<String> values = new TreeSet<>();
+        start.traverse((traversal, triple) -> {
+                for (Object v : triple.values().values())
+                    values.add(v.toString());
+                return true;
+            });
+        return values;
+    }
+
+    /*
+     * members cut off from the root's edges are still in the union-find
+     * component, and so still traversed
+     */
+    @Test
+    public void testDeletedBridge () throws Exception {
+        GraphDb graphDb = GraphDb.createTempDb(name.getMethodName());
+        try {
+            MapEntityFactory reg = new MapEntityFactory (graphDb);
+            reg.setDataSource(reg.getDataSourceFactory()
+                              .register(name.getMethodName()));
+            for (StitchKey k : new StitchKey[]{
+                    StitchKey.I_CAS, StitchKey.I_UNII, StitchKey.N_Name})
+                reg.add(k, k.name());
+
+            Entity a = reg.register(record ("I_CAS", "cas-1"));
+            Entity b = reg.register(record ("I_CAS", "cas-1",
+                                            "N_Name", "bridge"));
+            Entity c = reg.register(record ("I_UNII", "unii-1",
+                                            "N_Name", "bridge"));
+            Entity d = reg.register(record ("I_UNII", "unii-1"));
+
+            Set<String> all = new TreeSet<>
+                (Arrays.asList("bridge", "cas-1", "unii-1"));
+            assertEquals (all, values (a));
+
+            GraphDatabaseService gdb = graphDb.graphDb();
+            try (Transaction tx = gdb.beginTx()) {
+                int deleted = 0;
+                for (Relationship rel : b._node().getRelationships
+                         (Direction.BOTH, StitchKey.N_Name)) {
+                    if (rel.getOtherNode(b._node()).equals(c._node())) {
+                        rel.delete();
+                        ++deleted;
+                    }
+                }
+                assertTrue ("No bridge to delete", deleted > 0);
+                tx.success();
+            }
+
+            Set<String> rest = new TreeSet<>
+                (Arrays.asList("cas-1", "unii-1"));
+            assertEquals (rest, values (a));
+            assertEquals (rest, values (d));
+        }
+        finally {
+            graphDb.shutdown();
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package ncats.stitcher.test;
+
+import java.util.*;
+
+import ncats.stitcher.graph.UnionFind;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class TestUnionFind {
+
+    @Test
+    public void testComponents () {
+        UnionFind uf = new UnionFind ();
+        uf.union(10l, 20l);
+        uf.union(30l, 20l);
+        uf.union(1000000000000l, 40l);
+        uf.add(50l);
+
+        long[][] comps = uf.components();
+        assertEquals("number of components", 3, comps.length);
+        assertArrayEquals(new long[]{10l, 20l, 30l}, comps[0]);
+        assertArrayEquals(new long[]{40l, 1000000000000l}, comps[1]);
+        assertArrayEquals(new long[]{50l}, comps[2]);
+
+        assertTrue (uf.find(10l, 30l));
+        assertFalse (uf.find(10l, 40l));
+        assertNull (uf.root(60l));
+        assertEquals (uf.root(10l), uf.root(30l));
+    }
+
+    @Test
+    public void testDirectional () {
+        UnionFind uf = new UnionFind ();
+        uf.add(1l, 2);
+        uf.add(2l);
+        assertEquals (1l, uf.union(2l, 1l));
+        assertEquals (3l, uf.union(3l, 1l, false));
+        assertEquals (3l, uf.component(2l));
+    }
+
+    @Test
+    public void testForEachComponent () {
+        Random rand = new Random (1);
+        UnionFind uf = new UnionFind ();
+        for (int i = 0; i < 10000; ++i)
+            uf.union(rand.nextInt(20000), rand.nextInt(20000));
+
+        long[][] comps = uf.components();
+        final List<long[]> streamed = new ArrayList<>();
+        uf.forEachComponent(c -> streamed.add(c));
+        assertEquals("number of components", comps.length, streamed.size());
+
+        int total = 0;
+        for (long[] c : streamed) {
+            total += c.length;
+            for (long n : c)
+                assertEquals (uf.root(c[0]), uf.root(n));
+        }
+        assertEquals("number of nodes", uf.size(), total);
+
+        uf.clear();
+        assertEquals (0, uf.components().length);
+    }
+}
@@ -0,0 +1,47 @@
+package ncats.stitcher.test;
+
+import java.util.*;
+import java.io.*;
+
+import ncats.stitcher.impl.XmlStream;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class TestXmlStream {
+    static final String XML = "<?xml version=\"1.0\"?>\n<Release>"
+        +"<Record id=\"1\"><x>1</x></Record>\n"
+        +"<Records>not a record</Records>"
+        +"<Record><x><</x></Record>junk<Record>3</</Record></Release>";
+
+    static List<String> split (String xml, int bufsize) throws IOException {
+        final List<String> records = new ArrayList<>();
+        XmlStream xs = new XmlStream
+            (new ByteArrayInputStream (xml.getBytes("utf8")), "Record",
+             (_xs, rec) -> records.add(new String (rec)));
+        byte[] buf = new byte[bufsize];
+        while (xs.read(buf, 0, buf.length) != -1)
+            ;
+        assertEquals ("record count", records.size(), xs.getCount());
+        return records;
+    }
+
+    @Test
+    public void testSplit () throws IOException {
+        List<String> records = split (XML, 1024);
+        assertEquals (3, records.size());
+        String prolog = "<?xml version=\"1.0\"?>\n";
+        assertEquals (prolog+"<Record id=\"1\"><x>1</x></Record>",
+                      records.get(0));
+        assertEquals (prolog+"<Record><x><</x></Record>", records.get(1));
+        assertEquals (prolog+"<Record>3</</Record>", records.get(2));
+    }
+
+    @Test
+    public void testBufferBoundaries () throws IOException {
+        // tags split across reads must give the same records
+        List<String> expected = split (XML, 1024);
+        for (int size = 1; size < 16; ++size)
+            assertEquals ("buffer size "+size, expected, split (XML, size));
+    }
+}